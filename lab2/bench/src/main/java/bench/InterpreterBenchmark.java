@@ -0,0 +1,81 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+//Calls of the function run(n) of the C-- kernels in src/main/resources/kernels, interpreted by the tree-walking
+//Interpreter through CmmEngine. The program is parsed, type checked and prepared once in the setup, so only the
+//interpreter is measured. The output of the kernels goes to a BufferedIO that throws it away.
+//
+//The classes of lab2 are in the default package, which JMH does not allow for benchmarks and which can not be
+//imported, so they are looked up by name and called through method handles.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xss16m")
+@State(Scope.Thread)
+public class InterpreterBenchmark {
+
+    //the argument of run for every kernel, chosen so that a call takes about a millisecond
+    static final Map<String, Integer> SIZES = Map.of(
+            "loop", 20000,
+            "fib", 15,
+            "blocks", 10000,
+            "mixed", 10000,
+            "print", 5000);
+
+    @Param({"loop", "fib", "blocks", "mixed", "print"})
+    public String kernel;
+
+    Object engine;
+    Object io;
+    MethodHandle call;
+    Object[] arguments;
+
+    @Setup
+    public void setup() throws Throwable {
+        String source;
+        try (InputStream in = InterpreterBenchmark.class.getResourceAsStream("/kernels/" + kernel + ".cc")) {
+            if (in == null) {
+                throw new IOException("No kernel " + kernel);
+            }
+            source = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        Class<?> engineClass = Class.forName("CmmEngine");
+        Class<?> ioClass = Class.forName("Builtins$IO");
+        Class<?> bufferedClass = Class.forName("BufferedIO");
+        engine = lookup.findStatic(engineClass, "load", MethodType.methodType(engineClass, String.class))
+                .invoke(source);
+        io = lookup.findConstructor(bufferedClass, MethodType.methodType(void.class, InputStream.class,
+                OutputStream.class)).invoke(InputStream.nullInputStream(), OutputStream.nullOutputStream());
+        call = lookup.findVirtual(engineClass, "call", MethodType.methodType(Object.class, ioClass, String.class,
+                Object[].class));
+        arguments = new Object[] { SIZES.get(kernel) };
+    }
+
+    @Benchmark
+    public Object run() throws Throwable {
+        return call.invoke(engine, io, "run", arguments);
+    }
+}
@@ -0,0 +1,42 @@
+// variables declared in deeply nested blocks and read from the innermost one, for the lookup of variables
+int run(int n) {
+  int a = 1;
+  int sum = 0;
+  {
+    int b = 2;
+    {
+      int c = 3;
+      {
+        int d = 4;
+        {
+          int e = 5;
+          {
+            int f = 6;
+            {
+              int g = 7;
+              {
+                int h = 8;
+                int i = 0;
+                while (i < n) {
+                  {
+                    {
+                      int j = i;
+                      sum = sum + a + b + c + d - e + f - g + h - j + i;
+                    }
+                  }
+                  i++;
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+  return sum;
+}
+
+int main() {
+  printInt(run(10));
+  return 0;
+}
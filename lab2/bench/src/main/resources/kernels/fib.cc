@@ -0,0 +1,14 @@
+// recursive fib: calls, argument passing and returns
+int fib(int n) {
+  if (n < 2) return n;
+  else return fib(n - 1) + fib(n - 2);
+}
+
+int run(int n) {
+  return fib(n);
+}
+
+int main() {
+  printInt(run(10));
+  return 0;
+}
@@ -0,0 +1,15 @@
+// a counting loop: int arithmetic, comparisons and assignments of local variables
+int run(int n) {
+  int i = 0;
+  int sum = 0;
+  while (i < n) {
+    sum = sum + i * 2 - 1;
+    i++;
+  }
+  return sum;
+}
+
+int main() {
+  printInt(run(10));
+  return 0;
+}
@@ -0,0 +1,20 @@
+// int and double operands in the same expressions, so that the ints are cast to double
+double average(int a, double b) {
+  return (a + b) / 2;
+}
+
+int run(int n) {
+  int i = 0;
+  double x = 0;
+  while (i < n) {
+    x = x * 0.5 + i;
+    x = average(i, x) - 1;
+    i++;
+  }
+  return i;
+}
+
+int main() {
+  printInt(run(10));
+  return 0;
+}
@@ -0,0 +1,15 @@
+// printInt and printDouble in a loop, the output is thrown away
+int run(int n) {
+  int i = 0;
+  while (i < n) {
+    printInt(i * 7919);
+    printDouble(i / 4.0);
+    i++;
+  }
+  return i;
+}
+
+int main() {
+  printInt(run(10));
+  return 0;
+}
@@ -0,0 +1,64 @@
+import cmm.*;
+import cmm.Absyn.*;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+
+//Measures how many bytes the interpreters allocate per iteration of a counting loop.
+//Run with: java AllocationBenchmark [iterations]
+//The loop is run twice with a different number of iterations, so that the bytes allocated by parsing, type checking
+//and setting up the frames cancel out and only the cost of the loop itself remains.
+public class AllocationBenchmark {
+
+    static String countingLoop(long n) {
+        return "int main() {\n"
+             + "  int i = 0;\n"
+             + "  int sum = 0;\n"
+             + "  while (i < " + n + ") {\n"
+             + "    sum = sum + i * 2 - 1;\n"
+             + "    i++;\n"
+             + "  }\n"
+             + "  return 0;\n"
+             + "}\n";
+    }
+
+    static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    //bytes allocated while running the counting loop with n iterations
+    static long run(long n, boolean unboxed) throws Exception {
+        Program program = new parser(new Yylex(new StringReader(countingLoop(n)))).pProgram();
+        TypeChecker typeChecker = new TypeChecker();
+        typeChecker.typecheck(program);
+        long before;
+        if (unboxed) {
+            UnboxedInterpreter interpreter = new UnboxedInterpreter(typeChecker.expTypes);
+            before = allocatedBytes();
+            interpreter.interpret(program);
+        } else {
+            Interpreter interpreter = new Interpreter();
+            before = allocatedBytes();
+            interpreter.interpret(program);
+        }
+        return allocatedBytes() - before;
+    }
+
+    static void report(String name, long small, long large, boolean unboxed) throws Exception {
+        //warm up, so that the numbers are not disturbed by class loading and the JIT compiler
+        run(small, unboxed);
+        run(large, unboxed);
+        long bytesSmall = run(small, unboxed);
+        long bytesLarge = run(large, unboxed);
+        double perIteration = (double) (bytesLarge - bytesSmall) / (large - small);
+        System.out.printf("%-10s %12d iterations %14d bytes %10.2f bytes/iteration%n",
+                name, large, bytesLarge, perIteration);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long iterations = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+        report("tree-walk", iterations / 10, iterations, false);
+        report("unboxed", iterations / 10, iterations, true);
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+//The input and output of the built-in functions, in the same format as Scanner and PrintStream but much cheaper.
+//
+//The output is written as bytes into a buffer, which goes to the stream when it is full, before the program waits for
+//input, and when flush is called. ints, and doubles that are small whole numbers, are formatted by hand, other doubles
+//by Double.toString, which gives the same text as println. The input is read in blocks and split into tokens at white
+//space. ints, and doubles that fit in a long with few decimals, are parsed by hand, other doubles by Double.parseDouble.
+//Nothing is allocated per number except for doubles that need Double.toString or Double.parseDouble.
+//
+//Not thread safe: every program (or thread running programs) needs its own BufferedIO.
+public class BufferedIO implements Builtins.IO {
+
+    static final int SIZE = 1 << 16;
+    //the longest text of a number and its newline: 11 characters for an int, 24 for Double.toString
+    static final int MAX_NUMBER = 32;
+    //the whole numbers that Double.toString writes without an exponent
+    static final double PLAIN_LIMIT = 1e7;
+    //the powers of ten that are exact doubles
+    static final double[] POWERS = new double[23];
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+    }
+
+    private final InputStream in;
+    private final OutputStream out;
+
+    private final byte[] output = new byte[SIZE];
+    private int outputLength = 0;
+
+    private final byte[] input = new byte[SIZE];
+    private int inputPosition = 0;
+    private int inputLength = 0;
+    //the current token, for the doubles that are parsed by Double.parseDouble
+    private byte[] token = new byte[64];
+
+    public BufferedIO(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
+    public void printInt(int n) {
+        if (outputLength + MAX_NUMBER > output.length) {
+            writeOutput();
+        }
+        writeLong(n);
+        output[outputLength++] = '\n';
+    }
+
+    @Override
+    public void printDouble(double x) {
+        if (outputLength + MAX_NUMBER > output.length) {
+            writeOutput();
+        }
+        //-0.0 is not a whole number here, its sign would get lost
+        if (x == (long) x && Math.abs(x) < PLAIN_LIMIT && (x != 0 || Double.doubleToRawLongBits(x) == 0)) {
+            writeLong((long) x);
+            output[outputLength++] = '.';
+            output[outputLength++] = '0';
+        } else {
+            String text = Double.toString(x);
+            for (int i = 0; i < text.length(); i++) {
+                output[outputLength++] = (byte) text.charAt(i);
+            }
+        }
+        output[outputLength++] = '\n';
+    }
+
+    //the digits are written back to front, from the end of the number
+    private void writeLong(long n) {
+        if (n < 0) {
+            output[outputLength++] = '-';
+            n = -n;
+        }
+        int digits = 1;
+        for (long rest = n / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int position = outputLength + digits;
+        outputLength = position;
+        do {
+            output[--position] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+    }
+
+    @Override
+    public void flush() {
+        writeOutput();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeOutput() {
+        try {
+            out.write(output, 0, outputLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        outputLength = 0;
+    }
+
+    //the next byte of the input, or -1 at the end
+    private int read() {
+        if (inputPosition == inputLength) {
+            //the program may have asked for the input it is waiting for
+            flush();
+            try {
+                inputLength = in.read(input);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            inputPosition = 0;
+            if (inputLength <= 0) {
+                inputLength = 0;
+                return -1;
+            }
+        }
+        return input[inputPosition++] & 0xff;
+    }
+
+    //the first byte of the next token
+    private int startToken() {
+        int c = read();
+        while (c >= 0 && c <= ' ') {
+            c = read();
+        }
+        if (c < 0) {
+            throw new NoSuchElementException("No more input");
+        }
+        return c;
+    }
+
+    @Override
+    public int readInt() {
+        int c = startToken();
+        boolean negative = c == '-';
+        if (c == '-' || c == '+') {
+            c = read();
+        }
+        if (c < '0' || c > '9') {
+            throw new InputMismatchException("Input is not an int");
+        }
+        long value = 0;
+        while (c >= '0' && c <= '9') {
+            value = 10 * value + (c - '0');
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw new InputMismatchException("Input is out of the range of an int");
+            }
+            c = read();
+        }
+        if (c > ' ') {
+            throw new InputMismatchException("Input is not an int");
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new InputMismatchException("Input is out of the range of an int");
+        }
+        return (int) value;
+    }
+
+    @Override
+    public double readDouble() {
+        int length = 0;
+        for (int c = startToken(); c > ' '; c = read()) {
+            if (length == token.length) {
+                token = java.util.Arrays.copyOf(token, 2 * length);
+            }
+            token[length++] = (byte) c;
+        }
+        //digits with at most one point: the value is the digits divided by a power of ten. Both are exact doubles if there
+        //are at most 15 digits, so the division rounds the same way as Double.parseDouble.
+        int i = token[0] == '-' || token[0] == '+' ? 1 : 0;
+        long digits = 0;
+        int count = 0;
+        int decimals = -1;
+        for (; i < length; i++) {
+            byte b = token[i];
+            if (b >= '0' && b <= '9') {
+                digits = 10 * digits + (b - '0');
+                count++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                break;
+            }
+        }
+        if (i == length && count > 0 && count <= 15) {
+            double value = decimals > 0 ? digits / POWERS[decimals] : digits;
+            return token[0] == '-' ? -value : value;
+        }
+        try {
+            return Double.parseDouble(new String(token, 0, length, java.nio.charset.StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException e) {
+            throw new InputMismatchException("Input is not a double");
+        }
+    }
+}
@@ -0,0 +1,40 @@
+//The built-in functions of C--, shared by the execution engines in the same way as Runtime in lab3.
+//
+//They use the standard input and output through a BufferedIO, so the output has to be flushed when the program ends,
+//also when it ends with an error.
+public class Builtins {
+
+    //the built-in functions for an interpreter that does not use the standard input and output, see CmmEngine
+    public interface IO {
+        void printInt(int n);
+        void printDouble(double x);
+        int readInt();
+        double readDouble();
+        //write the output that is still buffered
+        void flush();
+    }
+
+    //the standard input and output, used by the static functions below
+    public static final BufferedIO STANDARD = new BufferedIO(System.in, System.out);
+
+    public static void printInt(int n) {
+        STANDARD.printInt(n);
+    }
+
+    public static void printDouble(double x) {
+        STANDARD.printDouble(x);
+    }
+
+    public static int readInt() {
+        return STANDARD.readInt();
+    }
+
+    public static double readDouble() {
+        return STANDARD.readDouble();
+    }
+
+    public static void flush() {
+        STANDARD.flush();
+    }
+
+}
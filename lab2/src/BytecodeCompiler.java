@@ -0,0 +1,636 @@
+import cmm.Absyn.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+//Lowers a type checked program to code for the RegisterVM.
+//
+//The variables of a function live in the registers given by their Resolver slot: an int or bool variable in slot s is
+//int register s, a double variable in slot s is double register s. The temporaries of an expression are allocated
+//above the variables like a stack and are freed at the end of every statement.
+public class BytecodeCompiler {
+
+    IdentityHashMap<Exp, TypeChecker.TypeCode> codes = new IdentityHashMap<>();
+    HashMap<String, Integer> functionIndex = new HashMap<>();
+    HashMap<String, Resolver.FunInfo> layouts;
+
+    //the function that is being compiled
+    Resolver.FunInfo fun;
+    int[] code;
+    int length;
+    ArrayList<Double> constants;
+    int intTemp;
+    int doubleTemp;
+    int maxInt;
+    int maxDouble;
+    //the variables that are definitely initialized at the current point of the code. Only the reads of the other
+    //variables need a check at runtime.
+    boolean[] assigned;
+
+    public BytecodeCompiler(IdentityHashMap<Exp, Type> expTypes){
+        for (Map.Entry<Exp, Type> entry : expTypes.entrySet()){
+            codes.put(entry.getKey(), TypeChecker.typeCode(entry.getValue()));
+        }
+    }
+
+    public RegisterVM compile(Program p){
+        layouts = new Resolver().resolve(p);
+        PDefs pDefs = (PDefs) p;
+        RegisterVM.Function[] functions = new RegisterVM.Function[pDefs.listdef_.size()];
+        int i = 0;
+        for (Def def : pDefs.listdef_){
+            DFun dFun = (DFun) def;
+            functionIndex.put(dFun.id_, i);
+            i++;
+        }
+        i = 0;
+        for (Def def : pDefs.listdef_){
+            functions[i] = compile(layouts.get(((DFun) def).id_));
+            i++;
+        }
+        return new RegisterVM(functions, functionIndex.get("main"));
+    }
+
+    public RegisterVM.Function compile(Resolver.FunInfo f){
+        fun = f;
+        code = new int[64];
+        length = 0;
+        constants = new ArrayList<>();
+        maxInt = f.frameSize;
+        maxDouble = f.frameSize;
+        assigned = new boolean[f.frameSize];
+        //the parameters are initialized by the caller
+        for (int i = 0; i < f.dFun.listarg_.size(); i++){
+            assigned[i] = true;
+        }
+        for (Stm stm : f.dFun.liststm_){
+            compile(stm);
+        }
+        //a function without a return statement at the end just returns
+        emit(RegisterVM.RET);
+
+        RegisterVM.Function function = new RegisterVM.Function(f.dFun.id_);
+        function.code = Arrays.copyOf(code, length);
+        function.constants = new double[constants.size()];
+        for (int i = 0; i < constants.size(); i++){
+            function.constants[i] = constants.get(i);
+        }
+        //a call puts the first register of the callee window at the first argument, so the window needs at least
+        //room for the return value
+        function.intRegisters = Math.max(maxInt, 1);
+        function.doubleRegisters = Math.max(maxDouble, 1);
+        return function;
+    }
+
+    //Emitting code
+    ///////////////////////////////////////////////////////////////////////////
+
+    void emit(int... words){
+        if (length + words.length > code.length){
+            code = Arrays.copyOf(code, 2 * code.length + words.length);
+        }
+        for (int word : words){
+            code[length] = word;
+            length++;
+        }
+    }
+
+    //emit a jump whose target is not known yet. Returns the position of the target, for patch.
+    int emitJump(int... words){
+        emit(words);
+        emit(-1);
+        return length - 1;
+    }
+
+    void patch(ArrayList<Integer> jumps, int target){
+        for (int position : jumps){
+            code[position] = target;
+        }
+    }
+
+    int newInt(){
+        int r = intTemp;
+        intTemp++;
+        maxInt = Math.max(maxInt, intTemp);
+        return r;
+    }
+
+    int newDouble(){
+        int r = doubleTemp;
+        doubleTemp++;
+        maxDouble = Math.max(maxDouble, doubleTemp);
+        return r;
+    }
+
+    //the register where the value should go: the destination asked for by the parent expression if there is one
+    int intDest(int dest){
+        return dest >= 0 ? dest : newInt();
+    }
+
+    int doubleDest(int dest){
+        return dest >= 0 ? dest : newDouble();
+    }
+
+    boolean isDouble(Exp e){
+        return codes.get(e) == TypeChecker.TypeCode.CDouble;
+    }
+
+    //Statements
+    ///////////////////////////////////////////////////////////////////////////
+
+    void compile(Stm stm){
+        //no temporaries live from one statement to the next
+        intTemp = fun.frameSize;
+        doubleTemp = fun.frameSize;
+        stm.accept(new CompileStm(), null);
+    }
+
+    private class CompileStm implements Stm.Visitor<Object, Object> {
+
+        @Override
+        public Object visit(SExp p, Object arg) {
+            compile(p.exp_, -1);
+            return null;
+        }
+
+        @Override
+        public Object visit(SDecls p, Object arg) {
+            for (int slot : fun.declSlots.get(p)){
+                emit(fun.isDouble(slot) ? RegisterVM.DDECL : RegisterVM.IDECL, slot);
+                assigned[slot] = false;
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(SInit p, Object arg) {
+            int slot = fun.slot(p);
+            assigned[slot] = false;
+            //int x = x; must fail at runtime, so the variable is only marked uninitialized when it is read in its own initializer
+            if (mentions(p.exp_, slot)){
+                emit(fun.isDouble(slot) ? RegisterVM.DDECL : RegisterVM.IDECL, slot);
+            }
+            assign(slot, p.exp_);
+            return null;
+        }
+
+        @Override
+        public Object visit(SReturn p, Object arg) {
+            Type returnType = fun.dFun.type_;
+            if (returnType instanceof Type_double){
+                emit(RegisterVM.DRET, compileDouble(p.exp_, -1));
+            } else if (returnType instanceof Type_void){
+                compile(p.exp_, -1);
+                emit(RegisterVM.RET);
+            } else {
+                emit(RegisterVM.IRET, compile(p.exp_, -1));
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(SWhile p, Object arg) {
+            //the condition is tested at the end of the loop, so that an iteration only takes one jump
+            ArrayList<Integer> test = new ArrayList<>();
+            test.add(emitJump(RegisterVM.JMP));
+            int body = length;
+            //the body is compiled before the condition, but runs after it. Compiling it with what is known before
+            //the condition only adds checks that are not needed.
+            boolean[] before = assigned.clone();
+            p.stm_.accept(this, arg);
+            assigned = before;
+            patch(test, length);
+            patch(jumpIf(p.exp_, true), body);
+            return null;
+        }
+
+        @Override
+        public Object visit(SBlock p, Object arg) {
+            for (Stm stm : p.liststm_){
+                compile(stm);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(SIfElse p, Object arg) {
+            ArrayList<Integer> otherwise = jumpIf(p.exp_, false);
+            boolean[] before = assigned.clone();
+            compile(p.stm_1);
+            ArrayList<Integer> end = new ArrayList<>();
+            end.add(emitJump(RegisterVM.JMP));
+            patch(otherwise, length);
+            boolean[] afterThen = assigned;
+            assigned = before;
+            compile(p.stm_2);
+            patch(end, length);
+            //a variable is only definitely initialized after the statement if both branches initialize it
+            for (int i = 0; i < assigned.length; i++){
+                assigned[i] = assigned[i] && afterThen[i];
+            }
+            return null;
+        }
+    }
+
+    //Expressions
+    ///////////////////////////////////////////////////////////////////////////
+
+    //compile an expression and return the register that holds its value: an int register for int and bool
+    //expressions, a double register for double expressions, -1 for void expressions.
+    //dest is the register where the value should go if the parent already knows it, or -1.
+    int compile(Exp e, int dest){
+        return e.accept(new CompileExp(), dest);
+    }
+
+    //compile an int or double expression to a double register, converting an int value
+    int compileDouble(Exp e, int dest){
+        if (isDouble(e)){
+            return compile(e, dest);
+        }
+        int r = compile(e, -1);
+        int d = doubleDest(dest);
+        emit(RegisterVM.I2D, d, r);
+        return d;
+    }
+
+    //compile the left operand of a binary operation. If the left operand is a variable and the right operand may assign
+    //to it, the value of the variable is copied first, so that the left operand is still evaluated first.
+    int left(Exp left, Exp right, boolean toDouble){
+        int r = toDouble ? compileDouble(left, -1) : compile(left, -1);
+        if (r < fun.frameSize && mayAssign(right)){
+            if (toDouble || isDouble(left)){
+                int t = newDouble();
+                emit(RegisterVM.DMOV, t, r);
+                return t;
+            }
+            int t = newInt();
+            emit(RegisterVM.IMOV, t, r);
+            return t;
+        }
+        return r;
+    }
+
+    //store the value of an expression in a variable, converting an int value if the variable is of type double
+    int assign(int slot, Exp e){
+        if (fun.isDouble(slot)){
+            int r = compileDouble(e, slot);
+            if (r != slot){
+                emit(RegisterVM.DMOV, slot, r);
+            }
+        } else {
+            int r = compile(e, slot);
+            if (r != slot){
+                emit(RegisterVM.IMOV, slot, r);
+            }
+        }
+        assigned[slot] = true;
+        return slot;
+    }
+
+    //read a variable, checking at runtime that it is initialized if that is not known here
+    int read(int slot){
+        if (!assigned[slot]){
+            emit(fun.isDouble(slot) ? RegisterVM.DCHK : RegisterVM.ICHK, slot);
+        }
+        return slot;
+    }
+
+    //the comparison operators in the order of the opcodes ILT, IGT, ILE, IGE, IEQ, INE and the others
+    static int comparison(CmpOp op){
+        if (op instanceof OLt){
+            return 0;
+        } else if (op instanceof OGt){
+            return 1;
+        } else if (op instanceof OLtEq){
+            return 2;
+        } else if (op instanceof OGtEq){
+            return 3;
+        } else if (op instanceof OEq){
+            return 4;
+        }
+        return 5;
+    }
+
+    //the opposite of every comparison: < and >=, > and <=, == and !=
+    static final int[] NEGATION = {3, 2, 1, 0, 5, 4};
+
+    //compile a condition: emit jumps that are taken when its value is the given one, and return where they have to be
+    //patched. Otherwise the code falls through.
+    ArrayList<Integer> jumpIf(Exp e, boolean value){
+        ArrayList<Integer> jumps = new ArrayList<>();
+        if (e instanceof EBool){
+            if ((((EBool) e).boollit_ instanceof LTrue) == value){
+                jumps.add(emitJump(RegisterVM.JMP));
+            }
+        } else if (e instanceof EAnd || e instanceof EOr){
+            boolean and = e instanceof EAnd;
+            Exp exp1 = and ? ((EAnd) e).exp_1 : ((EOr) e).exp_1;
+            Exp exp2 = and ? ((EAnd) e).exp_2 : ((EOr) e).exp_2;
+            //the second operand may not run, so what it initializes is forgotten afterwards
+            if (and != value){
+                //a false operand of && or a true operand of || decides the value alone
+                jumps.addAll(jumpIf(exp1, value));
+                boolean[] before = assigned.clone();
+                jumps.addAll(jumpIf(exp2, value));
+                assigned = before;
+            } else {
+                ArrayList<Integer> skip = jumpIf(exp1, !value);
+                boolean[] before = assigned.clone();
+                jumps.addAll(jumpIf(exp2, value));
+                assigned = before;
+                patch(skip, length);
+            }
+        } else if (e instanceof ECmp && !isDouble(((ECmp) e).exp_1) && !isDouble(((ECmp) e).exp_2)){
+            ECmp cmp = (ECmp) e;
+            int c = comparison(cmp.cmpop_);
+            if (!value){
+                c = NEGATION[c];
+            }
+            int a = left(cmp.exp_1, cmp.exp_2, false);
+            if (cmp.exp_2 instanceof EInt){
+                jumps.add(emitJump(RegisterVM.JILTK + c, a, ((EInt) cmp.exp_2).integer_));
+            } else {
+                jumps.add(emitJump(RegisterVM.JILT + c, a, compile(cmp.exp_2, -1)));
+            }
+        } else {
+            jumps.add(emitJump(value ? RegisterVM.JNZ : RegisterVM.JZ, compile(e, -1)));
+        }
+        return jumps;
+    }
+
+    //does the expression assign to a variable of the current function?
+    static boolean mayAssign(Exp e){
+        if (e instanceof EAss || e instanceof EPost || e instanceof EPre){
+            return true;
+        } else if (e instanceof EApp){
+            for (Exp exp : ((EApp) e).listexp_){
+                if (mayAssign(exp)){
+                    return true;
+                }
+            }
+            return false;
+        } else if (e instanceof EMul){
+            return mayAssign(((EMul) e).exp_1) || mayAssign(((EMul) e).exp_2);
+        } else if (e instanceof EAdd){
+            return mayAssign(((EAdd) e).exp_1) || mayAssign(((EAdd) e).exp_2);
+        } else if (e instanceof ECmp){
+            return mayAssign(((ECmp) e).exp_1) || mayAssign(((ECmp) e).exp_2);
+        } else if (e instanceof EAnd){
+            return mayAssign(((EAnd) e).exp_1) || mayAssign(((EAnd) e).exp_2);
+        } else if (e instanceof EOr){
+            return mayAssign(((EOr) e).exp_1) || mayAssign(((EOr) e).exp_2);
+        } else if (e instanceof ETyped){
+            return mayAssign(((ETyped) e).exp_);
+        } else if (e instanceof EConv){
+            return mayAssign(((EConv) e).exp_);
+        }
+        return false;
+    }
+
+    //does the expression use the variable in the given slot?
+    boolean mentions(Exp e, int slot){
+        if (e instanceof EId || e instanceof EPost || e instanceof EPre){
+            return fun.slot(e) == slot;
+        } else if (e instanceof EAss){
+            return fun.slot(e) == slot || mentions(((EAss) e).exp_, slot);
+        } else if (e instanceof EApp){
+            for (Exp exp : ((EApp) e).listexp_){
+                if (mentions(exp, slot)){
+                    return true;
+                }
+            }
+            return false;
+        } else if (e instanceof EMul){
+            return mentions(((EMul) e).exp_1, slot) || mentions(((EMul) e).exp_2, slot);
+        } else if (e instanceof EAdd){
+            return mentions(((EAdd) e).exp_1, slot) || mentions(((EAdd) e).exp_2, slot);
+        } else if (e instanceof ECmp){
+            return mentions(((ECmp) e).exp_1, slot) || mentions(((ECmp) e).exp_2, slot);
+        } else if (e instanceof EAnd){
+            return mentions(((EAnd) e).exp_1, slot) || mentions(((EAnd) e).exp_2, slot);
+        } else if (e instanceof EOr){
+            return mentions(((EOr) e).exp_1, slot) || mentions(((EOr) e).exp_2, slot);
+        } else if (e instanceof ETyped){
+            return mentions(((ETyped) e).exp_, slot);
+        } else if (e instanceof EConv){
+            return mentions(((EConv) e).exp_, slot);
+        }
+        return false;
+    }
+
+    private class CompileExp implements Exp.Visitor<Integer, Integer> {
+
+        @Override
+        public Integer visit(EBool p, Integer dest) {
+            int d = intDest(dest);
+            emit(RegisterVM.ICONST, d, p.boollit_ instanceof LTrue ? 1 : 0);
+            return d;
+        }
+
+        @Override
+        public Integer visit(EInt p, Integer dest) {
+            int d = intDest(dest);
+            emit(RegisterVM.ICONST, d, p.integer_);
+            return d;
+        }
+
+        @Override
+        public Integer visit(EDouble p, Integer dest) {
+            int d = doubleDest(dest);
+            constants.add(p.double_);
+            emit(RegisterVM.DCONST, d, constants.size() - 1);
+            return d;
+        }
+
+        @Override
+        public Integer visit(EId p, Integer dest) {
+            //the value is already in the register of the variable
+            return read(fun.slot(p));
+        }
+
+        @Override
+        public Integer visit(EApp p, Integer dest) {
+            if (p.id_.equals("printInt")){
+                emit(RegisterVM.PRINTI, compile(p.listexp_.get(0), -1));
+                return -1;
+            } else if (p.id_.equals("printDouble")){
+                emit(RegisterVM.PRINTD, compileDouble(p.listexp_.get(0), -1));
+                return -1;
+            } else if (p.id_.equals("readInt")){
+                int d = intDest(dest);
+                emit(RegisterVM.READI, d);
+                return d;
+            } else if (p.id_.equals("readDouble")){
+                int d = doubleDest(dest);
+                emit(RegisterVM.READD, d);
+                return d;
+            }
+            Resolver.FunInfo callee = layouts.get(p.id_);
+            //the windows of the callee start here. The arguments are computed directly into its parameter registers.
+            int intBase = intTemp;
+            int doubleBase = doubleTemp;
+            int size = Math.max(p.listexp_.size(), 1);
+            for (int i = 0; i < size; i++){
+                newInt();
+                newDouble();
+            }
+            int i = 0;
+            for (Exp exp : p.listexp_){
+                if (callee.isDouble(i)){
+                    int r = compileDouble(exp, doubleBase + i);
+                    if (r != doubleBase + i){
+                        emit(RegisterVM.DMOV, doubleBase + i, r);
+                    }
+                } else {
+                    int r = compile(exp, intBase + i);
+                    if (r != intBase + i){
+                        emit(RegisterVM.IMOV, intBase + i, r);
+                    }
+                }
+                i++;
+            }
+            emit(RegisterVM.CALL, functionIndex.get(p.id_), intBase, doubleBase);
+            //the return value is in the first register of the window, the rest of the window is free again
+            intTemp = intBase + 1;
+            doubleTemp = doubleBase + 1;
+            Type returnType = callee.dFun.type_;
+            if (returnType instanceof Type_double){
+                return doubleBase;
+            } else if (returnType instanceof Type_void){
+                return -1;
+            }
+            return intBase;
+        }
+
+        @Override
+        public Integer visit(EPost p, Integer dest) {
+            int slot = read(fun.slot(p));
+            int delta = p.incdecop_ instanceof OInc ? 1 : -1;
+            if (fun.isDouble(slot)){
+                int d = newDouble();
+                emit(RegisterVM.DMOV, d, slot);
+                emit(RegisterVM.DINC, slot, delta);
+                return d;
+            }
+            int d = newInt();
+            emit(RegisterVM.IMOV, d, slot);
+            emit(RegisterVM.IINC, slot, delta);
+            return d;
+        }
+
+        @Override
+        public Integer visit(EPre p, Integer dest) {
+            int slot = read(fun.slot(p));
+            int delta = p.incdecop_ instanceof OInc ? 1 : -1;
+            emit(fun.isDouble(slot) ? RegisterVM.DINC : RegisterVM.IINC, slot, delta);
+            return slot;
+        }
+
+        @Override
+        public Integer visit(EMul p, Integer dest) {
+            if (isDouble(p)){
+                int a = left(p.exp_1, p.exp_2, true);
+                int b = compileDouble(p.exp_2, -1);
+                int d = doubleDest(dest);
+                emit(p.mulop_ instanceof OTimes ? RegisterVM.DMUL : RegisterVM.DDIV, d, a, b);
+                return d;
+            }
+            int a = left(p.exp_1, p.exp_2, false);
+            if (p.exp_2 instanceof EInt){
+                int d = intDest(dest);
+                emit(p.mulop_ instanceof OTimes ? RegisterVM.IMULK : RegisterVM.IDIVK, d, a, ((EInt) p.exp_2).integer_);
+                return d;
+            }
+            int b = compile(p.exp_2, -1);
+            int d = intDest(dest);
+            emit(p.mulop_ instanceof OTimes ? RegisterVM.IMUL : RegisterVM.IDIV, d, a, b);
+            return d;
+        }
+
+        @Override
+        public Integer visit(EAdd p, Integer dest) {
+            if (isDouble(p)){
+                int a = left(p.exp_1, p.exp_2, true);
+                int b = compileDouble(p.exp_2, -1);
+                int d = doubleDest(dest);
+                emit(p.addop_ instanceof OPlus ? RegisterVM.DADD : RegisterVM.DSUB, d, a, b);
+                return d;
+            }
+            int a = left(p.exp_1, p.exp_2, false);
+            if (p.exp_2 instanceof EInt){
+                int d = intDest(dest);
+                emit(p.addop_ instanceof OPlus ? RegisterVM.IADDK : RegisterVM.ISUBK, d, a, ((EInt) p.exp_2).integer_);
+                return d;
+            }
+            int b = compile(p.exp_2, -1);
+            int d = intDest(dest);
+            emit(p.addop_ instanceof OPlus ? RegisterVM.IADD : RegisterVM.ISUB, d, a, b);
+            return d;
+        }
+
+        @Override
+        public Integer visit(ECmp p, Integer dest) {
+            boolean doubles = isDouble(p.exp_1) || isDouble(p.exp_2);
+            int a = left(p.exp_1, p.exp_2, doubles);
+            int b = doubles ? compileDouble(p.exp_2, -1) : compile(p.exp_2, -1);
+            int d = intDest(dest);
+            int opcode = (doubles ? RegisterVM.DLT : RegisterVM.ILT) + comparison(p.cmpop_);
+            emit(opcode, d, a, b);
+            return d;
+        }
+
+        @Override
+        public Integer visit(EAnd p, Integer dest) {
+            return value(p);
+        }
+
+        @Override
+        public Integer visit(EOr p, Integer dest) {
+            return value(p);
+        }
+
+        //the value of a condition, computed with jumps. It goes to a temporary, because the operands may still read
+        //the destination.
+        private Integer value(Exp p) {
+            int d = newInt();
+            ArrayList<Integer> otherwise = jumpIf(p, false);
+            emit(RegisterVM.ICONST, d, 1);
+            ArrayList<Integer> end = new ArrayList<>();
+            end.add(emitJump(RegisterVM.JMP));
+            patch(otherwise, length);
+            emit(RegisterVM.ICONST, d, 0);
+            patch(end, length);
+            return d;
+        }
+
+        @Override
+        public Integer visit(EAss p, Integer dest) {
+            return assign(fun.slot(p), p.exp_);
+        }
+
+        @Override
+        public Integer visit(ETyped p, Integer dest) {
+            return convert(p, p.exp_, dest);
+        }
+
+        @Override
+        public Integer visit(EConv p, Integer dest) {
+            return convert(p, p.exp_, dest);
+        }
+
+        private Integer convert(Exp p, Exp inner, Integer dest) {
+            if (isDouble(p)){
+                return compileDouble(inner, dest);
+            } else if (isDouble(inner)){
+                int r = compile(inner, -1);
+                int d = intDest(dest);
+                emit(RegisterVM.D2I, d, r);
+                return d;
+            }
+            return compile(inner, dest);
+        }
+    }
+}
@@ -0,0 +1,479 @@
+import cmm.Absyn.*;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+//A second execution engine. Instead of visiting the syntax tree every time a statement runs, every function is
+//translated once into a tree of closures. The operator, the types of the operands and the slots of the variables are
+//all decided when the closure is built, so running it does no visitor dispatch, no instanceof tests on operators
+//and no lookups in the side tables.
+public class ClosureCompiler {
+
+    //an expression of type int
+    public interface IntNode {
+        int eval(Frame f);
+    }
+
+    //an expression of type double
+    public interface DoubleNode {
+        double eval(Frame f);
+    }
+
+    //an expression of type bool
+    public interface BoolNode {
+        boolean eval(Frame f);
+    }
+
+    //an expression of type void, i.e. a call to a void function
+    public interface VoidNode {
+        void eval(Frame f);
+    }
+
+    //a statement. exec returns true when a return statement has been executed, the value is then in the frame.
+    public interface StmNode {
+        boolean exec(Frame f);
+    }
+
+    //evaluates one argument of a call in the frame of the caller and stores it in a parameter slot of the callee
+    public interface ArgNode {
+        void store(Frame caller, Frame callee);
+    }
+
+    //a compiled function
+    public static class Function {
+        public String id;
+        public Resolver.FunInfo layout;
+        public StmNode[] body;
+
+        public Function(String id, Resolver.FunInfo layout){
+            this.id = id;
+            this.layout = layout;
+        }
+
+        //run the body in a frame that already holds the arguments, and return the frame with the return value
+        public Frame invoke(Frame frame){
+            for (StmNode stm : body){
+                if (stm.exec(frame)){
+                    break;
+                }
+            }
+            return frame;
+        }
+
+        public Frame call(Frame caller, ArgNode[] args){
+            Frame frame = new Frame(layout.frameSize);
+            for (ArgNode arg : args){
+                arg.store(caller, frame);
+            }
+            return invoke(frame);
+        }
+    }
+
+    IdentityHashMap<Exp, TypeChecker.TypeCode> codes = new IdentityHashMap<>();
+    HashMap<String, Function> functions = new HashMap<>();
+
+    public ClosureCompiler(IdentityHashMap<Exp, Type> expTypes){
+        for (Map.Entry<Exp, Type> entry : expTypes.entrySet()){
+            codes.put(entry.getKey(), TypeChecker.typeCode(entry.getValue()));
+        }
+    }
+
+    public HashMap<String, Function> compile(Program p){
+        HashMap<String, Resolver.FunInfo> layouts = new Resolver().resolve(p);
+        //create all the functions first, so that a call can be linked to a function that has not been compiled yet
+        for (Resolver.FunInfo layout : layouts.values()){
+            functions.put(layout.dFun.id_, new Function(layout.dFun.id_, layout));
+        }
+        for (Function function : functions.values()){
+            ListStm stms = function.layout.dFun.liststm_;
+            function.body = new StmNode[stms.size()];
+            int i = 0;
+            for (Stm stm : stms){
+                function.body[i] = stm.accept(new CompileStm(), function.layout);
+                i++;
+            }
+        }
+        return functions;
+    }
+
+    public void interpret(Program p){
+        Function main = compile(p).get("main");
+        main.invoke(new Frame(main.layout.frameSize));
+    }
+
+    public TypeChecker.TypeCode code(Exp e){
+        return codes.get(e);
+    }
+
+    public Object compile(Exp e, Resolver.FunInfo fun){
+        return e.accept(new CompileExp(), fun);
+    }
+
+    public IntNode compileInt(Exp e, Resolver.FunInfo fun){
+        return (IntNode) compile(e, fun);
+    }
+
+    public BoolNode compileBool(Exp e, Resolver.FunInfo fun){
+        return (BoolNode) compile(e, fun);
+    }
+
+    //compile an expression of type int or double to a node that gives a double. This is where int values
+    //are converted on the mixed path.
+    public DoubleNode compileDouble(Exp e, Resolver.FunInfo fun){
+        if (code(e) == TypeChecker.TypeCode.CInt){
+            IntNode n = compileInt(e, fun);
+            return f -> n.eval(f);
+        }
+        return (DoubleNode) compile(e, fun);
+    }
+
+    //compile an expression whose value is thrown away
+    public StmNode compileEffect(Exp e, Resolver.FunInfo fun){
+        return discard(compile(e, fun));
+    }
+
+    //turn an expression node into a statement that throws the value away
+    public StmNode discard(Object node){
+        if (node instanceof IntNode){
+            IntNode n = (IntNode) node;
+            return f -> { n.eval(f); return false; };
+        } else if (node instanceof DoubleNode){
+            DoubleNode n = (DoubleNode) node;
+            return f -> { n.eval(f); return false; };
+        } else if (node instanceof BoolNode){
+            BoolNode n = (BoolNode) node;
+            return f -> { n.eval(f); return false; };
+        } else {
+            VoidNode n = (VoidNode) node;
+            return f -> { n.eval(f); return false; };
+        }
+    }
+
+    //compile the code that stores the value of an expression in a variable, and gives the stored value
+    public Object compileStore(int slot, Exp e, Resolver.FunInfo fun){
+        if (fun.isDouble(slot)){
+            DoubleNode n = compileDouble(e, fun);
+            return (DoubleNode) f -> { double v = n.eval(f); f.setDouble(slot, v); return v; };
+        } else if (fun.slotTypes.get(slot) instanceof Type_bool){
+            BoolNode n = compileBool(e, fun);
+            return (BoolNode) f -> { boolean v = n.eval(f); f.setLong(slot, v ? 1 : 0); return v; };
+        } else {
+            IntNode n = compileInt(e, fun);
+            return (IntNode) f -> { int v = n.eval(f); f.setLong(slot, v); return v; };
+        }
+    }
+
+    private class CompileStm implements Stm.Visitor<StmNode, Resolver.FunInfo> {
+
+        @Override
+        public StmNode visit(SExp p, Resolver.FunInfo arg) {
+            return compileEffect(p.exp_, arg);
+        }
+
+        @Override
+        public StmNode visit(SDecls p, Resolver.FunInfo arg) {
+            int[] slots = arg.declSlots.get(p);
+            return f -> {
+                for (int slot : slots){
+                    f.declare(slot);
+                }
+                return false;
+            };
+        }
+
+        @Override
+        public StmNode visit(SInit p, Resolver.FunInfo arg) {
+            int slot = arg.slot(p);
+            StmNode store = discard(compileStore(slot, p.exp_, arg));
+            //declare first, so that int x = x; reads an uninitialized variable.
+            return f -> {
+                f.declare(slot);
+                return store.exec(f);
+            };
+        }
+
+        @Override
+        public StmNode visit(SReturn p, Resolver.FunInfo arg) {
+            Type returnType = arg.dFun.type_;
+            if (returnType instanceof Type_double){
+                DoubleNode n = compileDouble(p.exp_, arg);
+                return f -> { f.returnDouble = n.eval(f); return true; };
+            } else if (returnType instanceof Type_bool){
+                BoolNode n = compileBool(p.exp_, arg);
+                return f -> { f.returnLong = n.eval(f) ? 1 : 0; return true; };
+            } else if (returnType instanceof Type_int){
+                IntNode n = compileInt(p.exp_, arg);
+                return f -> { f.returnLong = n.eval(f); return true; };
+            } else {
+                StmNode n = compileEffect(p.exp_, arg);
+                return f -> { n.exec(f); return true; };
+            }
+        }
+
+        @Override
+        public StmNode visit(SWhile p, Resolver.FunInfo arg) {
+            BoolNode condition = compileBool(p.exp_, arg);
+            StmNode body = p.stm_.accept(this, arg);
+            return f -> {
+                while (condition.eval(f)){
+                    if (body.exec(f)){
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+
+        @Override
+        public StmNode visit(SBlock p, Resolver.FunInfo arg) {
+            StmNode[] stms = new StmNode[p.liststm_.size()];
+            int i = 0;
+            for (Stm stm : p.liststm_){
+                stms[i] = stm.accept(this, arg);
+                i++;
+            }
+            return f -> {
+                for (StmNode stm : stms){
+                    if (stm.exec(f)){
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+
+        @Override
+        public StmNode visit(SIfElse p, Resolver.FunInfo arg) {
+            BoolNode condition = compileBool(p.exp_, arg);
+            StmNode stm1 = p.stm_1.accept(this, arg);
+            StmNode stm2 = p.stm_2.accept(this, arg);
+            return f -> condition.eval(f) ? stm1.exec(f) : stm2.exec(f);
+        }
+    }
+
+    private class CompileExp implements Exp.Visitor<Object, Resolver.FunInfo> {
+
+        @Override
+        public Object visit(EBool p, Resolver.FunInfo arg) {
+            boolean value = p.boollit_ instanceof LTrue;
+            return (BoolNode) f -> value;
+        }
+
+        @Override
+        public Object visit(EInt p, Resolver.FunInfo arg) {
+            int value = p.integer_;
+            return (IntNode) f -> value;
+        }
+
+        @Override
+        public Object visit(EDouble p, Resolver.FunInfo arg) {
+            double value = p.double_;
+            return (DoubleNode) f -> value;
+        }
+
+        @Override
+        public Object visit(EId p, Resolver.FunInfo arg) {
+            int slot = arg.slot(p);
+            Type t = arg.slotTypes.get(slot);
+            if (t instanceof Type_double){
+                return (DoubleNode) f -> f.getDouble(slot);
+            } else if (t instanceof Type_bool){
+                return (BoolNode) f -> f.getLong(slot) != 0;
+            } else {
+                return (IntNode) f -> (int) f.getLong(slot);
+            }
+        }
+
+        @Override
+        public Object visit(EApp p, Resolver.FunInfo arg) {
+            if (p.id_.equals("printInt")){
+                IntNode n = compileInt(p.listexp_.get(0), arg);
+                return (VoidNode) f -> Builtins.printInt(n.eval(f));
+            } else if (p.id_.equals("printDouble")){
+                DoubleNode n = compileDouble(p.listexp_.get(0), arg);
+                return (VoidNode) f -> Builtins.printDouble(n.eval(f));
+            } else if (p.id_.equals("readInt")){
+                return (IntNode) f -> Builtins.readInt();
+            } else if (p.id_.equals("readDouble")){
+                return (DoubleNode) f -> Builtins.readDouble();
+            }
+            //the call site is linked to the function once, when it is compiled
+            Function callee = functions.get(p.id_);
+            Resolver.FunInfo layout = callee.layout;
+            ArgNode[] args = new ArgNode[p.listexp_.size()];
+            for (int i = 0; i < args.length; i++){
+                int slot = i;
+                Exp exp = p.listexp_.get(i);
+                Type t = layout.slotTypes.get(i);
+                if (t instanceof Type_double){
+                    DoubleNode n = compileDouble(exp, arg);
+                    args[i] = (caller, frame) -> frame.setDouble(slot, n.eval(caller));
+                } else if (t instanceof Type_bool){
+                    BoolNode n = compileBool(exp, arg);
+                    args[i] = (caller, frame) -> frame.setLong(slot, n.eval(caller) ? 1 : 0);
+                } else {
+                    IntNode n = compileInt(exp, arg);
+                    args[i] = (caller, frame) -> frame.setLong(slot, n.eval(caller));
+                }
+            }
+            Type returnType = layout.dFun.type_;
+            if (returnType instanceof Type_double){
+                return (DoubleNode) f -> callee.call(f, args).returnDouble;
+            } else if (returnType instanceof Type_bool){
+                return (BoolNode) f -> callee.call(f, args).returnLong != 0;
+            } else if (returnType instanceof Type_int){
+                return (IntNode) f -> (int) callee.call(f, args).returnLong;
+            } else {
+                return (VoidNode) f -> callee.call(f, args);
+            }
+        }
+
+        @Override
+        public Object visit(EPost p, Resolver.FunInfo arg) {
+            int slot = arg.slot(p);
+            int delta = p.incdecop_ instanceof OInc ? 1 : -1;
+            if (arg.isDouble(slot)){
+                return (DoubleNode) f -> { double v = f.getDouble(slot); f.setDouble(slot, v + delta); return v; };
+            } else {
+                return (IntNode) f -> { int v = (int) f.getLong(slot); f.setLong(slot, v + delta); return v; };
+            }
+        }
+
+        @Override
+        public Object visit(EPre p, Resolver.FunInfo arg) {
+            int slot = arg.slot(p);
+            int delta = p.incdecop_ instanceof OInc ? 1 : -1;
+            if (arg.isDouble(slot)){
+                return (DoubleNode) f -> { double v = f.getDouble(slot) + delta; f.setDouble(slot, v); return v; };
+            } else {
+                return (IntNode) f -> { int v = (int) f.getLong(slot) + delta; f.setLong(slot, v); return v; };
+            }
+        }
+
+        @Override
+        public Object visit(EMul p, Resolver.FunInfo arg) {
+            boolean times = p.mulop_ instanceof OTimes;
+            if (code(p) == TypeChecker.TypeCode.CDouble){
+                DoubleNode a = compileDouble(p.exp_1, arg);
+                DoubleNode b = compileDouble(p.exp_2, arg);
+                if (times){
+                    return (DoubleNode) f -> a.eval(f) * b.eval(f);
+                }
+                return (DoubleNode) f -> a.eval(f) / b.eval(f);
+            } else {
+                IntNode a = compileInt(p.exp_1, arg);
+                IntNode b = compileInt(p.exp_2, arg);
+                if (times){
+                    return (IntNode) f -> a.eval(f) * b.eval(f);
+                }
+                return (IntNode) f -> a.eval(f) / b.eval(f);
+            }
+        }
+
+        @Override
+        public Object visit(EAdd p, Resolver.FunInfo arg) {
+            boolean plus = p.addop_ instanceof OPlus;
+            if (code(p) == TypeChecker.TypeCode.CDouble){
+                DoubleNode a = compileDouble(p.exp_1, arg);
+                DoubleNode b = compileDouble(p.exp_2, arg);
+                if (plus){
+                    return (DoubleNode) f -> a.eval(f) + b.eval(f);
+                }
+                return (DoubleNode) f -> a.eval(f) - b.eval(f);
+            } else {
+                IntNode a = compileInt(p.exp_1, arg);
+                IntNode b = compileInt(p.exp_2, arg);
+                if (plus){
+                    return (IntNode) f -> a.eval(f) + b.eval(f);
+                }
+                return (IntNode) f -> a.eval(f) - b.eval(f);
+            }
+        }
+
+        @Override
+        public Object visit(ECmp p, Resolver.FunInfo arg) {
+            TypeChecker.TypeCode t1 = code(p.exp_1);
+            TypeChecker.TypeCode t2 = code(p.exp_2);
+            CmpOp op = p.cmpop_;
+            if (t1 == TypeChecker.TypeCode.CBool){
+                BoolNode a = compileBool(p.exp_1, arg);
+                BoolNode b = compileBool(p.exp_2, arg);
+                if (op instanceof OEq){
+                    return (BoolNode) f -> a.eval(f) == b.eval(f);
+                }
+                return (BoolNode) f -> a.eval(f) != b.eval(f);
+            } else if (t1 == TypeChecker.TypeCode.CInt && t2 == TypeChecker.TypeCode.CInt){
+                IntNode a = compileInt(p.exp_1, arg);
+                IntNode b = compileInt(p.exp_2, arg);
+                if (op instanceof OLt){
+                    return (BoolNode) f -> a.eval(f) < b.eval(f);
+                } else if (op instanceof OGt){
+                    return (BoolNode) f -> a.eval(f) > b.eval(f);
+                } else if (op instanceof OLtEq){
+                    return (BoolNode) f -> a.eval(f) <= b.eval(f);
+                } else if (op instanceof OGtEq){
+                    return (BoolNode) f -> a.eval(f) >= b.eval(f);
+                } else if (op instanceof OEq){
+                    return (BoolNode) f -> a.eval(f) == b.eval(f);
+                }
+                return (BoolNode) f -> a.eval(f) != b.eval(f);
+            } else {
+                //Double.compare gives the same result as the compareTo and equals used by the tree-walking interpreter
+                DoubleNode a = compileDouble(p.exp_1, arg);
+                DoubleNode b = compileDouble(p.exp_2, arg);
+                if (op instanceof OLt){
+                    return (BoolNode) f -> Double.compare(a.eval(f), b.eval(f)) < 0;
+                } else if (op instanceof OGt){
+                    return (BoolNode) f -> Double.compare(a.eval(f), b.eval(f)) > 0;
+                } else if (op instanceof OLtEq){
+                    return (BoolNode) f -> Double.compare(a.eval(f), b.eval(f)) <= 0;
+                } else if (op instanceof OGtEq){
+                    return (BoolNode) f -> Double.compare(a.eval(f), b.eval(f)) >= 0;
+                } else if (op instanceof OEq){
+                    return (BoolNode) f -> Double.compare(a.eval(f), b.eval(f)) == 0;
+                }
+                return (BoolNode) f -> Double.compare(a.eval(f), b.eval(f)) != 0;
+            }
+        }
+
+        @Override
+        public Object visit(EAnd p, Resolver.FunInfo arg) {
+            BoolNode a = compileBool(p.exp_1, arg);
+            BoolNode b = compileBool(p.exp_2, arg);
+            return (BoolNode) f -> a.eval(f) && b.eval(f);
+        }
+
+        @Override
+        public Object visit(EOr p, Resolver.FunInfo arg) {
+            BoolNode a = compileBool(p.exp_1, arg);
+            BoolNode b = compileBool(p.exp_2, arg);
+            return (BoolNode) f -> a.eval(f) || b.eval(f);
+        }
+
+        @Override
+        public Object visit(EAss p, Resolver.FunInfo arg) {
+            return compileStore(arg.slot(p), p.exp_, arg);
+        }
+
+        @Override
+        public Object visit(ETyped p, Resolver.FunInfo arg) {
+            return convert(p, p.exp_, arg);
+        }
+
+        @Override
+        public Object visit(EConv p, Resolver.FunInfo arg) {
+            return convert(p, p.exp_, arg);
+        }
+
+        private Object convert(Exp p, Exp inner, Resolver.FunInfo arg) {
+            if (code(p) == TypeChecker.TypeCode.CDouble){
+                return compileDouble(inner, arg);
+            } else if (code(p) == TypeChecker.TypeCode.CInt && code(inner) == TypeChecker.TypeCode.CDouble){
+                DoubleNode n = compileDouble(inner, arg);
+                return (IntNode) f -> (int) n.eval(f);
+            }
+            return compile(inner, arg);
+        }
+    }
+}
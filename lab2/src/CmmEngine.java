@@ -0,0 +1,133 @@
+import cmm.Absyn.*;
+import cmm.Yylex;
+import cmm.parser;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+//A C-- program that can be called from Java code, for services that run C-- routines many times:
+//
+//    CmmEngine engine = CmmEngine.load(source);
+//    int n = (Integer) engine.call("fib", 30);
+//
+//load parses and type checks the program once, and the Interpreter prepares it once. After that, the functions of
+//the program can be called any number of times, from any number of threads. The engine does not change after it is
+//loaded. Every thread has its own environment for its calls, which it keeps between them.
+//
+//The arguments and results are Integer, Double and Boolean, and a void function returns null. An int argument can be
+//given for a double parameter. By default printInt, printDouble, readInt and readDouble use the standard input and
+//output, through a BufferedIO of the calling thread, so the output of a call is printed in one piece when it returns.
+//A call can be given its own Builtins.IO instead. The IO must not call the engine again from the same thread.
+public final class CmmEngine {
+
+    private final Program program;
+    private final Map<String, DFun> functions;
+    private final Interpreter interpreter;
+    private final ThreadLocal<Interpreter.Env> envs;
+    private static final ThreadLocal<BufferedIO> standard =
+            ThreadLocal.withInitial(() -> new BufferedIO(System.in, System.out));
+
+    private CmmEngine(Program program) {
+        this.program = program;
+        HashMap<String, DFun> functions = new HashMap<>();
+        for (Def def : ((PDefs) program).listdef_) {
+            DFun dFun = (DFun) def;
+            functions.put(dFun.id_, dFun);
+        }
+        this.functions = Collections.unmodifiableMap(functions);
+        this.interpreter = new Interpreter();
+        interpreter.prepare(program);
+        this.envs = ThreadLocal.withInitial(() -> interpreter.newEnv(Builtins.STANDARD));
+    }
+
+    //throws an IllegalArgumentException if the program can not be parsed, and a TypeException if it is not type correct.
+    //Like every C-- program, it must have a main function.
+    public static CmmEngine load(String source) {
+        return load(new StringReader(source));
+    }
+
+    public static CmmEngine load(Reader source) {
+        Yylex l = null;
+        Program program;
+        try {
+            l = new Yylex(source);
+            program = new parser(l).pProgram();
+        } catch (Exception | Error e) {
+            //the lexer throws an Error on a character it does not know
+            if (l == null) {
+                throw new IllegalArgumentException("Can not read the program: " + e.getMessage(), e);
+            }
+            throw new IllegalArgumentException("Syntax error at line " + l.line_num() + ", near \"" + l.buff() + "\": "
+                    + e.getMessage(), e);
+        }
+        new TypeChecker().typecheck(program);
+        return new CmmEngine(program);
+    }
+
+    //the parsed program
+    public Program program() {
+        return program;
+    }
+
+    public Object call(String function, Object... arguments) {
+        return call(standard.get(), function, arguments);
+    }
+
+    //throws an IllegalArgumentException if the function does not exist or the arguments do not fit its parameters, and
+    //a RuntimeException if the call fails, e.g. because it reads a variable that has not been initialized. The IO is
+    //flushed when the call returns.
+    public Object call(Builtins.IO io, String function, Object... arguments) {
+        DFun dFun = functions.get(function);
+        if (dFun == null) {
+            throw new IllegalArgumentException("Function " + function + " is not defined");
+        }
+        if (arguments.length != dFun.listarg_.size()) {
+            throw new IllegalArgumentException("Function " + function + " takes " + dFun.listarg_.size()
+                    + " arguments, not " + arguments.length);
+        }
+        Val[] values = new Val[arguments.length];
+        int i = 0;
+        for (Arg a : dFun.listarg_) {
+            values[i] = toVal(((ADecl) a).type_, arguments[i]);
+            if (values[i] == null) {
+                throw new IllegalArgumentException("Argument " + (i + 1) + " of " + function + " has the wrong type: "
+                        + arguments[i]);
+            }
+            i++;
+        }
+        Interpreter.Env env = envs.get();
+        env.io = io;
+        try {
+            return fromVal(dFun.type_, interpreter.call(env, function, values));
+        } finally {
+            io.flush();
+        }
+    }
+
+    //the value of a Java argument, or null if it does not have the type of the parameter
+    static Val toVal(Type type, Object argument) {
+        if (type instanceof Type_int && argument instanceof Integer) {
+            return new VInteger((Integer) argument);
+        } else if (type instanceof Type_double && (argument instanceof Double || argument instanceof Integer)) {
+            return new VDouble(((Number) argument).doubleValue());
+        } else if (type instanceof Type_bool && argument instanceof Boolean) {
+            return (Boolean) argument ? Interpreter.True : Interpreter.False;
+        }
+        return null;
+    }
+
+    static Object fromVal(Type type, Val value) {
+        if (value == null || type instanceof Type_void) {
+            return null;
+        } else if (type instanceof Type_int) {
+            return ((VInteger) value).integer_;
+        } else if (type instanceof Type_double) {
+            return ((VDouble) value).double_;
+        } else {
+            return ((VBool) value).integer_ != 0;
+        }
+    }
+}
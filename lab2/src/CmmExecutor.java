@@ -0,0 +1,137 @@
+import cmm.Absyn.*;
+import cmm.Yylex;
+import cmm.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+//Runs many independent C-- programs at the same time in one JVM, e.g. to grade submissions:
+//
+//    try (CmmExecutor executor = new CmmExecutor()) {
+//        Future<CmmExecutor.Result> result = executor.submit(source, input);
+//        ...
+//    }
+//
+//Every run parses, type checks and interprets its program with its own Interpreter, and reads its input from and
+//writes its output to its own BufferedIO, so the runs do not share any state. The result of a run has the output, how
+//the run ended and how long it took, like running lab2 on the program.
+//
+//The runs are started on virtual threads when the JVM has them (Java 21 and later), and otherwise on a pool with one
+//thread per processor.
+public class CmmExecutor implements AutoCloseable {
+
+    //how a run ended, with the exit code that lab2 gives it
+    public enum Status {
+        OK(0), SYNTAX_ERROR(1), TYPE_ERROR(1), INTERPRETER_ERROR(-1);
+
+        public final int exitCode;
+
+        Status(int exitCode) {
+            this.exitCode = exitCode;
+        }
+    }
+
+    public static class Result {
+        public final Status status;
+        //what the program printed, also if it failed
+        public final String output;
+        //the error message if the run failed, otherwise null
+        public final String error;
+        //the time from the start of parsing to the end of the run
+        public final long nanos;
+
+        Result(Status status, String output, String error, long nanos) {
+            this.status = status;
+            this.output = output;
+            this.error = error;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return status + " in " + nanos / 1000000 + " ms" + (error == null ? "" : ": " + error);
+        }
+    }
+
+    private final ExecutorService threads;
+
+    public CmmExecutor() {
+        this.threads = newExecutorService();
+    }
+
+    //virtual threads are found by reflection, so that lab2 still compiles and runs on Java 17
+    static ExecutorService newExecutorService() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    public Future<Result> submit(String source, String input) {
+        return threads.submit(() -> run(source, input));
+    }
+
+    //run a program in the current thread
+    public static Result run(String source, String input) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Builtins.IO io = new BufferedIO(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), output);
+        Status status = Status.OK;
+        String error = null;
+        Program program = null;
+        Yylex l = null;
+        //a phase that fails is still recorded, up to the error
+        Metrics.PhaseEvent phase = Metrics.beginPhase("parse", null);
+        try {
+            l = new Yylex(new StringReader(source));
+            program = new parser(l).pProgram();
+        } catch (Throwable e) {
+            //the lexer throws an Error on a character it does not know
+            status = Status.SYNTAX_ERROR;
+            error = l == null ? e.toString() : "At line " + l.line_num() + ", near \"" + l.buff() + "\": " + e.getMessage();
+        } finally {
+            Metrics.endPhase(phase);
+        }
+        if (program != null) {
+            try {
+                phase = Metrics.beginPhase("typecheck", null);
+                new TypeChecker().typecheck(program);
+                Metrics.endPhase(phase);
+                phase = Metrics.beginPhase("execute", null);
+                new Interpreter().interpret(program, io);
+            } catch (TypeException e) {
+                status = Status.TYPE_ERROR;
+                error = e.toString();
+            } catch (RuntimeException e) {
+                status = Status.INTERPRETER_ERROR;
+                error = e.toString();
+            } catch (StackOverflowError e) {
+                status = Status.INTERPRETER_ERROR;
+                error = "Call stack overflow, the recursion is too deep for the Java stack";
+            } finally {
+                Metrics.endPhase(phase);
+            }
+        }
+        io.flush();
+        return new Result(status, output.toString(StandardCharsets.UTF_8), error, System.nanoTime() - start);
+    }
+
+    //wait for the submitted runs to finish. If the waiting thread is interrupted, it stops waiting and keeps its
+    //interrupt.
+    @Override
+    public void close() {
+        threads.shutdown();
+        try {
+            threads.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+//An activation frame with unboxed slots, used by the typed interpreters. The slot numbers are the ones given by the
+//Resolver. int and bool variables are kept in the long slots (a bool is 0 or 1), double variables in the double slots.
+public class Frame {
+
+    public long[] longs;
+    public double[] doubles;
+    //a variable that has been declared but not initialized can not be read
+    public boolean[] initialized;
+    //the value returned by the function that ran in this frame, for the engines that do not keep it in a register
+    public long returnLong;
+    public double returnDouble;
+
+    public Frame(int size){
+        longs = new long[size];
+        doubles = new double[size];
+        initialized = new boolean[size];
+    }
+
+    public long getLong(int slot){
+        if (!initialized[slot]){
+            throw new RuntimeException("Variable has not been initialized");
+        }
+        return longs[slot];
+    }
+
+    public double getDouble(int slot){
+        if (!initialized[slot]){
+            throw new RuntimeException("Variable has not been initialized");
+        }
+        return doubles[slot];
+    }
+
+    public void setLong(int slot, long value){
+        longs[slot] = value;
+        initialized[slot] = true;
+    }
+
+    public void setDouble(int slot, double value){
+        doubles[slot] = value;
+        initialized[slot] = true;
+    }
+
+    public void declare(int slot){
+        initialized[slot] = false;
+    }
+}
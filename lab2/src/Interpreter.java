@@ -3,17 +3,91 @@ import cmm.Yylex;
 import cmm.parser;
 
 import java.io.FileReader;
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Scanner;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 
 public class Interpreter {
 
-    Scanner scanner = new Scanner(System.in);
+    //compiles the hot functions, or null if everything is interpreted
+    Jit jit;
+
+    public Interpreter() {
+    }
+
+    public Interpreter(Jit jit) {
+        this.jit = jit;
+    }
+
+    //caches the results of the pure functions, or null if every call is run
+    Memo memo;
+    HashSet<String> pure = new HashSet<>();
+
+    public Interpreter(Memo memo) {
+        this.memo = memo;
+    }
+
+    //records the calls and statements, or null if the program is not profiled. The visitors that record them are only
+    //used when profiling, so the interpreter does not pay for it otherwise.
+    Profiler profiler;
+
+    public Interpreter(Profiler profiler) {
+        this.profiler = profiler;
+        this.statements = new ProfilingStmValue();
+        this.expressions = new ProfilingExpValue();
+    }
+
+    //the program whose function bodies are parsed and checked by their first call, or null if all of them have been
+    LazyProgram lazy;
+
+    public Interpreter(LazyProgram lazy) {
+        this.lazy = lazy;
+    }
+
+    //the calls in tail position, which run in the frame of the call they are returned from (see SReturn)
+    Set<EApp> tailCalls = Collections.newSetFromMap(new IdentityHashMap<>());
 
     public void interpret(Program p) {
         //throw new RuntimeException("Not yet an interpreter");
+        interpret(p, Builtins.STANDARD);
+    }
+
+    //run the program with its own input and output
+    public void interpret(Program p, Builtins.IO io) {
+        prepare(p);
+        Env env = newEnv(io);
+
+        //evaluate the main function. The expression that calls the main function.
+        env.lookupFun("main");
+        env.enterFrame(layout(env, "main"));
+        if (profiler != null){
+            profiler.enter("main");
+        }
+        try {
+            for (Stm stm : env.fun.body){
+                Object value = stm.accept(statements,env);
+                if (value instanceof Val){
+                    break;
+                }
+            }
+        } finally {
+            if (profiler != null){
+                profiler.exit();
+            }
+        }
+    }
+
+    //the functions of the prepared program and their frame layouts. They are only read once the program is prepared,
+    //so the environments of many calls, also in different threads, can share them.
+    Env program;
+
+    //analyse the program once, so that its functions can then be called any number of times
+    public void prepare(Program p) {
         Env env = new Env();
         PDefs pDefs = (PDefs) p;
         //Add all function definitions to the environment. This includes the function argument list and function body
@@ -21,38 +95,93 @@ public class Interpreter {
             DFun dFun = (DFun) def;
             env.updateFun(dFun.id_,dFun);
         }
+        //give every variable in every function a fixed slot in the frame of its function. The functions of a lazy
+        //program only have their signatures yet, they are resolved by layout.
+        if (lazy == null){
+            env.layouts = new Resolver().resolve(p);
+        }
+        if (memo != null){
+            pure = Purity.pureFunctions(p);
+        }
+        //the profiler shows every call, so the calls in tail position are not replaced when profiling. The returns of
+        //main are left out, because main is run by this method and not by call.
+        if (lazy == null){
+            for (Resolver.FunInfo fun : env.layouts.values()){
+                findTailCalls(fun);
+            }
+        }
+        program = env;
+    }
 
-        //evaluate the main function. The expression that calls the main function.
-        DFun main = env.lookupFun("main");
-        for (Stm stm : main.liststm_){
-            Object value = stm.accept(new StmValue(),env);
-            if (value instanceof Val){
-                break;
+    //the calls are found in the resolved body, which is the one that runs
+    void findTailCalls(Resolver.FunInfo fun) {
+        if (profiler == null && !fun.dFun.id_.equals("main")){
+            for (Stm stm : fun.body){
+                stm.accept(new TailCalls(), tailCalls);
             }
         }
     }
 
+    //the frame layout of a function. The body of a function of a lazy program is parsed, checked and resolved the
+    //first time the function is called, and then takes the place of its signature.
+    Resolver.FunInfo layout(Env env, String id) {
+        Resolver.FunInfo fun = env.layouts.get(id);
+        if (fun == null && lazy != null){
+            DFun dFun = lazy.define(id);
+            fun = new Resolver().resolve(dFun);
+            findTailCalls(fun);
+            env.definitions.put(id, dFun);
+            env.layouts.put(id, fun);
+        }
+        return fun;
+    }
+
+    //a new environment for running the prepared program, with its own frames and input and output
+    public Env newEnv(Builtins.IO io) {
+        Env env = new Env();
+        env.definitions = program.definitions;
+        env.layouts = program.layouts;
+        env.io = io;
+        return env;
+    }
+
+    //call a function of the prepared program with arguments of the types of its parameters. The environment must not
+    //be in use by another call.
+    public Val call(Env env, String id, Val[] arguments) {
+        env.lookupFun(id);
+        //a call that failed may have left its frames on the stack
+        env.depth = 0;
+        Link link = new Link();
+        link.callee = layout(env, id);
+        Val[] frame = env.pushFrame(link.callee.frameSize);
+        for (int i = 0; i < arguments.length; i++){
+            frame[i] = link.callee.isDouble(i) ? castToDouble(arguments[i]) : arguments[i];
+        }
+        return expressions.call(link, frame, env);
+    }
+
 
 
     public static class Env{
 
-        //for each variable in each context, store its value
-        public LinkedList<HashMap<String,Val>> contexts = new LinkedList<>();
+        //the frame of the function that is currently executing. Every variable of the function has its own slot,
+        //which was given to it by the Resolver, so looking up a variable does not depend on how deep the blocks are nested.
+        public Val[] frame;
+        //the frame layout of the function that is currently executing
+        public Resolver.FunInfo fun;
+        //the frame layout of every function
+        public HashMap<String,Resolver.FunInfo> layouts = new HashMap<>();
         //Store function definition(function signature + function body)
         public HashMap<String,DFun> definitions = new HashMap<>();
+        //what printInt, printDouble, readInt and readDouble read and write
+        public Builtins.IO io = Builtins.STANDARD;
 
-        public Val lookupVar(String id){
-            for (HashMap<String,Val> context : contexts){
-                if (context.containsKey(id)){
-                    if (context.get(id) == null){
-                        throw new RuntimeException("Variable has not been initialized");
-                    } else {
-                        return context.get(id);
-                    }
-                }
+        public Val lookupVar(int slot){
+            Val value = frame[slot];
+            if (value == null){
+                throw new RuntimeException("Variable has not been initialized");
             }
-            //this will not happen, because type-checking will find first if the variable has not been declared.
-            throw new RuntimeException("Variable has not been declared");
+            return value;
         }
 
         public DFun lookupFun(String id){
@@ -62,29 +191,19 @@ public class Interpreter {
             throw new RuntimeException("Function with id " + id + " has not been defined");
         }
 
-        //this function is necessary for initializing a new variable
-        public void updateVar(String id, Val value){
-            if (contexts.isEmpty()){
-               newBlock();
-            }
-            contexts.get(0).put(id,value);
-        }
-
-        public int contextNr(String id){
-            for (int i=0;i<contexts.size();i++){
-                HashMap<String,Val> context = contexts.get(i);
-                if (context.containsKey(id)){
-                    return i;
-                }
+        //this function is used both for initializing a new variable and for updating the value of an existing variable
+        public void updateVar(int slot, Val value){
+            if (fun.isDouble(slot)) {
+                frame[slot] = castToDouble(value);
+            } else {
+                frame[slot] = value;
             }
-            return 0;
         }
 
-        public void declareVar(String id){
-            if (contexts.isEmpty()){
-                newBlock();
-            }
-            contexts.get(0).put(id,null);
+        //declare the var, but do not initialize it with a value. This also resets a variable declared inside a loop body
+        //to uninitialized in every iteration.
+        public void declareVar(int slot){
+            frame[slot] = null;
         }
 
 
@@ -96,24 +215,46 @@ public class Interpreter {
             }
         }
 
+        //the call sites that have been linked to the function they call
+        public IdentityHashMap<EApp,Link> links = new IdentityHashMap<>();
+        //the frames of the active calls. A frame is kept when its call returns and reused by the next call at the same
+        //depth. The old values in it do no harm: a variable is set to null when it is declared, and a parameter is set
+        //by the call.
+        public Val[][] frames = new Val[64][];
+        public int depth = 0;
 
-
-        //this function is necessary for updating the value of an existing variable
-        public void updateVarInContext(String id, int contextNr, Val value){
-            Val oldVal = contexts.get(contextNr).get(id);
-            if (oldVal instanceof VDouble) {
-                contexts.get(contextNr).put(id, castToDouble(value));
-            } else {
-                contexts.get(contextNr).put(id,value);
+        public Val[] pushFrame(int size){
+            if (depth == frames.length){
+                frames = Arrays.copyOf(frames, 2 * frames.length);
+            }
+            Val[] frame = frames[depth];
+            if (frame == null || frame.length < size){
+                frame = new Val[size];
+                frames[depth] = frame;
             }
+            depth++;
+            return frame;
         }
 
-        public void newBlock(){
-            this.contexts.addFirst(new HashMap<String,Val>());
+        public void popFrame(){
+            depth--;
         }
 
-        public void exitBlock(){
-            this.contexts.pop();
+        //the call in tail position that the function that has just returned TAIL_CALL asked for
+        public Link tailCall;
+
+        //let the frame on top of the stack take the place of the frame below it. The frame below is kept for reuse.
+        public void replaceFrame(){
+            Val[] top = frames[depth - 1];
+            frames[depth - 1] = frames[depth - 2];
+            frames[depth - 2] = top;
+            depth--;
+        }
+
+        //start executing a function in a fresh frame
+        public void enterFrame(Resolver.FunInfo callee){
+            this.fun = callee;
+            this.frame = pushFrame(callee.frameSize);
         }
 
     }
@@ -123,16 +264,16 @@ public class Interpreter {
         @Override
         public Object visit(SExp p, Env arg) {
             //The expression is evaluated, but its value is ignored
-            p.exp_.accept(new ExpValue(),arg);
+            p.exp_.accept(expressions,arg);
             //the modified environment is returned.
             return arg;
         }
 
         @Override
         public Object visit(SDecls p, Env arg) {
-            for (String id : p.listid_){
+            for (int slot : ((Resolver.SlotDecls) p).slots){
                 //declare the var, but do not initialize it with a value.
-                arg.declareVar(id);
+                arg.declareVar(slot);
             }
             return arg;
         }
@@ -141,80 +282,91 @@ public class Interpreter {
         public Object visit(SInit p, Env arg) {
             //first declare the var so that it exists in the environment. This is necessary so that expressions such as
             //int x = x+5 will be invalidated.
-            arg.declareVar(p.id_);
-            if (p.type_ instanceof Type_double) {
-                //an expression like int x = x+1 will not be accepted because it will look for the value of x which will be null.
-                arg.updateVar(p.id_, castToDouble(p.exp_.accept(new ExpValue(), arg)));
-            } else {
-                arg.updateVar(p.id_,p.exp_.accept(new ExpValue(),arg));
-            }
+            int slot = ((Resolver.SlotInit) p).slot;
+            arg.declareVar(slot);
+            //an expression like int x = x+1 will not be accepted because it will look for the value of x which will be null.
+            //updateVar casts the value to double if the variable is of type double.
+            arg.updateVar(slot,p.exp_.accept(expressions,arg));
             return arg;
         }
 
         @Override
         public Object visit(SReturn p, Env arg) {
-            return p.exp_.accept(new ExpValue(),arg);
+            if (p.exp_ instanceof EApp){
+                EApp call = (EApp) p.exp_;
+                Link link = link(call, arg);
+                if (link.tail){
+                    //the arguments are evaluated into a new frame, which then takes the place of the frame of the
+                    //function that is running. The function returns, and call runs the called function in its loop,
+                    //so a chain of tail calls needs neither Java stack nor more frames.
+                    expressions.arguments(link, call, arg);
+                    arg.replaceFrame();
+                    arg.tailCall = link;
+                    return TAIL_CALL;
+                }
+            }
+            return p.exp_.accept(expressions,arg);
         }
 
         @Override
         public Object visit(SWhile p, Env arg) {
-            VBool vBool = (VBool) p.exp_.accept(new ExpValue(),arg);
-            if (vBool.equals(False)){
-                return arg;
-            } else {
-                arg.newBlock();
+            if (Metrics.enabled){
+                Metrics.LoopEvent event = Metrics.beginLoop(arg.fun.dFun.id_);
+                try {
+                    return loop(p, arg, event);
+                } finally {
+                    Metrics.endLoop(event);
+                }
+            }
+            return loop(p, arg, null);
+        }
+
+        //the event counts the iterations while a JFR recording is running, otherwise it is null
+        Object loop(SWhile p, Env arg, Metrics.LoopEvent event) {
+            //the loop is run by a Java loop instead of by recursion, so the number of iterations is not limited by the
+            //size of the Java stack. The Resolver has given the variables of the body their own slots, so an iteration
+            //does not need a new context either.
+            //the iterations count towards making the function hot, so that its next call is compiled
+            Jit.Counter counter = jit == null ? null : jit.counter(arg.fun.dFun.id_);
+            while (p.exp_.accept(expressions,arg).equals(True)){
+                if (counter != null){
+                    counter.count++;
+                }
+                if (event != null){
+                    event.iterations++;
+                }
                 Object rv = p.stm_.accept(this,arg);
-                if (rv instanceof Val){
-                    arg.exitBlock();
+                if (returned(rv)){
                     return rv;
                 }
-                arg.exitBlock();
-                p.accept(this,arg);
-            }
-/*            while (true) {
-                if (p.exp_.accept(new ExpValue(), arg).equals(True)) {
-                    arg.newBlock();
-                    p.stm_.accept(this, arg);
-                    arg.exitBlock();
-                } else {
-                    break;
-                }
-            }*/
+            }
             return arg;
         }
 
         @Override
         public Object visit(SBlock p, Env arg) {
-            arg.newBlock();
+            //no new context is needed for the block, the Resolver has already given the variables of the block their own slots.
             for (Stm stm : p.liststm_){
                 Object rv = stm.accept(this,arg);
-                if (rv instanceof Val){
-                    arg.exitBlock();
+                if (returned(rv)){
                     return rv;
                 }
             }
-            arg.exitBlock();
             return arg;
         }
 
         @Override
         public Object visit(SIfElse p, Env arg) {
-            if (p.exp_.accept(new ExpValue(),arg).equals(True)){
-                arg.newBlock();
+            if (p.exp_.accept(expressions,arg).equals(True)){
                 Object rv = p.stm_1.accept(this,arg);
-                if (rv instanceof Val){
-                    arg.exitBlock();
+                if (returned(rv)){
                     return rv;
                 }
-                arg.exitBlock();
             } else {
-                arg.newBlock();
                 Object rv = p.stm_2.accept(this,arg);
-                if (rv instanceof Val){
-                    arg.exitBlock();
+                if (returned(rv)){
                     return rv;
                 }
-                arg.exitBlock();
             }
         return arg;
         }
@@ -399,43 +551,132 @@ public class Interpreter {
         return null;
     }
 
-    //when we update a variable, using an expression, we must update the variable in the correct context.
+    //when we update a variable, using an expression, we must update the variable in its own slot.
     public void postVal(EPost p, Env arg){
-        Val value = arg.lookupVar(p.id_);
-        int contextNr = arg.contextNr(p.id_);
+        int slot = ((Resolver.SlotPost) p).slot;
+        Val value = arg.lookupVar(slot);
         if (p.incdecop_ instanceof OInc) {
             if (value instanceof VInteger) {
-                arg.updateVarInContext(p.id_,contextNr, new VInteger(((VInteger) value).integer_ + 1));
+                arg.updateVar(slot, new VInteger(((VInteger) value).integer_ + 1));
             } else if (value instanceof VDouble) {
-                arg.updateVarInContext(p.id_,contextNr, new VDouble(((VDouble) value).double_ + 1));
+                arg.updateVar(slot, new VDouble(((VDouble) value).double_ + 1));
             }
         } else {
             if (value instanceof VInteger) {
-                arg.updateVarInContext(p.id_,contextNr, new VInteger(((VInteger) value).integer_ - 1));
+                arg.updateVar(slot, new VInteger(((VInteger) value).integer_ - 1));
             } else if (value instanceof VDouble) {
-                arg.updateVarInContext(p.id_,contextNr, new VDouble(((VDouble) value).double_ - 1));
+                arg.updateVar(slot, new VDouble(((VDouble) value).double_ - 1));
             }
         }
     }
 
     public void preVal(EPre p, Env arg){
-        Val value = arg.lookupVar(p.id_);
-        int contextNr = arg.contextNr(p.id_);
+        int slot = ((Resolver.SlotPre) p).slot;
+        Val value = arg.lookupVar(slot);
         if (p.incdecop_ instanceof OInc) {
             if (value instanceof VInteger) {
-                arg.updateVarInContext(p.id_,contextNr, new VInteger(((VInteger) value).integer_ + 1));
+                arg.updateVar(slot, new VInteger(((VInteger) value).integer_ + 1));
             } else if (value instanceof VDouble) {
-                arg.updateVarInContext(p.id_,contextNr, new VDouble(((VDouble) value).double_ + 1));
+                arg.updateVar(slot, new VDouble(((VDouble) value).double_ + 1));
             }
         } else {
             if (value instanceof VInteger) {
-                arg.updateVarInContext(p.id_,contextNr, new VInteger(((VInteger) value).integer_ - 1));
+                arg.updateVar(slot, new VInteger(((VInteger) value).integer_ - 1));
             } else if (value instanceof VDouble) {
-                arg.updateVarInContext(p.id_,contextNr, new VDouble(((VDouble) value).double_ - 1));
+                arg.updateVar(slot, new VDouble(((VDouble) value).double_ - 1));
+            }
+        }
+    }
+
+    //call the compiled code of a function with the arguments in the first slots of the frame. Compiled code takes and
+    //returns plain Java values.
+    public Val callCompiled(MethodHandle compiled, DFun funDef, Val[] frame){
+        Object[] arguments = new Object[funDef.listarg_.size()];
+        int i = 0;
+        for (Arg a : funDef.listarg_){
+            Val value = frame[i];
+            if (((ADecl) a).type_ instanceof Type_double){
+                arguments[i] = castToDouble(value).double_;
+            } else if (value instanceof VBool){
+                arguments[i] = ((VBool) value).integer_;
+            } else {
+                arguments[i] = ((VInteger) value).integer_;
+            }
+            i++;
+        }
+        Object result = jit.invoke(compiled, arguments);
+        if (funDef.type_ instanceof Type_double){
+            return new VDouble((Double) result);
+        } else if (funDef.type_ instanceof Type_int){
+            return new VInteger((Integer) result);
+        } else if (funDef.type_ instanceof Type_bool){
+            return ((Integer) result) != 0 ? True : False;
+        }
+        return null;
+    }
+
+    //the built-in functions a call site can be linked to
+    static final int USER = 0;
+    static final int PRINT_INT = 1;
+    static final int PRINT_DOUBLE = 2;
+    static final int READ_INT = 3;
+    static final int READ_DOUBLE = 4;
+
+    //returned by a statement instead of a Val when it has set up a call in tail position
+    static final Object TAIL_CALL = new Object();
+
+    //whether the statement has returned from the function, either with a Val or with a call in tail position
+    static boolean returned(Object rv){
+        return rv instanceof Val || rv == TAIL_CALL;
+    }
+
+    //a call site, linked to the function it calls the first time it runs
+    public static class Link {
+        int builtin = USER;
+        //the frame layout and definition of the called function, if it is not built in
+        Resolver.FunInfo callee;
+        //the counter of the called function for the jit
+        Jit.Counter counter;
+        //whether the results of the called function are cached
+        boolean memoized;
+        //whether the call is in tail position and runs in the frame of the function it is returned from
+        boolean tail;
+    }
+
+    public Link link(EApp p, Env env){
+        Link link = env.links.get(p);
+        if (link == null){
+            link = new Link();
+            if (p.id_.equals("printInt")){
+                link.builtin = PRINT_INT;
+            } else if (p.id_.equals("printDouble")){
+                link.builtin = PRINT_DOUBLE;
+            } else if (p.id_.equals("readInt")){
+                link.builtin = READ_INT;
+            } else if (p.id_.equals("readDouble")){
+                link.builtin = READ_DOUBLE;
+            } else {
+                env.lookupFun(p.id_);
+                link.callee = layout(env, p.id_);
+                if (jit != null){
+                    link.counter = jit.counter(p.id_);
+                }
+                //return f(); of a void f is run as an ordinary call, the loop in call only chains functions with a result
+                link.tail = tailCalls.contains(p) && !(link.callee.dFun.type_ instanceof Type_void);
+                //a memoized call has to store its result when it returns, so it can not give its frame away. A call in
+                //tail position is not memoized, running in constant stack is worth more than a cache hit. A void
+                //function has no result to cache.
+                link.memoized = memo != null && pure.contains(p.id_) && !(link.callee.dFun.type_ instanceof Type_void)
+                        && !link.tail;
             }
+            env.links.put(p, link);
         }
+        return link;
     }
 
+    private StmValue statements = new StmValue();
+    private ExpValue expressions = new ExpValue();
+
     public static VBool True = new VBool(1);
     public static VBool False = new VBool(0);
 
@@ -462,76 +703,143 @@ public class Interpreter {
 
         @Override
         public Val visit(EId p, Env arg) {
-            return arg.lookupVar(p.id_);
+            return arg.lookupVar(((Resolver.SlotId) p).slot);
         }
 
         @Override
         public Val visit(EApp p, Env arg) {
-            Val rv = null;
-            if (p.id_.equals("printInt")){
-                VInteger vInteger = (VInteger) p.listexp_.get(0).accept(this,arg);
-                 System.out.printf("%d\n", vInteger.integer_);
-            } else if (p.id_.equals("printDouble")){
-                Val value = p.listexp_.get(0).accept(this,arg);
-                if (value instanceof VInteger) {
-                    VDouble dVal = castToDouble(value);
-                    System.out.println(dVal.double_);
-                } else {
-                    VDouble dVal = (VDouble) value;
-                    System.out.println(dVal.double_);
+            Link link = link(p, arg);
+            if (link.builtin != USER) {
+                return builtin(link, p, arg);
+            }
+            Val[] frame = arguments(link, p, arg);
+            if (Metrics.enabled) {
+                Metrics.CallEvent event = Metrics.beginCall(p.id_);
+                try {
+                    return call(link, frame, arg);
+                } finally {
+                    Metrics.endCall(event);
                 }
-            } else if (p.id_.equals("readInt")){
-                int result = scanner.nextInt();
-                return new VInteger(result);
-            } else if (p.id_.equals("readDouble")){
-                double result = scanner.nextDouble();
-                return new VDouble(result);
-            } else {
-                DFun funDef = arg.lookupFun(p.id_);
-                LinkedList<Val> values = new LinkedList<>();
-                for (int i = 0; i < p.listexp_.size(); i++) {
-                    Val value = p.listexp_.get(i).accept(this, arg);
-                    values.add(value);
+            }
+            return call(link, frame, arg);
+        }
+
+        Val builtin(Link link, EApp p, Env arg) {
+            //the argument is evaluated before the event begins, so that the event only measures the I/O, like a
+            //CallEvent that begins after the arguments of the call
+            Val value = p.listexp_.isEmpty() ? null : p.listexp_.get(0).accept(this,arg);
+            if (Metrics.enabled) {
+                Metrics.BuiltinEvent event = Metrics.beginBuiltin(p.id_);
+                try {
+                    return io(link, p, value, arg);
+                } finally {
+                    Metrics.endBuiltin(event);
                 }
-                arg.newBlock();
-                for (int i = 0; i < funDef.listarg_.size();i++){
-                    ADecl aDecl = (ADecl) funDef.listarg_.get(i);
-                    //cast the arguments to the function to type double if the function parameters are double and the arguments are of type int.
-                    if (aDecl.type_ instanceof Type_double && values.get(i) instanceof VInteger) {
-                        arg.updateVar(aDecl.id_, castToDouble(values.get(i)));
-                    } else {
-                        arg.updateVar(aDecl.id_, values.get(i));
+            }
+            return io(link, p, value, arg);
+        }
+
+        //the I/O of a built-in function whose argument, if it has one, has been evaluated
+        Val io(Link link, EApp p, Val value, Env arg) {
+            switch (link.builtin) {
+                case PRINT_INT:
+                    arg.io.printInt(((VInteger) value).integer_);
+                    return null;
+                case PRINT_DOUBLE:
+                    arg.io.printDouble(castToDouble(value).double_);
+                    return null;
+                case READ_INT:
+                    return new VInteger(arg.io.readInt());
+                case READ_DOUBLE:
+                    return new VDouble(arg.io.readDouble());
+            }
+            throw new RuntimeException("Function " + p.id_ + " is not built in");
+        }
+
+        //push the frame of a call and evaluate its arguments into it
+        Val[] arguments(Link link, EApp p, Env arg) {
+            Resolver.FunInfo callee = link.callee;
+            //the arguments are evaluated directly into the parameter slots of the new frame. The frame is taken
+            //before they are evaluated, so that calls in the arguments get frames of their own.
+            Val[] frame = arg.pushFrame(callee.frameSize);
+            int i = 0;
+            for (Exp exp : p.listexp_) {
+                Val value = exp.accept(this, arg);
+                //the parameters are in the first slots of the frame. An int argument of a double parameter is cast.
+                frame[i] = callee.isDouble(i) ? castToDouble(value) : value;
+                i++;
+            }
+            return frame;
+        }
+
+        //run a call of a function whose arguments are in the frame
+        Val call(Link link, Val[] frame, Env arg) {
+            Resolver.FunInfo callee = link.callee;
+            Memo.Key key = null;
+            if (link.memoized) {
+                key = memo.key(callee, frame, callee.dFun.listarg_.size());
+                Val cached = memo.get(key);
+                if (cached != null){
+                    arg.popFrame();
+                    return cached;
+                }
+            }
+            //remember the frame of the caller, so that it can be restored when the function returns
+            Val[] callerFrame = arg.frame;
+            Resolver.FunInfo caller = arg.fun;
+            Val rv = null;
+            //the result is cast to double if any function of a chain of tail calls returns a double
+            boolean returnsDouble = false;
+            //every iteration runs one function of a chain of tail calls, all in the same frame slot
+            while (true) {
+                DFun funDef = callee.dFun;
+                returnsDouble = returnsDouble || funDef.type_ instanceof Type_double;
+                if (link.counter != null) {
+                    MethodHandle compiled = jit.enter(link.counter, funDef.id_);
+                    if (compiled != null){
+                        rv = callCompiled(compiled, funDef, frame);
+                        break;
                     }
                 }
-                for (Stm stm : funDef.liststm_) {
+                arg.frame = frame;
+                arg.fun = callee;
+                Object val = null;
+                for (Stm stm : callee.body) {
                     //the statement visitor returns either an environment or a Val(in case there is a return statement)
-                    //the val can be either a value from an expression, such as a double, bool or int. SReturn return 4;
-                    //what happens if there is a return statement within a while loop? It will return. but will it exit the while loop?
-                    Object val = stm.accept(new StmValue(),arg);
+                    val = stm.accept(statements,arg);
+                    if (returned(val)){
+                        break;
+                    }
+                }
+                if (val != TAIL_CALL){
                     //check if the value returned is an instance of Val, in this case there was a return statement somewhere
                     if (val instanceof Val){
-                        arg.exitBlock();
-                        if (funDef.type_ instanceof Type_double && val instanceof VInteger) {
-                            return castToDouble((Val) val);
-                        } else {
-                            return (Val) val;
-                        }
+                        rv = (Val) val;
                     }
-                    /*if (stm instanceof SReturn) {
-                        rv = ((SReturn) stm).exp_.accept(new ExpValue(), arg);
-                        break;
-                    } else {
-                        stm.accept(new StmValue(), arg);
-                    }*/
+                    break;
+                }
+                link = arg.tailCall;
+                callee = link.callee;
+                if (Metrics.enabled){
+                    Metrics.countCall(callee.dFun.id_);
                 }
-                arg.exitBlock();
+                frame = arg.frames[arg.depth - 1];
+            }
+            if (returnsDouble && rv instanceof VInteger) {
+                rv = castToDouble(rv);
+            }
+            arg.frame = callerFrame;
+            arg.fun = caller;
+            arg.popFrame();
+            if (key != null){
+                memo.put(key, rv);
             }
             return rv;
         }
 
         @Override
         public Val visit(EPost p, Env arg) {
-            Val value = arg.lookupVar(p.id_);
+            Val value = arg.lookupVar(((Resolver.SlotPost) p).slot);
             postVal(p,arg);
             return value;
         }
@@ -539,7 +847,7 @@ public class Interpreter {
         @Override
         public Val visit(EPre p, Env arg) {
             preVal(p,arg);
-            return arg.lookupVar(p.id_);
+            return arg.lookupVar(((Resolver.SlotPre) p).slot);
         }
 
         @Override
@@ -584,11 +892,11 @@ public class Interpreter {
 
         @Override
         public Val visit(EAss p, Env arg) {
-            //assign the value of the variable to the innermost occurrence of the id. This could be the current scope or a parent scope.
+            //assign the value to the innermost occurrence of the id. The Resolver has already found the slot of that occurrence.
             Val value = p.exp_.accept(this,arg);
-            int contextNr = arg.contextNr(p.id_);
-            arg.updateVarInContext(p.id_,contextNr,value);
-            return value;
+            int slot = ((Resolver.SlotAss) p).slot;
+            arg.updateVar(slot,value);
+            return arg.lookupVar(slot);
         }
 
         @Override
@@ -602,4 +910,111 @@ public class Interpreter {
         }
     }
 
-}
\ No newline at end of file
+
+    //counts every statement that is executed
+    private class ProfilingStmValue extends StmValue {
+
+        @Override
+        public Object visit(SExp p, Env arg) {
+            profiler.statement(p);
+            return super.visit(p, arg);
+        }
+
+        @Override
+        public Object visit(SDecls p, Env arg) {
+            profiler.statement(p);
+            return super.visit(p, arg);
+        }
+
+        @Override
+        public Object visit(SInit p, Env arg) {
+            profiler.statement(p);
+            return super.visit(p, arg);
+        }
+
+        @Override
+        public Object visit(SReturn p, Env arg) {
+            profiler.statement(p);
+            return super.visit(p, arg);
+        }
+
+        @Override
+        public Object visit(SWhile p, Env arg) {
+            profiler.statement(p);
+            return super.visit(p, arg);
+        }
+
+        @Override
+        public Object visit(SBlock p, Env arg) {
+            profiler.statement(p);
+            return super.visit(p, arg);
+        }
+
+        @Override
+        public Object visit(SIfElse p, Env arg) {
+            profiler.statement(p);
+            return super.visit(p, arg);
+        }
+    }
+
+    //measures every call of a function. lab2 does not combine --profile with --memo or --jit, so every call is interpreted.
+    private class ProfilingExpValue extends ExpValue {
+
+        @Override
+        Val call(Link link, Val[] frame, Env arg) {
+            profiler.enter(link.callee.dFun.id_);
+            try {
+                return super.call(link, frame, arg);
+            } finally {
+                profiler.exit();
+            }
+        }
+    }
+
+    //collects the calls of the functions whose result is returned right away. Nothing of the calling function is
+    //needed after such a call, so it can run in the frame of the calling function.
+    private static class TailCalls implements Stm.Visitor<Object, Set<EApp>> {
+
+        @Override
+        public Object visit(SExp p, Set<EApp> arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(SDecls p, Set<EApp> arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(SInit p, Set<EApp> arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(SReturn p, Set<EApp> arg) {
+            if (p.exp_ instanceof EApp){
+                arg.add((EApp) p.exp_);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(SWhile p, Set<EApp> arg) {
+            return p.stm_.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(SBlock p, Set<EApp> arg) {
+            for (Stm stm : p.liststm_){
+                stm.accept(this, arg);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(SIfElse p, Set<EApp> arg) {
+            p.stm_1.accept(this, arg);
+            return p.stm_2.accept(this, arg);
+        }
+    }
+}
@@ -0,0 +1,475 @@
+import cmm.Absyn.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+
+//Compiles the functions that the interpreter runs most often to JVM bytecode while the program runs.
+//
+//The interpreter counts the calls of every function and the iterations of its loops. When a function gets hot, it is
+//lowered by the BytecodeCompiler to register code, which is translated to Jasmin assembly in the same way as the
+//compiler in lab3 does it, but the assembly is assembled in memory and loaded as a hidden class. The class contains the
+//hot function and all the functions it calls, which call each other directly. The interpreter calls the hot function
+//through a MethodHandle from then on.
+public class Jit {
+
+    //how many calls and loop iterations make a function hot
+    public static final int THRESHOLD = 1000;
+
+    //what the interpreter knows about a function
+    public static class Counter {
+        public int count;
+        //the compiled code, taking the arguments in an Object[] and returning the boxed result
+        MethodHandle handle;
+        //set if the function can not be compiled, so that it is not tried again
+        boolean failed;
+    }
+
+    Program program;
+    IdentityHashMap<Exp, Type> expTypes;
+    HashMap<String, Counter> counters = new HashMap<>();
+    //the register code of every function, made the first time a function gets hot
+    BytecodeCompiler lowering;
+    RegisterVM.Function[] functions;
+    //whether each hot function can be compiled. A function can not be compiled if it may read an uninitialized
+    //variable, because the interpreter has to report that at runtime, or if it calls such a function, directly or
+    //through other functions.
+    HashMap<Integer, Boolean> compilable = new HashMap<>();
+    int classes = 0;
+
+    public Jit(Program program, IdentityHashMap<Exp, Type> expTypes){
+        this.program = program;
+        this.expTypes = expTypes;
+    }
+
+    public Counter counter(String id){
+        Counter counter = counters.get(id);
+        if (counter == null){
+            counter = new Counter();
+            counters.put(id, counter);
+        }
+        return counter;
+    }
+
+    //count a call of the function. Returns the compiled code of the function, or null if it has to be interpreted.
+    public MethodHandle enter(String id){
+        return enter(counter(id), id);
+    }
+
+    public MethodHandle enter(Counter counter, String id){
+        counter.count++;
+        if (counter.handle == null && !counter.failed && counter.count >= THRESHOLD){
+            compile(id, counter);
+        }
+        return counter.handle;
+    }
+
+    //call compiled code. Errors of the C-- program, such as a division by zero, are passed on to the interpreter.
+    public Object invoke(MethodHandle handle, Object[] arguments){
+        try {
+            return (Object) handle.invokeExact(arguments);
+        } catch (RuntimeException | Error e){
+            throw e;
+        } catch (Throwable e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    void compile(String id, Counter counter){
+        if (functions == null){
+            lowering = new BytecodeCompiler(expTypes);
+            functions = lowering.compile(program).functions;
+        }
+        int index = lowering.functionIndex.get(id);
+        if (!isCompilable(index)){
+            counter.failed = true;
+            return;
+        }
+        //the hot function and everything it calls
+        LinkedHashSet<Integer> reachable = new LinkedHashSet<>();
+        reach(index, reachable);
+        try {
+            StringBuilder assembly = new StringBuilder();
+            assembly.append(".class public JitCode\n");
+            assembly.append(".super java/lang/Object\n\n");
+            for (int function : reachable){
+                translate(functions[function], assembly);
+            }
+            jasmin.ClassFile classFile = new jasmin.ClassFile();
+            classFile.readJasmin(new StringReader(assembly.toString()), "JitCode", false);
+            if (classFile.errorCount() > 0){
+                throw new RuntimeException(classFile.errorCount() + " errors in the assembly");
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            classFile.write(bytes);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes.toByteArray(), true);
+            Resolver.FunInfo fun = lowering.layouts.get(id);
+            MethodHandle handle = lookup.findStatic(lookup.lookupClass(), methodName(id), methodType(fun));
+            //the interpreter does not know the type of the function when it calls it, so the handle takes and returns objects
+            counter.handle = handle.asSpreader(Object[].class, fun.dFun.listarg_.size())
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+            classes++;
+        } catch (Exception e){
+            //the function is still correct in the interpreter
+            counter.failed = true;
+            System.err.println("jit: could not compile " + id + ": " + e);
+        }
+    }
+
+    //the function and everything it calls must be translatable. The answer is worked out for each hot function from
+    //its whole reachable set, so a cycle of calls can not leave a function marked compilable before its callees are known.
+    boolean isCompilable(int index){
+        Boolean known = compilable.get(index);
+        if (known == null){
+            LinkedHashSet<Integer> reachable = new LinkedHashSet<>();
+            reach(index, reachable);
+            known = true;
+            for (int function : reachable){
+                known = known && canTranslate(functions[function]);
+            }
+            compilable.put(index, known);
+        }
+        return known;
+    }
+
+    //whether the code of one function can be translated, not looking at the functions it calls
+    static boolean canTranslate(RegisterVM.Function f){
+        for (double constant : f.constants){
+            //jasmin can not write infinity or NaN
+            if (Double.isInfinite(constant) || Double.isNaN(constant)){
+                return false;
+            }
+        }
+        for (int pc = 0; pc < f.code.length; pc += 1 + RegisterVM.OPERANDS[f.code[pc]]){
+            if (f.code[pc] == RegisterVM.ICHK || f.code[pc] == RegisterVM.DCHK){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void reach(int index, LinkedHashSet<Integer> reachable){
+        if (!reachable.add(index)){
+            return;
+        }
+        RegisterVM.Function f = functions[index];
+        for (int pc = 0; pc < f.code.length; pc += 1 + RegisterVM.OPERANDS[f.code[pc]]){
+            if (f.code[pc] == RegisterVM.CALL){
+                reach(f.code[pc + 1], reachable);
+            }
+        }
+    }
+
+    //the method names get a prefix, so that a C-- function can not clash with a method of Object
+    static String methodName(String id){
+        return "f_" + id;
+    }
+
+    static String descriptor(Type type){
+        if (type instanceof Type_double){
+            return "D";
+        } else if (type instanceof Type_void){
+            return "V";
+        }
+        return "I";
+    }
+
+    static String descriptor(Resolver.FunInfo fun){
+        StringBuilder descriptor = new StringBuilder("(");
+        for (Arg arg : fun.dFun.listarg_){
+            descriptor.append(descriptor(((ADecl) arg).type_));
+        }
+        return descriptor + ")" + descriptor(fun.dFun.type_);
+    }
+
+    static Class<?> javaType(Type type){
+        if (type instanceof Type_double){
+            return double.class;
+        } else if (type instanceof Type_void){
+            return void.class;
+        }
+        return int.class;
+    }
+
+    static MethodType methodType(Resolver.FunInfo fun){
+        ArrayList<Class<?>> parameters = new ArrayList<>();
+        for (Arg arg : fun.dFun.listarg_){
+            parameters.add(javaType(((ADecl) arg).type_));
+        }
+        return MethodType.methodType(javaType(fun.dFun.type_), parameters);
+    }
+
+    //Translating register code to Jasmin
+    ///////////////////////////////////////////////////////////////////////////
+
+    //the Jasmin conditions of the comparisons, in the order of the opcodes ILT, IGT, ILE, IGE, IEQ, INE and the others
+    static final String[] CONDITIONS = {"lt", "gt", "le", "ge", "eq", "ne"};
+
+    void translate(RegisterVM.Function f, StringBuilder out){
+        Resolver.FunInfo fun = lowering.layouts.get(f.id);
+        int parameters = fun.dFun.listarg_.size();
+        int[] code = f.code;
+
+        //every register of the window becomes a local variable. The parameters come first, as the JVM wants them.
+        int[] intLocal = new int[f.intRegisters];
+        int[] doubleLocal = new int[f.doubleRegisters];
+        int locals = 0;
+        for (int i = 0; i < parameters; i++){
+            if (fun.isDouble(i)){
+                doubleLocal[i] = locals;
+                locals += 2;
+            } else {
+                intLocal[i] = locals;
+                locals++;
+            }
+        }
+        StringBuilder init = new StringBuilder();
+        for (int r = 0; r < f.intRegisters; r++){
+            if (r >= parameters || fun.isDouble(r)){
+                intLocal[r] = locals;
+                init.append("  iconst_0\n  istore ").append(locals).append("\n");
+                locals++;
+            }
+        }
+        for (int r = 0; r < f.doubleRegisters; r++){
+            if (r >= parameters || !fun.isDouble(r)){
+                doubleLocal[r] = locals;
+                init.append("  dconst_0\n  dstore ").append(locals).append("\n");
+                locals += 2;
+            }
+        }
+
+        //the instructions that are jumped to get a label
+        boolean[] targets = new boolean[code.length];
+        int stack = 4;
+        for (int pc = 0; pc < code.length; pc += 1 + RegisterVM.OPERANDS[code[pc]]){
+            int opcode = code[pc];
+            if (opcode >= RegisterVM.JILT && opcode <= RegisterVM.JINE
+                    || opcode >= RegisterVM.JILTK && opcode <= RegisterVM.JINEK){
+                targets[code[pc + 3]] = true;
+            } else if (opcode == RegisterVM.JZ || opcode == RegisterVM.JNZ){
+                targets[code[pc + 2]] = true;
+            } else if (opcode == RegisterVM.JMP){
+                targets[code[pc + 1]] = true;
+            } else if (opcode == RegisterVM.CALL){
+                stack = Math.max(stack, 2 * parameters(code[pc + 1]) + 2);
+            }
+        }
+
+        out.append(".method public static ").append(methodName(f.id)).append(descriptor(fun)).append("\n");
+        out.append("  .limit locals ").append(Math.max(locals, 1)).append("\n");
+        out.append("  .limit stack ").append(stack).append("\n");
+        //the JVM verifier wants every local variable to be written before it is read
+        out.append(init);
+        int branches = 0;
+        for (int pc = 0; pc < code.length; pc += 1 + RegisterVM.OPERANDS[code[pc]]){
+            if (targets[pc]){
+                out.append("L").append(pc).append(":\n");
+            }
+            int opcode = code[pc];
+            int a = RegisterVM.OPERANDS[opcode] > 0 ? code[pc + 1] : 0;
+            int b = RegisterVM.OPERANDS[opcode] > 1 ? code[pc + 2] : 0;
+            int c = RegisterVM.OPERANDS[opcode] > 2 ? code[pc + 3] : 0;
+            switch (opcode){
+                case RegisterVM.ICONST:
+                    out.append("  ldc ").append(b).append("\n");
+                    out.append("  istore ").append(intLocal[a]).append("\n");
+                    break;
+                case RegisterVM.DCONST:
+                    out.append("  ldc2_w ").append(f.constants[b]).append("\n");
+                    out.append("  dstore ").append(doubleLocal[a]).append("\n");
+                    break;
+                case RegisterVM.IMOV:
+                    out.append("  iload ").append(intLocal[b]).append("\n");
+                    out.append("  istore ").append(intLocal[a]).append("\n");
+                    break;
+                case RegisterVM.DMOV:
+                    out.append("  dload ").append(doubleLocal[b]).append("\n");
+                    out.append("  dstore ").append(doubleLocal[a]).append("\n");
+                    break;
+                case RegisterVM.I2D:
+                    out.append("  iload ").append(intLocal[b]).append("\n");
+                    out.append("  i2d\n");
+                    out.append("  dstore ").append(doubleLocal[a]).append("\n");
+                    break;
+                case RegisterVM.D2I:
+                    out.append("  dload ").append(doubleLocal[b]).append("\n");
+                    out.append("  d2i\n");
+                    out.append("  istore ").append(intLocal[a]).append("\n");
+                    break;
+                case RegisterVM.IADD:
+                case RegisterVM.ISUB:
+                case RegisterVM.IMUL:
+                case RegisterVM.IDIV:
+                    out.append("  iload ").append(intLocal[b]).append("\n");
+                    out.append("  iload ").append(intLocal[c]).append("\n");
+                    out.append("  ").append(new String[]{"iadd", "isub", "imul", "idiv"}[opcode - RegisterVM.IADD]).append("\n");
+                    out.append("  istore ").append(intLocal[a]).append("\n");
+                    break;
+                case RegisterVM.IADDK:
+                case RegisterVM.ISUBK:
+                case RegisterVM.IMULK:
+                case RegisterVM.IDIVK:
+                    out.append("  iload ").append(intLocal[b]).append("\n");
+                    out.append("  ldc ").append(c).append("\n");
+                    out.append("  ").append(new String[]{"iadd", "isub", "imul", "idiv"}[opcode - RegisterVM.IADDK]).append("\n");
+                    out.append("  istore ").append(intLocal[a]).append("\n");
+                    break;
+                case RegisterVM.DADD:
+                case RegisterVM.DSUB:
+                case RegisterVM.DMUL:
+                case RegisterVM.DDIV:
+                    out.append("  dload ").append(doubleLocal[b]).append("\n");
+                    out.append("  dload ").append(doubleLocal[c]).append("\n");
+                    out.append("  ").append(new String[]{"dadd", "dsub", "dmul", "ddiv"}[opcode - RegisterVM.DADD]).append("\n");
+                    out.append("  dstore ").append(doubleLocal[a]).append("\n");
+                    break;
+                case RegisterVM.IINC:
+                    out.append("  iinc ").append(intLocal[a]).append(" ").append(b).append("\n");
+                    break;
+                case RegisterVM.DINC:
+                    out.append("  dload ").append(doubleLocal[a]).append("\n");
+                    out.append("  ldc2_w ").append((double) b).append("\n");
+                    out.append("  dadd\n");
+                    out.append("  dstore ").append(doubleLocal[a]).append("\n");
+                    break;
+                case RegisterVM.ILT:
+                case RegisterVM.IGT:
+                case RegisterVM.ILE:
+                case RegisterVM.IGE:
+                case RegisterVM.IEQ:
+                case RegisterVM.INE:
+                    out.append("  iload ").append(intLocal[b]).append("\n");
+                    out.append("  iload ").append(intLocal[c]).append("\n");
+                    out.append("  if_icmp").append(CONDITIONS[opcode - RegisterVM.ILT]).append(" T").append(branches).append("\n");
+                    booleanValue(out, branches, intLocal[a]);
+                    branches++;
+                    break;
+                case RegisterVM.DLT:
+                case RegisterVM.DGT:
+                case RegisterVM.DLE:
+                case RegisterVM.DGE:
+                case RegisterVM.DEQ:
+                case RegisterVM.DNE:
+                    //the interpreters compare doubles with Double.compare
+                    out.append("  dload ").append(doubleLocal[b]).append("\n");
+                    out.append("  dload ").append(doubleLocal[c]).append("\n");
+                    out.append("  invokestatic java/lang/Double/compare(DD)I\n");
+                    out.append("  if").append(CONDITIONS[opcode - RegisterVM.DLT]).append(" T").append(branches).append("\n");
+                    booleanValue(out, branches, intLocal[a]);
+                    branches++;
+                    break;
+                case RegisterVM.JILT:
+                case RegisterVM.JIGT:
+                case RegisterVM.JILE:
+                case RegisterVM.JIGE:
+                case RegisterVM.JIEQ:
+                case RegisterVM.JINE:
+                    out.append("  iload ").append(intLocal[a]).append("\n");
+                    out.append("  iload ").append(intLocal[b]).append("\n");
+                    out.append("  if_icmp").append(CONDITIONS[opcode - RegisterVM.JILT]).append(" L").append(c).append("\n");
+                    break;
+                case RegisterVM.JILTK:
+                case RegisterVM.JIGTK:
+                case RegisterVM.JILEK:
+                case RegisterVM.JIGEK:
+                case RegisterVM.JIEQK:
+                case RegisterVM.JINEK:
+                    out.append("  iload ").append(intLocal[a]).append("\n");
+                    out.append("  ldc ").append(b).append("\n");
+                    out.append("  if_icmp").append(CONDITIONS[opcode - RegisterVM.JILTK]).append(" L").append(c).append("\n");
+                    break;
+                case RegisterVM.JZ:
+                    out.append("  iload ").append(intLocal[a]).append("\n");
+                    out.append("  ifeq L").append(b).append("\n");
+                    break;
+                case RegisterVM.JNZ:
+                    out.append("  iload ").append(intLocal[a]).append("\n");
+                    out.append("  ifne L").append(b).append("\n");
+                    break;
+                case RegisterVM.JMP:
+                    out.append("  goto L").append(a).append("\n");
+                    break;
+                case RegisterVM.CALL: {
+                    //the arguments are in the registers at the start of the window of the callee
+                    Resolver.FunInfo callee = lowering.layouts.get(functions[a].id);
+                    for (int i = 0; i < callee.dFun.listarg_.size(); i++){
+                        if (callee.isDouble(i)){
+                            out.append("  dload ").append(doubleLocal[c + i]).append("\n");
+                        } else {
+                            out.append("  iload ").append(intLocal[b + i]).append("\n");
+                        }
+                    }
+                    out.append("  invokestatic JitCode/").append(methodName(callee.dFun.id_)).append(descriptor(callee)).append("\n");
+                    if (callee.dFun.type_ instanceof Type_double){
+                        out.append("  dstore ").append(doubleLocal[c]).append("\n");
+                    } else if (!(callee.dFun.type_ instanceof Type_void)){
+                        out.append("  istore ").append(intLocal[b]).append("\n");
+                    }
+                    break;
+                }
+                case RegisterVM.IRET:
+                    out.append("  iload ").append(intLocal[a]).append("\n");
+                    out.append("  ireturn\n");
+                    break;
+                case RegisterVM.DRET:
+                    out.append("  dload ").append(doubleLocal[a]).append("\n");
+                    out.append("  dreturn\n");
+                    break;
+                case RegisterVM.RET:
+                    //the end of a function that is not void is not reached, but the JVM still wants a value there
+                    if (fun.dFun.type_ instanceof Type_double){
+                        out.append("  dconst_0\n  dreturn\n");
+                    } else if (fun.dFun.type_ instanceof Type_void){
+                        out.append("  return\n");
+                    } else {
+                        out.append("  iconst_0\n  ireturn\n");
+                    }
+                    break;
+                case RegisterVM.PRINTI:
+                    out.append("  iload ").append(intLocal[a]).append("\n");
+                    out.append("  invokestatic Builtins/printInt(I)V\n");
+                    break;
+                case RegisterVM.PRINTD:
+                    out.append("  dload ").append(doubleLocal[a]).append("\n");
+                    out.append("  invokestatic Builtins/printDouble(D)V\n");
+                    break;
+                case RegisterVM.READI:
+                    out.append("  invokestatic Builtins/readInt()I\n");
+                    out.append("  istore ").append(intLocal[a]).append("\n");
+                    break;
+                case RegisterVM.READD:
+                    out.append("  invokestatic Builtins/readDouble()D\n");
+                    out.append("  dstore ").append(doubleLocal[a]).append("\n");
+                    break;
+                case RegisterVM.IDECL:
+                case RegisterVM.DDECL:
+                    //only functions without checks are compiled, so nothing needs to know which variables are initialized
+                    break;
+                default:
+                    throw new RuntimeException("Can not compile opcode " + opcode + " in function " + f.id);
+            }
+        }
+        out.append(".end method\n\n");
+    }
+
+    int parameters(int function){
+        return lowering.layouts.get(functions[function].id).dFun.listarg_.size();
+    }
+
+    //store 1 in the local if the jump to label T<n> that was just emitted is taken, else 0
+    static void booleanValue(StringBuilder out, int n, int local){
+        out.append("  iconst_0\n");
+        out.append("  goto E").append(n).append("\n");
+        out.append("T").append(n).append(":\n");
+        out.append("  iconst_1\n");
+        out.append("E").append(n).append(":\n");
+        out.append("  istore ").append(local).append("\n");
+    }
+}
@@ -0,0 +1,220 @@
+import cmm.Absyn.*;
+import cmm.Yylex;
+import cmm.parser;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Set;
+
+//A program whose function bodies are parsed and type checked when they are first called, for --lazy. Only the
+//signatures are read up front, by a small scanner that skips over the bodies by counting braces, so the time until main
+//starts grows with the number of functions but not with the size of their bodies, and a function that is never called
+//is never parsed.
+//
+//A body that does not parse or type check is reported when it is first called, as a SYNTAX ERROR or TYPE ERROR like
+//lab2 reports it, after the output of the program up to that call. C-- programs are deterministic, so the same run
+//always stops at the same call. Errors in the bodies of functions that are never called are not reported.
+public class LazyProgram {
+
+    //a syntax error in a body, found by its first call
+    public static class SyntaxError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public final int line;
+        public final String near;
+
+        public SyntaxError(String message, int line, String near) {
+            super(message);
+            this.line = line;
+            this.near = near;
+        }
+    }
+
+    static final Set<String> TYPES = Set.of("bool", "int", "double", "void");
+    static final Set<String> KEYWORDS = Set.of("bool", "int", "double", "void", "return", "while", "if", "else",
+            "true", "false");
+
+    //the source of the function and the line it starts on
+    static class Body {
+        int start;
+        int end;
+        int line;
+    }
+
+    final String source;
+    //the functions with empty bodies, in the order they are defined
+    public PDefs signatures = new PDefs(new ListDef());
+    HashMap<String, Body> bodies = new HashMap<>();
+    //the environment the signatures were checked in, the bodies are checked in it too
+    TypeChecker typeChecker;
+    TypeChecker.Env env;
+
+    //the scanner
+    int position = 0;
+    int line = 1;
+
+    LazyProgram(String source) {
+        this.source = source;
+    }
+
+    //scan the signatures of the functions, or return null if the source is not a list of functions the scanner
+    //understands. The source is then parsed as a whole, which reports the error.
+    public static LazyProgram scan(String source) {
+        LazyProgram program = new LazyProgram(source);
+        return program.scanDefs() ? program : null;
+    }
+
+    boolean scanDefs() {
+        skipSpace();
+        while (position < source.length()) {
+            Body body = new Body();
+            body.start = position;
+            body.line = line;
+            String type = word();
+            String id = word();
+            if (!TYPES.contains(type) || id == null || KEYWORDS.contains(id) || !symbol('(')) {
+                return false;
+            }
+            ListArg args = new ListArg();
+            if (!symbol(')')) {
+                do {
+                    String argType = word();
+                    String argId = word();
+                    if (!TYPES.contains(argType) || argId == null || KEYWORDS.contains(argId)) {
+                        return false;
+                    }
+                    args.add(new ADecl(type(argType), argId));
+                } while (symbol(','));
+                if (!symbol(')')) {
+                    return false;
+                }
+            }
+            if (!symbol('{') || !skipBody() || bodies.containsKey(id)) {
+                //a function that is defined twice is reported by the type checker of the whole program
+                return false;
+            }
+            body.end = position;
+            bodies.put(id, body);
+            signatures.listdef_.add(new DFun(type(type), id, args, new ListStm()));
+        }
+        return true;
+    }
+
+    static Type type(String type) {
+        switch (type) {
+            case "bool": return new Type_bool();
+            case "int": return new Type_int();
+            case "double": return new Type_double();
+            default: return new Type_void();
+        }
+    }
+
+    //an identifier or keyword, or null
+    String word() {
+        int start = position;
+        if (position < source.length() && Character.isLetter(source.charAt(position))) {
+            position++;
+            while (position < source.length() && (Character.isLetterOrDigit(source.charAt(position))
+                    || source.charAt(position) == '_')) {
+                position++;
+            }
+        }
+        if (position == start) {
+            return null;
+        }
+        String word = source.substring(start, position);
+        skipSpace();
+        return word;
+    }
+
+    boolean symbol(char c) {
+        if (position < source.length() && source.charAt(position) == c) {
+            position++;
+            skipSpace();
+            return true;
+        }
+        return false;
+    }
+
+    //skip to the brace that closes the body. C-- has no string or character literals, so only comments can hide a brace.
+    boolean skipBody() {
+        int depth = 1;
+        while (position < source.length()) {
+            char c = source.charAt(position++);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                skipSpace();
+                return true;
+            }
+            skipSpace();
+        }
+        return false;
+    }
+
+    //skip white space and comments, counting the lines
+    void skipSpace() {
+        while (position < source.length()) {
+            char c = source.charAt(position);
+            if (c == '\n') {
+                line++;
+                position++;
+            } else if (Character.isWhitespace(c)) {
+                position++;
+            } else if (c == '#' || source.startsWith("//", position)) {
+                while (position < source.length() && source.charAt(position) != '\n') {
+                    position++;
+                }
+            } else if (source.startsWith("/*", position)) {
+                int end = source.indexOf("*/", position + 2);
+                end = end < 0 ? source.length() : end + 2;
+                for (int i = position; i < end; i++) {
+                    if (source.charAt(i) == '\n') {
+                        line++;
+                    }
+                }
+                position = end;
+            } else {
+                return;
+            }
+        }
+    }
+
+    //type check the signatures, as the TypeChecker does before it checks the bodies. The parameters are checked too, by
+    //checking the empty bodies, so that only the errors in the bodies wait for the first call.
+    public void checkSignatures(TypeChecker typeChecker) {
+        this.typeChecker = typeChecker;
+        this.env = typeChecker.checkSignatures(signatures);
+        for (Def def : signatures.listdef_) {
+            typeChecker.checkBody((DFun) def, env);
+        }
+    }
+
+    //parse and type check the body of a function
+    public DFun define(String id) {
+        Body body = bodies.get(id);
+        //the source of the function is parsed after as many newlines as there are lines before it, so that the lexer
+        //counts the lines of the error from the start of the file
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i < body.line; i++) {
+            text.append('\n');
+        }
+        text.append(source, body.start, body.end);
+        Yylex l = null;
+        Program program;
+        try {
+            l = new Yylex(new StringReader(text.toString()));
+            program = new parser(l).pProgram();
+        } catch (Exception | Error e) {
+            //the lexer throws an Error on a character it does not know
+            throw new SyntaxError(e.getMessage(), l == null ? body.line : l.line_num(), l == null ? "" : l.buff());
+        }
+        ListDef defs = ((PDefs) program).listdef_;
+        if (defs.size() != 1 || !((DFun) defs.get(0)).id_.equals(id)) {
+            throw new SyntaxError("The definition of " + id + " could not be read", body.line, id);
+        }
+        DFun dFun = (DFun) defs.get(0);
+        typeChecker.checkBody(dFun, env);
+        return dFun;
+    }
+}
@@ -0,0 +1,86 @@
+import cmm.Absyn.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//A bounded cache of the results of pure functions (see Purity), keyed by the function and the values of its arguments.
+//When the cache is full, the entry that was used least recently is evicted.
+public class Memo {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    //a function together with the values of its arguments
+    public static class Key {
+        final Object function;
+        final Val[] arguments;
+        final int hash;
+
+        Key(Object function, Val[] arguments){
+            this.function = function;
+            this.arguments = arguments;
+            this.hash = 31 * System.identityHashCode(function) + Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof Key)){
+                return false;
+            }
+            Key key = (Key) o;
+            return function == key.function && Arrays.equals(arguments, key.arguments);
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+    }
+
+    final int capacity;
+    final LinkedHashMap<Key, Val> cache;
+    public long hits = 0;
+    public long misses = 0;
+    public long evictions = 0;
+
+    public Memo(int capacity){
+        this.capacity = capacity;
+        //in access order, so that the eldest entry is the least recently used one
+        this.cache = new LinkedHashMap<Key, Val>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Val> eldest){
+                if (size() > Memo.this.capacity){
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    //the key of a call. The arguments are copied, because the frame they are in is reused by later calls.
+    public Key key(Object function, Val[] frame, int arguments){
+        return new Key(function, Arrays.copyOf(frame, arguments));
+    }
+
+    //the cached result of the call, or null if it has not been cached
+    public Val get(Key key){
+        Val value = cache.get(key);
+        if (value == null){
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    public void put(Key key, Val value){
+        cache.put(key, value);
+    }
+
+    @Override
+    public String toString(){
+        return "memo: " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+                + cache.size() + " entries";
+    }
+}
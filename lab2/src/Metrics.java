@@ -0,0 +1,231 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//JFR events and counters of the interpreter, for watching C-- programs that run in production, e.g. with
+//
+//    java -XX:StartFlightRecording=filename=run.jfr -cp ... lab2 program.cc
+//    jfr print --categories C-- run.jfr
+//
+//There are events for the phases of lab2 (parse, typecheck, optimize, execute), for calls of C-- functions, for
+//long-running while loops and for the built-in I/O functions. The Statistics events report the counters once a
+//second: the calls of every function, the loop iterations and the calls of the built-in functions. The counters
+//are LongAdders, so interpreters in different threads can count without contending for a lock.
+//
+//The interpreter only measures anything while a recording is running, which enabled tells it. Otherwise every hook
+//costs it the read of that one field. Nothing of JFR is touched before JFR is initialized, because registering an event
+//initializes it, which takes a few hundred milliseconds. So the events are recorded if JFR is started with the JVM, or,
+//for a JVM that keeps running programs, from the first phase after a recording was started later.
+public class Metrics {
+
+    //whether a JFR recording is running
+    public static volatile boolean enabled = false;
+
+    static final LongAdder calls = new LongAdder();
+    static final LongAdder loopIterations = new LongAdder();
+    static final LongAdder builtinCalls = new LongAdder();
+    static final ConcurrentHashMap<String, LongAdder> functionCalls = new ConcurrentHashMap<>();
+
+    //whether the listener and the periodic event have been registered
+    static volatile boolean installed = false;
+
+    static {
+        install();
+    }
+
+    static synchronized void install() {
+        if (installed || !FlightRecorder.isInitialized()) {
+            return;
+        }
+        installed = true;
+        //the listener is told about the recordings that are already running when it is added, e.g. the one started by
+        //-XX:StartFlightRecording, through recorderInitialized
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                update(recorder);
+            }
+
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                update(FlightRecorder.getFlightRecorder());
+            }
+        });
+        FlightRecorder.addPeriodicEvent(StatisticsEvent.class, Metrics::emitStatistics);
+    }
+
+    static void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording recording : recorder.getRecordings()) {
+            running = running || recording.getState() == RecordingState.RUNNING;
+        }
+        enabled = running;
+    }
+
+    @Name("cmm.Phase")
+    @Label("Phase")
+    @Category("C--")
+    @Description("A phase of running a C-- program")
+    @StackTrace(false)
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Source File")
+        String file;
+    }
+
+    @Name("cmm.Call")
+    @Label("Function Call")
+    @Category("C--")
+    @Description("A call of a C-- function that took longer than the threshold")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class CallEvent extends Event {
+        @Label("Function")
+        String function;
+    }
+
+    @Name("cmm.Loop")
+    @Label("While Loop")
+    @Category("C--")
+    @Description("A while loop that ran longer than the threshold")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static class LoopEvent extends Event {
+        @Label("Function")
+        String function;
+        @Label("Iterations")
+        long iterations;
+    }
+
+    @Name("cmm.Builtin")
+    @Label("Built-in Function Call")
+    @Category("C--")
+    @Description("A call of printInt, printDouble, readInt or readDouble that took longer than the threshold")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class BuiltinEvent extends Event {
+        @Label("Function")
+        String function;
+    }
+
+    @Name("cmm.Statistics")
+    @Label("Interpreter Statistics")
+    @Category("C--")
+    @Description("The number of calls, loop iterations and built-in function calls since the JVM started")
+    @Period("1 s")
+    @StackTrace(false)
+    static class StatisticsEvent extends Event {
+        @Label("Calls")
+        long calls;
+        @Label("Loop Iterations")
+        long loopIterations;
+        @Label("Built-in Calls")
+        long builtinCalls;
+    }
+
+    @Name("cmm.FunctionStatistics")
+    @Label("Function Statistics")
+    @Category("C--")
+    @Description("The number of calls of a C-- function since the JVM started")
+    @StackTrace(false)
+    static class FunctionStatisticsEvent extends Event {
+        @Label("Function")
+        String function;
+        @Label("Calls")
+        long calls;
+    }
+
+    static void emitStatistics() {
+        StatisticsEvent statistics = new StatisticsEvent();
+        statistics.calls = calls.sum();
+        statistics.loopIterations = loopIterations.sum();
+        statistics.builtinCalls = builtinCalls.sum();
+        statistics.commit();
+        for (Map.Entry<String, LongAdder> entry : functionCalls.entrySet()) {
+            FunctionStatisticsEvent function = new FunctionStatisticsEvent();
+            function.function = entry.getKey();
+            function.calls = entry.getValue().sum();
+            function.commit();
+        }
+    }
+
+    //phases are recorded whether or not a recording is running, there are only a few of them. The event is null if
+    //JFR has not been initialized.
+    public static PhaseEvent beginPhase(String phase, String file) {
+        if (!installed) {
+            install();
+            if (!installed) {
+                return null;
+            }
+        }
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        event.file = file;
+        event.begin();
+        return event;
+    }
+
+    public static void endPhase(PhaseEvent event) {
+        if (event != null) {
+            event.commit();
+        }
+    }
+
+    //the hooks below are only called by the interpreter when enabled is true
+
+    public static CallEvent beginCall(String function) {
+        countCall(function);
+        CallEvent event = new CallEvent();
+        event.function = function;
+        event.begin();
+        return event;
+    }
+
+    public static void endCall(CallEvent event) {
+        event.commit();
+    }
+
+    //a call that has no event of its own, i.e. a call in tail position
+    public static void countCall(String function) {
+        calls.increment();
+        functionCalls.computeIfAbsent(function, id -> new LongAdder()).increment();
+    }
+
+    public static LoopEvent beginLoop(String function) {
+        LoopEvent event = new LoopEvent();
+        event.function = function;
+        event.begin();
+        return event;
+    }
+
+    public static void endLoop(LoopEvent event) {
+        loopIterations.add(event.iterations);
+        event.commit();
+    }
+
+    public static BuiltinEvent beginBuiltin(String function) {
+        builtinCalls.increment();
+        BuiltinEvent event = new BuiltinEvent();
+        event.function = function;
+        event.begin();
+        return event;
+    }
+
+    public static void endBuiltin(BuiltinEvent event) {
+        event.commit();
+    }
+}
@@ -0,0 +1,656 @@
+import cmm.Absyn.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+//A pipeline of optimization passes that rewrite the type checked program before it is executed.
+//
+//The nodes of the abstract syntax are immutable, so a pass builds a new program. The types of the expressions of the
+//new program are found by running the type checker on it again after every pass, so that every pass and every
+//execution engine can use them.
+public class Optimizer {
+
+    //a pass of the pipeline. It gets the program together with the types of its expressions.
+    public interface Pass {
+        String name();
+        Program run(Program p, IdentityHashMap<Exp, Type> types);
+    }
+
+    public ArrayList<Pass> passes = new ArrayList<>();
+    //the time in nanoseconds that each pass took, in the order of the passes
+    public ArrayList<Long> times = new ArrayList<>();
+    //the types of the expressions of the optimized program
+    public IdentityHashMap<Exp, Type> expTypes;
+
+    //the passes that lab2 --optimize runs
+    public static Optimizer standard(){
+        Optimizer optimizer = new Optimizer();
+        optimizer.passes.add(new ConstantFolding());
+        optimizer.passes.add(new BranchElimination());
+        optimizer.passes.add(new DeadCode());
+        optimizer.passes.add(new UnusedDecls());
+        optimizer.passes.add(new CopyPropagation());
+        return optimizer;
+    }
+
+    public Program optimize(Program p, IdentityHashMap<Exp, Type> types){
+        times.clear();
+        for (Pass pass : passes){
+            long start = System.nanoTime();
+            p = pass.run(p, types);
+            times.add(System.nanoTime() - start);
+            //the pass has made new expressions, the type checker finds their types
+            TypeChecker typeChecker = new TypeChecker();
+            typeChecker.typecheck(p);
+            types = typeChecker.expTypes;
+        }
+        expTypes = types;
+        return p;
+    }
+
+    //the time each pass took, one pass per line
+    public String report(){
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < passes.size(); i++){
+            report.append(String.format("%-20s %10.3f ms%n", passes.get(i).name(), times.get(i) / 1e6));
+        }
+        return report.toString();
+    }
+
+    //Rewriting
+    ///////////////////////////////////////////////////////////////////////////
+
+    //Copies a program. The passes override the nodes they change. A statement that is rewritten to null is removed.
+    public static class Rewriter implements Stm.Visitor<Stm, Object>, Exp.Visitor<Exp, Object> {
+
+        //the types of the expressions of the program that is rewritten
+        IdentityHashMap<Exp, Type> types;
+
+        public Program run(Program p, IdentityHashMap<Exp, Type> types){
+            this.types = types;
+            ListDef defs = new ListDef();
+            for (Def def : ((PDefs) p).listdef_){
+                DFun dFun = (DFun) def;
+                defs.add(new DFun(dFun.type_, dFun.id_, dFun.listarg_, statements(dFun.liststm_)));
+            }
+            return new PDefs(defs);
+        }
+
+        public ListStm statements(ListStm list){
+            ListStm result = new ListStm();
+            for (Stm stm : list){
+                Stm rewritten = stm.accept(this, null);
+                if (rewritten != null){
+                    result.add(rewritten);
+                }
+            }
+            return result;
+        }
+
+        //the body of a while loop or a branch of an if, which can not be removed
+        public Stm body(Stm stm){
+            Stm rewritten = stm.accept(this, null);
+            return rewritten == null ? new SBlock(new ListStm()) : rewritten;
+        }
+
+        public Exp exp(Exp e){
+            return e.accept(this, null);
+        }
+
+        @Override
+        public Stm visit(SExp p, Object arg) {
+            return new SExp(exp(p.exp_));
+        }
+
+        @Override
+        public Stm visit(SDecls p, Object arg) {
+            return p;
+        }
+
+        @Override
+        public Stm visit(SInit p, Object arg) {
+            return new SInit(p.type_, p.id_, exp(p.exp_));
+        }
+
+        @Override
+        public Stm visit(SReturn p, Object arg) {
+            return new SReturn(exp(p.exp_));
+        }
+
+        @Override
+        public Stm visit(SWhile p, Object arg) {
+            return new SWhile(exp(p.exp_), body(p.stm_));
+        }
+
+        @Override
+        public Stm visit(SBlock p, Object arg) {
+            return new SBlock(statements(p.liststm_));
+        }
+
+        @Override
+        public Stm visit(SIfElse p, Object arg) {
+            return new SIfElse(exp(p.exp_), body(p.stm_1), body(p.stm_2));
+        }
+
+        @Override
+        public Exp visit(EBool p, Object arg) {
+            return p;
+        }
+
+        @Override
+        public Exp visit(EInt p, Object arg) {
+            return p;
+        }
+
+        @Override
+        public Exp visit(EDouble p, Object arg) {
+            return p;
+        }
+
+        @Override
+        public Exp visit(EId p, Object arg) {
+            return p;
+        }
+
+        @Override
+        public Exp visit(EApp p, Object arg) {
+            ListExp arguments = new ListExp();
+            for (Exp e : p.listexp_){
+                arguments.add(exp(e));
+            }
+            return new EApp(p.id_, arguments);
+        }
+
+        @Override
+        public Exp visit(EPost p, Object arg) {
+            return p;
+        }
+
+        @Override
+        public Exp visit(EPre p, Object arg) {
+            return p;
+        }
+
+        @Override
+        public Exp visit(EMul p, Object arg) {
+            return new EMul(exp(p.exp_1), p.mulop_, exp(p.exp_2));
+        }
+
+        @Override
+        public Exp visit(EAdd p, Object arg) {
+            return new EAdd(exp(p.exp_1), p.addop_, exp(p.exp_2));
+        }
+
+        @Override
+        public Exp visit(ECmp p, Object arg) {
+            return new ECmp(exp(p.exp_1), p.cmpop_, exp(p.exp_2));
+        }
+
+        @Override
+        public Exp visit(EAnd p, Object arg) {
+            return new EAnd(exp(p.exp_1), exp(p.exp_2));
+        }
+
+        @Override
+        public Exp visit(EOr p, Object arg) {
+            return new EOr(exp(p.exp_1), exp(p.exp_2));
+        }
+
+        @Override
+        public Exp visit(EAss p, Object arg) {
+            return new EAss(p.id_, exp(p.exp_));
+        }
+
+        @Override
+        public Exp visit(ETyped p, Object arg) {
+            return new ETyped(exp(p.exp_), p.type_);
+        }
+
+        @Override
+        public Exp visit(EConv p, Object arg) {
+            return new EConv(p.type_, exp(p.exp_));
+        }
+    }
+
+    //Collects the variable names that a statement or expression uses, assigns and declares, in nested blocks too.
+    public static class Names implements Stm.Visitor<Object, Object>, Exp.Visitor<Object, Object> {
+        public HashSet<String> used = new HashSet<>();
+        public HashSet<String> written = new HashSet<>();
+        public HashSet<String> declared = new HashSet<>();
+
+        public static Names of(Stm stm){
+            Names names = new Names();
+            stm.accept(names, null);
+            return names;
+        }
+
+        @Override
+        public Object visit(SExp p, Object arg) {
+            return p.exp_.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(SDecls p, Object arg) {
+            declared.addAll(p.listid_);
+            return null;
+        }
+
+        @Override
+        public Object visit(SInit p, Object arg) {
+            declared.add(p.id_);
+            return p.exp_.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(SReturn p, Object arg) {
+            return p.exp_.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(SWhile p, Object arg) {
+            p.exp_.accept(this, arg);
+            return p.stm_.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(SBlock p, Object arg) {
+            for (Stm stm : p.liststm_){
+                stm.accept(this, arg);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(SIfElse p, Object arg) {
+            p.exp_.accept(this, arg);
+            p.stm_1.accept(this, arg);
+            return p.stm_2.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(EBool p, Object arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(EInt p, Object arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(EDouble p, Object arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(EId p, Object arg) {
+            used.add(p.id_);
+            return null;
+        }
+
+        @Override
+        public Object visit(EApp p, Object arg) {
+            for (Exp e : p.listexp_){
+                e.accept(this, arg);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(EPost p, Object arg) {
+            used.add(p.id_);
+            written.add(p.id_);
+            return null;
+        }
+
+        @Override
+        public Object visit(EPre p, Object arg) {
+            used.add(p.id_);
+            written.add(p.id_);
+            return null;
+        }
+
+        @Override
+        public Object visit(EMul p, Object arg) {
+            p.exp_1.accept(this, arg);
+            return p.exp_2.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(EAdd p, Object arg) {
+            p.exp_1.accept(this, arg);
+            return p.exp_2.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(ECmp p, Object arg) {
+            p.exp_1.accept(this, arg);
+            return p.exp_2.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(EAnd p, Object arg) {
+            p.exp_1.accept(this, arg);
+            return p.exp_2.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(EOr p, Object arg) {
+            p.exp_1.accept(this, arg);
+            return p.exp_2.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(EAss p, Object arg) {
+            used.add(p.id_);
+            written.add(p.id_);
+            return p.exp_.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(ETyped p, Object arg) {
+            return p.exp_.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(EConv p, Object arg) {
+            return p.exp_.accept(this, arg);
+        }
+    }
+
+    //Passes
+    ///////////////////////////////////////////////////////////////////////////
+
+    //Computes the operations on literals. Integer arithmetic wraps around in the same way as in the interpreter. A
+    //division of integers by zero is left alone, because it has to fail at runtime.
+    public static class ConstantFolding extends Rewriter implements Pass {
+
+        public String name(){
+            return "constant folding";
+        }
+
+        static boolean isNumber(Exp e){
+            return e instanceof EInt || e instanceof EDouble;
+        }
+
+        static double doubleValue(Exp e){
+            return e instanceof EInt ? ((EInt) e).integer_ : ((EDouble) e).double_;
+        }
+
+        boolean isDouble(Exp e){
+            return types.get(e) instanceof Type_double;
+        }
+
+        @Override
+        public Exp visit(EAdd p, Object arg) {
+            Exp a = exp(p.exp_1);
+            Exp b = exp(p.exp_2);
+            boolean plus = p.addop_ instanceof OPlus;
+            if (isNumber(a) && isNumber(b)){
+                if (isDouble(p)){
+                    double x = doubleValue(a);
+                    double y = doubleValue(b);
+                    return new EDouble(plus ? x + y : x - y);
+                }
+                int x = ((EInt) a).integer_;
+                int y = ((EInt) b).integer_;
+                return new EInt(plus ? x + y : x - y);
+            }
+            return new EAdd(a, p.addop_, b);
+        }
+
+        @Override
+        public Exp visit(EMul p, Object arg) {
+            Exp a = exp(p.exp_1);
+            Exp b = exp(p.exp_2);
+            boolean times = p.mulop_ instanceof OTimes;
+            if (isNumber(a) && isNumber(b)){
+                if (isDouble(p)){
+                    double x = doubleValue(a);
+                    double y = doubleValue(b);
+                    return new EDouble(times ? x * y : x / y);
+                }
+                int x = ((EInt) a).integer_;
+                int y = ((EInt) b).integer_;
+                if (times || y != 0){
+                    return new EInt(times ? x * y : x / y);
+                }
+            }
+            return new EMul(a, p.mulop_, b);
+        }
+
+        @Override
+        public Exp visit(ECmp p, Object arg) {
+            Exp a = exp(p.exp_1);
+            Exp b = exp(p.exp_2);
+            int c;
+            if (isNumber(a) && isNumber(b)){
+                //the interpreter compares doubles with equals and compareTo, which agree with Double.compare
+                if (a instanceof EDouble || b instanceof EDouble){
+                    c = Double.compare(doubleValue(a), doubleValue(b));
+                } else {
+                    c = Integer.compare(((EInt) a).integer_, ((EInt) b).integer_);
+                }
+            } else if (a instanceof EBool && b instanceof EBool
+                    && (p.cmpop_ instanceof OEq || p.cmpop_ instanceof ONEq)){
+                c = ((EBool) a).boollit_.getClass() == ((EBool) b).boollit_.getClass() ? 0 : 1;
+            } else {
+                return new ECmp(a, p.cmpop_, b);
+            }
+            boolean value;
+            if (p.cmpop_ instanceof OLt){
+                value = c < 0;
+            } else if (p.cmpop_ instanceof OGt){
+                value = c > 0;
+            } else if (p.cmpop_ instanceof OLtEq){
+                value = c <= 0;
+            } else if (p.cmpop_ instanceof OGtEq){
+                value = c >= 0;
+            } else if (p.cmpop_ instanceof OEq){
+                value = c == 0;
+            } else {
+                value = c != 0;
+            }
+            return new EBool(value ? new LTrue() : new LFalse());
+        }
+
+        @Override
+        public Exp visit(EAnd p, Object arg) {
+            Exp a = exp(p.exp_1);
+            Exp b = exp(p.exp_2);
+            if (a instanceof EBool){
+                return ((EBool) a).boollit_ instanceof LTrue ? b : a;
+            }
+            return new EAnd(a, b);
+        }
+
+        @Override
+        public Exp visit(EOr p, Object arg) {
+            Exp a = exp(p.exp_1);
+            Exp b = exp(p.exp_2);
+            if (a instanceof EBool){
+                return ((EBool) a).boollit_ instanceof LTrue ? a : b;
+            }
+            return new EOr(a, b);
+        }
+    }
+
+    //Removes the branch of an if that is never taken and the while loops that never run.
+    public static class BranchElimination extends Rewriter implements Pass {
+
+        public String name(){
+            return "branch elimination";
+        }
+
+        //a branch is checked in a scope of its own, so a declaration that takes the place of the if stays in a block
+        static Stm scoped(Stm stm){
+            if (stm instanceof SDecls || stm instanceof SInit){
+                ListStm list = new ListStm();
+                list.add(stm);
+                return new SBlock(list);
+            }
+            return stm;
+        }
+
+        @Override
+        public Stm visit(SIfElse p, Object arg) {
+            Exp condition = exp(p.exp_);
+            if (condition instanceof EBool){
+                return scoped(body(((EBool) condition).boollit_ instanceof LTrue ? p.stm_1 : p.stm_2));
+            }
+            return new SIfElse(condition, body(p.stm_1), body(p.stm_2));
+        }
+
+        @Override
+        public Stm visit(SWhile p, Object arg) {
+            Exp condition = exp(p.exp_);
+            if (condition instanceof EBool && ((EBool) condition).boollit_ instanceof LFalse){
+                return null;
+            }
+            return new SWhile(condition, body(p.stm_));
+        }
+    }
+
+    //Removes the statements after a statement that always returns.
+    public static class DeadCode extends Rewriter implements Pass {
+
+        public String name(){
+            return "dead code";
+        }
+
+        static boolean alwaysReturns(Stm stm){
+            if (stm instanceof SReturn){
+                return true;
+            } else if (stm instanceof SBlock){
+                for (Stm s : ((SBlock) stm).liststm_){
+                    if (alwaysReturns(s)){
+                        return true;
+                    }
+                }
+            } else if (stm instanceof SIfElse){
+                return alwaysReturns(((SIfElse) stm).stm_1) && alwaysReturns(((SIfElse) stm).stm_2);
+            }
+            return false;
+        }
+
+        @Override
+        public ListStm statements(ListStm list){
+            ListStm result = new ListStm();
+            for (Stm stm : list){
+                Stm rewritten = stm.accept(this, null);
+                if (rewritten != null){
+                    result.add(rewritten);
+                    if (alwaysReturns(rewritten)){
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    //Removes the variables of a declaration that are not mentioned in the rest of their block, and the declaration if
+    //none of its variables is left.
+    public static class UnusedDecls extends Rewriter implements Pass {
+
+        public String name(){
+            return "unused declarations";
+        }
+
+        @Override
+        public ListStm statements(ListStm list){
+            ListStm rewritten = super.statements(list);
+            //walk the block backwards, collecting the names that are used after each statement
+            HashSet<String> usedAfter = new HashSet<>();
+            ListStm result = new ListStm();
+            for (int i = rewritten.size() - 1; i >= 0; i--){
+                Stm stm = rewritten.get(i);
+                if (stm instanceof SDecls){
+                    SDecls decls = (SDecls) stm;
+                    ListId ids = new ListId();
+                    for (String id : decls.listid_){
+                        if (usedAfter.contains(id)){
+                            ids.add(id);
+                        }
+                    }
+                    if (ids.isEmpty()){
+                        continue;
+                    }
+                    stm = ids.size() == decls.listid_.size() ? decls : new SDecls(decls.type_, ids);
+                }
+                usedAfter.addAll(Names.of(stm).used);
+                result.addFirst(stm);
+            }
+            return result;
+        }
+    }
+
+    //Replaces a variable that is a copy of another variable of the same type by that variable, after
+    //  int x = y;    or    x = y;
+    //until either of them may change or be shadowed. A statement that assigns or declares either of them anywhere
+    //inside is left as it is.
+    public static class CopyPropagation extends Rewriter implements Pass {
+
+        public String name(){
+            return "copy propagation";
+        }
+
+        //the copies that can be used in the statement that is rewritten, including those of the enclosing blocks
+        HashMap<String, String> active = new HashMap<>();
+
+        @Override
+        public ListStm statements(ListStm list){
+            HashMap<String, String> outer = active;
+            HashMap<String, String> copies = new HashMap<>();
+            ListStm result = new ListStm();
+            for (Stm stm : list){
+                Names names = Names.of(stm);
+                //forget the copies that the statement may break
+                copies.entrySet().removeIf(copy -> changes(names, copy));
+                active = new HashMap<>(outer);
+                active.putAll(copies);
+                Stm rewritten = stm.accept(this, null);
+                result.add(rewritten);
+                //a new copy. The copied expression has already been rewritten, so a copy of a copy goes to the original.
+                String x = null;
+                Exp original = null;
+                Exp value = null;
+                if (stm instanceof SInit){
+                    x = ((SInit) stm).id_;
+                    original = ((SInit) stm).exp_;
+                    value = ((SInit) rewritten).exp_;
+                    if (!((SInit) stm).type_.equals(types.get(original))){
+                        x = null;
+                    }
+                } else if (stm instanceof SExp && ((SExp) stm).exp_ instanceof EAss){
+                    EAss ass = (EAss) ((SExp) stm).exp_;
+                    x = ass.id_;
+                    original = ass.exp_;
+                    value = ((EAss) ((SExp) rewritten).exp_).exp_;
+                    if (!types.get(ass).equals(types.get(original))){
+                        x = null;
+                    }
+                }
+                if (x != null && value instanceof EId && !((EId) value).id_.equals(x)){
+                    copies.put(x, ((EId) value).id_);
+                }
+            }
+            active = outer;
+            return result;
+        }
+
+        static boolean changes(Names names, Map.Entry<String, String> copy){
+            return names.written.contains(copy.getKey()) || names.written.contains(copy.getValue())
+                    || names.declared.contains(copy.getKey()) || names.declared.contains(copy.getValue());
+        }
+
+        @Override
+        public Exp visit(EId p, Object arg) {
+            String original = active.get(p.id_);
+            return original == null ? p : new EId(original);
+        }
+    }
+}
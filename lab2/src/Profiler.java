@@ -0,0 +1,203 @@
+import cmm.Absyn.*;
+import cmm.PrettyPrinter;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Records where an interpreted C-- program spends its time, for lab2 --profile.
+//
+//For every function it counts the calls and measures the wall time and the bytes allocated by the interpreter, both
+//inclusive (with the functions it calls) and exclusive (without them). For every statement it counts how often it was
+//executed. The time is also recorded per calling context, so that it can be written as collapsed stacks, the input
+//format of flamegraph tools.
+public class Profiler {
+
+    public static class FunStats {
+        public String id;
+        public long calls;
+        public long inclusiveNanos;
+        public long exclusiveNanos;
+        public long inclusiveBytes;
+        public long exclusiveBytes;
+        //the number of active calls. The inclusive numbers are only counted for the outermost call of a recursive function.
+        int active;
+
+        FunStats(String id){
+            this.id = id;
+        }
+    }
+
+    //a function called along one path of calls from main
+    static class CallNode {
+        String id;
+        HashMap<String, CallNode> children = new HashMap<>();
+        long exclusiveNanos;
+
+        CallNode(String id){
+            this.id = id;
+        }
+
+        CallNode child(String id){
+            CallNode child = children.get(id);
+            if (child == null){
+                child = new CallNode(id);
+                children.put(id, child);
+            }
+            return child;
+        }
+    }
+
+    public LinkedHashMap<String, FunStats> functions = new LinkedHashMap<>();
+    public IdentityHashMap<Stm, long[]> statements = new IdentityHashMap<>();
+    //the function of every statement that was executed
+    IdentityHashMap<Stm, String> statementFunctions = new IdentityHashMap<>();
+    CallNode root = new CallNode(null);
+
+    //the active calls, the innermost at depth - 1
+    FunStats[] stats = new FunStats[64];
+    CallNode[] nodes = new CallNode[64];
+    long[] startNanos = new long[64];
+    long[] startBytes = new long[64];
+    //the inclusive time and bytes of the calls that the active calls have made
+    long[] childNanos = new long[64];
+    long[] childBytes = new long[64];
+    int depth = 0;
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+
+    long allocatedBytes(){
+        return threads.getThreadAllocatedBytes(thread);
+    }
+
+    public void enter(String id){
+        if (depth == stats.length){
+            int size = 2 * depth;
+            stats = Arrays.copyOf(stats, size);
+            nodes = Arrays.copyOf(nodes, size);
+            startNanos = Arrays.copyOf(startNanos, size);
+            startBytes = Arrays.copyOf(startBytes, size);
+            childNanos = Arrays.copyOf(childNanos, size);
+            childBytes = Arrays.copyOf(childBytes, size);
+        }
+        FunStats function = functions.get(id);
+        if (function == null){
+            function = new FunStats(id);
+            functions.put(id, function);
+        }
+        function.calls++;
+        function.active++;
+        stats[depth] = function;
+        nodes[depth] = (depth == 0 ? root : nodes[depth - 1]).child(id);
+        childNanos[depth] = 0;
+        childBytes[depth] = 0;
+        startBytes[depth] = allocatedBytes();
+        startNanos[depth] = System.nanoTime();
+        depth++;
+    }
+
+    public void exit(){
+        long nanos = System.nanoTime();
+        long bytes = allocatedBytes();
+        depth--;
+        FunStats function = stats[depth];
+        long inclusiveNanos = nanos - startNanos[depth];
+        long inclusiveBytes = bytes - startBytes[depth];
+        long exclusiveNanos = inclusiveNanos - childNanos[depth];
+        function.exclusiveNanos += exclusiveNanos;
+        function.exclusiveBytes += inclusiveBytes - childBytes[depth];
+        function.active--;
+        if (function.active == 0){
+            function.inclusiveNanos += inclusiveNanos;
+            function.inclusiveBytes += inclusiveBytes;
+        }
+        nodes[depth].exclusiveNanos += exclusiveNanos;
+        if (depth > 0){
+            childNanos[depth - 1] += inclusiveNanos;
+            childBytes[depth - 1] += inclusiveBytes;
+        }
+    }
+
+    public void statement(Stm stm){
+        long[] count = statements.get(stm);
+        if (count == null){
+            count = new long[1];
+            statements.put(stm, count);
+            statementFunctions.put(stm, depth > 0 ? stats[depth - 1].id : "");
+        }
+        count[0]++;
+    }
+
+    //the functions sorted by exclusive time, and the statements that were executed most often
+    public void writeReport(String file, int maxStatements) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            ArrayList<FunStats> sorted = new ArrayList<>(functions.values());
+            sorted.sort((a, b) -> Long.compare(b.exclusiveNanos, a.exclusiveNanos));
+            out.printf("%-20s %12s %12s %12s %14s %14s%n",
+                    "function", "calls", "incl ms", "excl ms", "incl bytes", "excl bytes");
+            for (FunStats f : sorted){
+                out.printf("%-20s %12d %12.3f %12.3f %14d %14d%n",
+                        f.id, f.calls, f.inclusiveNanos / 1e6, f.exclusiveNanos / 1e6, f.inclusiveBytes, f.exclusiveBytes);
+            }
+            out.println();
+            ArrayList<Map.Entry<Stm, long[]>> counts = new ArrayList<>(statements.entrySet());
+            counts.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+            out.printf("%12s %-20s %s%n", "executions", "function", "statement");
+            for (int i = 0; i < counts.size() && i < maxStatements; i++){
+                Stm stm = counts.get(i).getKey();
+                out.printf("%12d %-20s %s%n", counts.get(i).getValue()[0], statementFunctions.get(stm), summary(stm));
+            }
+        }
+    }
+
+    //the first line of the statement, shortened
+    static String summary(Stm stm){
+        String text = PrettyPrinter.print(stm).trim();
+        int newline = text.indexOf('\n');
+        if (newline >= 0){
+            text = text.substring(0, newline).trim() + " ...";
+        }
+        return text.length() > 60 ? text.substring(0, 57) + "..." : text;
+    }
+
+    //one line per calling context: the functions from main separated by semicolons, and the exclusive time in
+    //microseconds. The tree is walked with an explicit stack, because deep recursion in C-- makes it deep.
+    public void writeCollapsed(String file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            StringBuilder path = new StringBuilder();
+            ArrayDeque<Iterator<CallNode>> pending = new ArrayDeque<>();
+            ArrayDeque<Integer> lengths = new ArrayDeque<>();
+            pending.push(root.children.values().iterator());
+            while (!pending.isEmpty()){
+                if (!pending.peek().hasNext()){
+                    pending.pop();
+                    if (!lengths.isEmpty()){
+                        path.setLength(lengths.pop());
+                    }
+                    continue;
+                }
+                CallNode node = pending.peek().next();
+                lengths.push(path.length());
+                if (path.length() > 0){
+                    path.append(';');
+                }
+                path.append(node.id);
+                long micros = node.exclusiveNanos / 1000;
+                if (micros > 0){
+                    out.println(path + " " + micros);
+                }
+                pending.push(node.children.values().iterator());
+            }
+        }
+    }
+}
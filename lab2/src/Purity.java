@@ -0,0 +1,194 @@
+import cmm.Absyn.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+//Finds the pure functions of a program. C-- has no global variables and no pointers, so the only side effects a function
+//can have are input and output. A function that never calls printInt, printDouble, readInt or readDouble, neither
+//directly nor through the functions it calls, always returns the same value for the same arguments.
+public class Purity {
+
+    static final HashSet<String> BUILTINS = new HashSet<>();
+    static {
+        BUILTINS.add("printInt");
+        BUILTINS.add("printDouble");
+        BUILTINS.add("readInt");
+        BUILTINS.add("readDouble");
+    }
+
+    public static HashSet<String> pureFunctions(Program p){
+        PDefs pDefs = (PDefs) p;
+        //the functions that every function calls
+        HashMap<String, HashSet<String>> calls = new HashMap<>();
+        for (Def def : pDefs.listdef_){
+            DFun dFun = (DFun) def;
+            HashSet<String> callees = new HashSet<>();
+            for (Stm stm : dFun.liststm_){
+                stm.accept(new CallsStm(), callees);
+            }
+            calls.put(dFun.id_, callees);
+        }
+        //the functions that call a built-in function are impure, and so are the functions that call an impure function
+        HashMap<String, HashSet<String>> callers = new HashMap<>();
+        HashSet<String> impure = new HashSet<>();
+        LinkedList<String> worklist = new LinkedList<>();
+        for (String caller : calls.keySet()){
+            for (String callee : calls.get(caller)){
+                if (!callers.containsKey(callee)){
+                    callers.put(callee, new HashSet<>());
+                }
+                callers.get(callee).add(caller);
+                if (BUILTINS.contains(callee) && impure.add(caller)){
+                    worklist.add(caller);
+                }
+            }
+        }
+        while (!worklist.isEmpty()){
+            String id = worklist.removeFirst();
+            if (callers.containsKey(id)){
+                for (String caller : callers.get(id)){
+                    if (impure.add(caller)){
+                        worklist.add(caller);
+                    }
+                }
+            }
+        }
+        HashSet<String> pure = new HashSet<>(calls.keySet());
+        pure.removeAll(impure);
+        return pure;
+    }
+
+    //collects the functions that are called in a statement
+    private static class CallsStm implements Stm.Visitor<Object, HashSet<String>> {
+
+        @Override
+        public Object visit(SExp p, HashSet<String> arg) {
+            return p.exp_.accept(new CallsExp(), arg);
+        }
+
+        @Override
+        public Object visit(SDecls p, HashSet<String> arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(SInit p, HashSet<String> arg) {
+            return p.exp_.accept(new CallsExp(), arg);
+        }
+
+        @Override
+        public Object visit(SReturn p, HashSet<String> arg) {
+            return p.exp_.accept(new CallsExp(), arg);
+        }
+
+        @Override
+        public Object visit(SWhile p, HashSet<String> arg) {
+            p.exp_.accept(new CallsExp(), arg);
+            return p.stm_.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(SBlock p, HashSet<String> arg) {
+            for (Stm stm : p.liststm_){
+                stm.accept(this, arg);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(SIfElse p, HashSet<String> arg) {
+            p.exp_.accept(new CallsExp(), arg);
+            p.stm_1.accept(this, arg);
+            return p.stm_2.accept(this, arg);
+        }
+    }
+
+    //collects the functions that are called in an expression
+    private static class CallsExp implements Exp.Visitor<Object, HashSet<String>> {
+
+        @Override
+        public Object visit(EBool p, HashSet<String> arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(EInt p, HashSet<String> arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(EDouble p, HashSet<String> arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(EId p, HashSet<String> arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(EApp p, HashSet<String> arg) {
+            arg.add(p.id_);
+            for (Exp exp : p.listexp_){
+                exp.accept(this, arg);
+            }
+            return null;
+        }
+
+        @Override
+        public Object visit(EPost p, HashSet<String> arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(EPre p, HashSet<String> arg) {
+            return null;
+        }
+
+        @Override
+        public Object visit(EMul p, HashSet<String> arg) {
+            p.exp_1.accept(this, arg);
+            return p.exp_2.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(EAdd p, HashSet<String> arg) {
+            p.exp_1.accept(this, arg);
+            return p.exp_2.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(ECmp p, HashSet<String> arg) {
+            p.exp_1.accept(this, arg);
+            return p.exp_2.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(EAnd p, HashSet<String> arg) {
+            p.exp_1.accept(this, arg);
+            return p.exp_2.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(EOr p, HashSet<String> arg) {
+            p.exp_1.accept(this, arg);
+            return p.exp_2.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(EAss p, HashSet<String> arg) {
+            return p.exp_.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(ETyped p, HashSet<String> arg) {
+            return p.exp_.accept(this, arg);
+        }
+
+        @Override
+        public Object visit(EConv p, HashSet<String> arg) {
+            return p.exp_.accept(this, arg);
+        }
+    }
+}
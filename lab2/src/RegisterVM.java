@@ -0,0 +1,462 @@
+import java.util.Arrays;
+
+//A register machine for C--. Programs are lowered to it by the BytecodeCompiler.
+//
+//Every function has its own code array of ints: an opcode followed by its operands. The machine has two register files,
+//one for int and bool values (a bool is 0 or 1) and one for double values. A function sees a window of each file that
+//starts at its base: the first registers of the window hold its variables (the Resolver slots), the rest its temporaries.
+//A call slides the windows up to the registers where the caller has put the arguments, so the arguments do not have to
+//be copied. The call stack is kept in arrays on the heap, so running a C-- program never recurses on the Java stack.
+public class RegisterVM {
+
+    //I[a] = k
+    public static final int ICONST = 0;
+    //D[a] = constant number k of the function
+    public static final int DCONST = 1;
+    //I[a] = I[b]
+    public static final int IMOV = 2;
+    //D[a] = D[b]
+    public static final int DMOV = 3;
+    //D[a] = I[b]
+    public static final int I2D = 4;
+    //I[a] = (int) D[b]
+    public static final int D2I = 5;
+    //I[a] = I[b] op I[c]
+    public static final int IADD = 6;
+    public static final int ISUB = 7;
+    public static final int IMUL = 8;
+    public static final int IDIV = 9;
+    //D[a] = D[b] op D[c]
+    public static final int DADD = 10;
+    public static final int DSUB = 11;
+    public static final int DMUL = 12;
+    public static final int DDIV = 13;
+    //I[a] = I[a] + k, D[a] = D[a] + k
+    public static final int IINC = 14;
+    public static final int DINC = 15;
+    //I[a] = I[b] op I[c] ? 1 : 0
+    public static final int ILT = 16;
+    public static final int IGT = 17;
+    public static final int ILE = 18;
+    public static final int IGE = 19;
+    public static final int IEQ = 20;
+    public static final int INE = 21;
+    //I[a] = D[b] op D[c] ? 1 : 0
+    public static final int DLT = 22;
+    public static final int DGT = 23;
+    public static final int DLE = 24;
+    public static final int DGE = 25;
+    public static final int DEQ = 26;
+    public static final int DNE = 27;
+    //jump to c if I[a] op I[b]
+    public static final int JILT = 28;
+    public static final int JIGT = 29;
+    public static final int JILE = 30;
+    public static final int JIGE = 31;
+    public static final int JIEQ = 32;
+    public static final int JINE = 33;
+    //jump to b if I[a] == 0, or if I[a] != 0
+    public static final int JZ = 34;
+    public static final int JNZ = 35;
+    //jump to a
+    public static final int JMP = 36;
+    //call function a with its windows starting at I[b] and D[c]
+    public static final int CALL = 37;
+    //return I[a] or D[a] in the first register of the window, or return nothing
+    public static final int IRET = 38;
+    public static final int DRET = 39;
+    public static final int RET = 40;
+    //built-in functions
+    public static final int PRINTI = 41;
+    public static final int PRINTD = 42;
+    public static final int READI = 43;
+    public static final int READD = 44;
+    //mark the variable in I[a] or D[a] as uninitialized
+    public static final int IDECL = 45;
+    public static final int DDECL = 46;
+    //fail if the variable in I[a] or D[a] is uninitialized
+    public static final int ICHK = 47;
+    public static final int DCHK = 48;
+    //I[a] = I[b] op k, for a constant right operand
+    public static final int IADDK = 49;
+    public static final int ISUBK = 50;
+    public static final int IMULK = 51;
+    public static final int IDIVK = 52;
+    //jump to c if I[a] op k
+    public static final int JILTK = 53;
+    public static final int JIGTK = 54;
+    public static final int JILEK = 55;
+    public static final int JIGEK = 56;
+    public static final int JIEQK = 57;
+    public static final int JINEK = 58;
+
+    //the number of operands of every opcode
+    public static final int[] OPERANDS = {
+        2, 2, 2, 2, 2, 2,
+        3, 3, 3, 3, 3, 3, 3, 3,
+        2, 2,
+        3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3,
+        3, 3, 3, 3, 3, 3,
+        2, 2, 1,
+        3, 1, 1, 0,
+        1, 1, 1, 1,
+        1, 1, 1, 1,
+        3, 3, 3, 3,
+        3, 3, 3, 3, 3, 3
+    };
+
+    //an uninitialized int or bool variable holds a value that no int can have
+    public static final long UNINITIALIZED = Long.MIN_VALUE;
+    //an uninitialized double variable holds a NaN with a payload that arithmetic never produces
+    public static final long UNINITIALIZED_DOUBLE = 0x7ff8dead0000beefL;
+
+    //a function lowered to register code
+    public static class Function {
+        public String id;
+        public int[] code;
+        public double[] constants;
+        //the number of int and double registers in the window of the function
+        public int intRegisters;
+        public int doubleRegisters;
+
+        public Function(String id){
+            this.id = id;
+        }
+    }
+
+    public Function[] functions;
+    public int main;
+
+    long[] I = new long[1024];
+    double[] D = new double[1024];
+
+    //the call stack: for every active call the function, return address and windows of the caller
+    int[] stackFunction = new int[256];
+    int[] stackPc = new int[256];
+    int[] stackIntBase = new int[256];
+    int[] stackDoubleBase = new int[256];
+    int sp = 0;
+
+    //the limits of the call stack. A program that goes deeper stops with a RuntimeException instead of running out of
+    //memory. The bytes are those of the stack entries and of the register windows of all active calls.
+    public static final int DEFAULT_MAX_FRAMES = 1 << 20;
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+    public int maxFrames = DEFAULT_MAX_FRAMES;
+    public long maxBytes = DEFAULT_MAX_BYTES;
+    //the bytes of one entry of the call stack, and of one register
+    static final int FRAME_BYTES = 16;
+    static final int REGISTER_BYTES = 8;
+
+    public RegisterVM(Function[] functions, int main){
+        this.functions = functions;
+        this.main = main;
+    }
+
+    public void run(){
+        int fn = main;
+        Function f = functions[fn];
+        int[] code = f.code;
+        double[] constants = f.constants;
+        int pc = 0;
+        int ib = 0;
+        int db = 0;
+        ensureRegisters(f, ib, db);
+        long[] I = this.I;
+        double[] D = this.D;
+
+        while (true) {
+            switch (code[pc]) {
+                case ICONST:
+                    I[ib + code[pc + 1]] = code[pc + 2];
+                    pc += 3;
+                    break;
+                case DCONST:
+                    D[db + code[pc + 1]] = constants[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case IMOV:
+                    I[ib + code[pc + 1]] = I[ib + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case DMOV:
+                    D[db + code[pc + 1]] = D[db + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case I2D:
+                    D[db + code[pc + 1]] = I[ib + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case D2I:
+                    I[ib + code[pc + 1]] = (int) D[db + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case IADD:
+                    I[ib + code[pc + 1]] = (int) (I[ib + code[pc + 2]] + I[ib + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case ISUB:
+                    I[ib + code[pc + 1]] = (int) (I[ib + code[pc + 2]] - I[ib + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case IMUL:
+                    I[ib + code[pc + 1]] = (int) I[ib + code[pc + 2]] * (int) I[ib + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case IDIV:
+                    I[ib + code[pc + 1]] = (int) I[ib + code[pc + 2]] / (int) I[ib + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case DADD:
+                    D[db + code[pc + 1]] = D[db + code[pc + 2]] + D[db + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case DSUB:
+                    D[db + code[pc + 1]] = D[db + code[pc + 2]] - D[db + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case DMUL:
+                    D[db + code[pc + 1]] = D[db + code[pc + 2]] * D[db + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case DDIV:
+                    D[db + code[pc + 1]] = D[db + code[pc + 2]] / D[db + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case IINC:
+                    I[ib + code[pc + 1]] = (int) (I[ib + code[pc + 1]] + code[pc + 2]);
+                    pc += 3;
+                    break;
+                case DINC:
+                    D[db + code[pc + 1]] += code[pc + 2];
+                    pc += 3;
+                    break;
+                case ILT:
+                    I[ib + code[pc + 1]] = I[ib + code[pc + 2]] < I[ib + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case IGT:
+                    I[ib + code[pc + 1]] = I[ib + code[pc + 2]] > I[ib + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case ILE:
+                    I[ib + code[pc + 1]] = I[ib + code[pc + 2]] <= I[ib + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case IGE:
+                    I[ib + code[pc + 1]] = I[ib + code[pc + 2]] >= I[ib + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case IEQ:
+                    I[ib + code[pc + 1]] = I[ib + code[pc + 2]] == I[ib + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                case INE:
+                    I[ib + code[pc + 1]] = I[ib + code[pc + 2]] != I[ib + code[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                    break;
+                //Double.compare gives the same result as the compareTo and equals used by the tree-walking interpreter
+                case DLT:
+                    I[ib + code[pc + 1]] = Double.compare(D[db + code[pc + 2]], D[db + code[pc + 3]]) < 0 ? 1 : 0;
+                    pc += 4;
+                    break;
+                case DGT:
+                    I[ib + code[pc + 1]] = Double.compare(D[db + code[pc + 2]], D[db + code[pc + 3]]) > 0 ? 1 : 0;
+                    pc += 4;
+                    break;
+                case DLE:
+                    I[ib + code[pc + 1]] = Double.compare(D[db + code[pc + 2]], D[db + code[pc + 3]]) <= 0 ? 1 : 0;
+                    pc += 4;
+                    break;
+                case DGE:
+                    I[ib + code[pc + 1]] = Double.compare(D[db + code[pc + 2]], D[db + code[pc + 3]]) >= 0 ? 1 : 0;
+                    pc += 4;
+                    break;
+                case DEQ:
+                    I[ib + code[pc + 1]] = Double.compare(D[db + code[pc + 2]], D[db + code[pc + 3]]) == 0 ? 1 : 0;
+                    pc += 4;
+                    break;
+                case DNE:
+                    I[ib + code[pc + 1]] = Double.compare(D[db + code[pc + 2]], D[db + code[pc + 3]]) != 0 ? 1 : 0;
+                    pc += 4;
+                    break;
+                case JILT:
+                    pc = I[ib + code[pc + 1]] < I[ib + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JIGT:
+                    pc = I[ib + code[pc + 1]] > I[ib + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JILE:
+                    pc = I[ib + code[pc + 1]] <= I[ib + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JIGE:
+                    pc = I[ib + code[pc + 1]] >= I[ib + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JIEQ:
+                    pc = I[ib + code[pc + 1]] == I[ib + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JINE:
+                    pc = I[ib + code[pc + 1]] != I[ib + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case JZ:
+                    pc = I[ib + code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+                    break;
+                case JNZ:
+                    pc = I[ib + code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+                    break;
+                case JMP:
+                    pc = code[pc + 1];
+                    break;
+                case CALL: {
+                    //main is frame 1, so the callee will be frame sp + 2
+                    if (sp + 2 > maxFrames) {
+                        throw stackOverflow(sp + 2);
+                    }
+                    if (sp == stackPc.length) {
+                        growStack();
+                    }
+                    stackFunction[sp] = fn;
+                    stackPc[sp] = pc + 4;
+                    stackIntBase[sp] = ib;
+                    stackDoubleBase[sp] = db;
+                    sp++;
+                    ib += code[pc + 2];
+                    db += code[pc + 3];
+                    fn = code[pc + 1];
+                    f = functions[fn];
+                    if (REGISTER_BYTES * ((long) ib + f.intRegisters + db + f.doubleRegisters)
+                            + FRAME_BYTES * (long) sp > maxBytes) {
+                        throw stackOverflow(sp + 1);
+                    }
+                    if (ensureRegisters(f, ib, db)) {
+                        I = this.I;
+                        D = this.D;
+                    }
+                    code = f.code;
+                    constants = f.constants;
+                    pc = 0;
+                    break;
+                }
+                case IRET:
+                case DRET:
+                case RET: {
+                    if (code[pc] == IRET) {
+                        I[ib] = I[ib + code[pc + 1]];
+                    } else if (code[pc] == DRET) {
+                        D[db] = D[db + code[pc + 1]];
+                    }
+                    if (sp == 0) {
+                        return;
+                    }
+                    sp--;
+                    fn = stackFunction[sp];
+                    pc = stackPc[sp];
+                    ib = stackIntBase[sp];
+                    db = stackDoubleBase[sp];
+                    f = functions[fn];
+                    code = f.code;
+                    constants = f.constants;
+                    break;
+                }
+                case PRINTI:
+                    Builtins.printInt((int) I[ib + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case PRINTD:
+                    Builtins.printDouble(D[db + code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case READI:
+                    I[ib + code[pc + 1]] = Builtins.readInt();
+                    pc += 2;
+                    break;
+                case READD:
+                    D[db + code[pc + 1]] = Builtins.readDouble();
+                    pc += 2;
+                    break;
+                case IDECL:
+                    I[ib + code[pc + 1]] = UNINITIALIZED;
+                    pc += 2;
+                    break;
+                case DDECL:
+                    D[db + code[pc + 1]] = Double.longBitsToDouble(UNINITIALIZED_DOUBLE);
+                    pc += 2;
+                    break;
+                case ICHK:
+                    if (I[ib + code[pc + 1]] == UNINITIALIZED) {
+                        throw new RuntimeException("Variable has not been initialized");
+                    }
+                    pc += 2;
+                    break;
+                case DCHK:
+                    if (Double.doubleToRawLongBits(D[db + code[pc + 1]]) == UNINITIALIZED_DOUBLE) {
+                        throw new RuntimeException("Variable has not been initialized");
+                    }
+                    pc += 2;
+                    break;
+                case IADDK:
+                    I[ib + code[pc + 1]] = (int) (I[ib + code[pc + 2]] + code[pc + 3]);
+                    pc += 4;
+                    break;
+                case ISUBK:
+                    I[ib + code[pc + 1]] = (int) (I[ib + code[pc + 2]] - code[pc + 3]);
+                    pc += 4;
+                    break;
+                case IMULK:
+                    I[ib + code[pc + 1]] = (int) I[ib + code[pc + 2]] * code[pc + 3];
+                    pc += 4;
+                    break;
+                case IDIVK:
+                    I[ib + code[pc + 1]] = (int) I[ib + code[pc + 2]] / code[pc + 3];
+                    pc += 4;
+                    break;
+                case JILTK:
+                    pc = I[ib + code[pc + 1]] < code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case JIGTK:
+                    pc = I[ib + code[pc + 1]] > code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case JILEK:
+                    pc = I[ib + code[pc + 1]] <= code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case JIGEK:
+                    pc = I[ib + code[pc + 1]] >= code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case JIEQK:
+                    pc = I[ib + code[pc + 1]] == code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case JINEK:
+                    pc = I[ib + code[pc + 1]] != code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                default:
+                    throw new RuntimeException("Unknown opcode " + code[pc] + " in function " + f.id);
+            }
+        }
+    }
+
+    //make sure that the register files have room for the windows of a function. Returns true if they had to grow.
+    boolean ensureRegisters(Function f, int ib, int db){
+        boolean grown = false;
+        if (ib + f.intRegisters > I.length) {
+            I = Arrays.copyOf(I, Math.max(2 * I.length, ib + f.intRegisters));
+            grown = true;
+        }
+        if (db + f.doubleRegisters > D.length) {
+            D = Arrays.copyOf(D, Math.max(2 * D.length, db + f.doubleRegisters));
+            grown = true;
+        }
+        return grown;
+    }
+
+    RuntimeException stackOverflow(int frames){
+        return new RuntimeException("Call stack overflow at " + frames + " frames (limits: " + maxFrames + " frames, "
+                + maxBytes + " bytes)");
+    }
+
+    void growStack(){
+        int size = 2 * stackPc.length;
+        stackFunction = Arrays.copyOf(stackFunction, size);
+        stackPc = Arrays.copyOf(stackPc, size);
+        stackIntBase = Arrays.copyOf(stackIntBase, size);
+        stackDoubleBase = Arrays.copyOf(stackDoubleBase, size);
+    }
+}
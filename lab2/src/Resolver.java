@@ -0,0 +1,335 @@
+import cmm.Absyn.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+
+//Static lexical addressing. This pass runs after the type checker and gives every variable occurrence a fixed slot in a
+//flat frame array, in the same way the compiler in lab3 gives every variable a memory address. The interpreter can then
+//read and write variables by index instead of searching the contexts for the variable name.
+//
+//The slots are kept in two ways. The engines that compile a function once look them up by node in FunInfo.slots. The
+//tree-walking Interpreter runs a copy of the body, FunInfo.body, in which every variable occurrence is a node that
+//carries its slot, so a variable access is an array access without a lookup.
+public class Resolver {
+
+    //the variable occurrences of a resolved body, with their slots
+    public static class SlotId extends EId {
+        private static final long serialVersionUID = 1L;
+
+        public final int slot;
+
+        public SlotId(String id, int slot){
+            super(id);
+            this.slot = slot;
+        }
+    }
+
+    public static class SlotAss extends EAss {
+        private static final long serialVersionUID = 1L;
+
+        public final int slot;
+
+        public SlotAss(String id, Exp exp, int slot){
+            super(id, exp);
+            this.slot = slot;
+        }
+    }
+
+    public static class SlotPost extends EPost {
+        private static final long serialVersionUID = 1L;
+
+        public final int slot;
+
+        public SlotPost(String id, IncDecOp op, int slot){
+            super(id, op);
+            this.slot = slot;
+        }
+    }
+
+    public static class SlotPre extends EPre {
+        private static final long serialVersionUID = 1L;
+
+        public final int slot;
+
+        public SlotPre(IncDecOp op, String id, int slot){
+            super(op, id);
+            this.slot = slot;
+        }
+    }
+
+    public static class SlotInit extends SInit {
+        private static final long serialVersionUID = 1L;
+
+        public final int slot;
+
+        public SlotInit(Type type, String id, Exp exp, int slot){
+            super(type, id, exp);
+            this.slot = slot;
+        }
+    }
+
+    public static class SlotDecls extends SDecls {
+        private static final long serialVersionUID = 1L;
+
+        public final int[] slots;
+
+        public SlotDecls(Type type, ListId ids, int[] slots){
+            super(type, ids);
+            this.slots = slots;
+        }
+    }
+
+    //the frame layout of a single function
+    public static class FunInfo {
+        public DFun dFun;
+        //number of slots needed for all the parameters and local variables of the function
+        public int frameSize = 0;
+        //the declared type of the variable in each slot. Needed to cast int values to double on assignment.
+        public ArrayList<Type> slotTypes = new ArrayList<>();
+        //the slot of every EId, EAss, EPost, EPre and SInit node in the function body
+        public IdentityHashMap<Object,Integer> slots = new IdentityHashMap<>();
+        //the slots of the variables declared by every SDecls node
+        public IdentityHashMap<SDecls,int[]> declSlots = new IdentityHashMap<>();
+        //the body with every variable occurrence replaced by a node with its slot
+        public ListStm body = new ListStm();
+
+        public FunInfo(DFun dFun){
+            this.dFun = dFun;
+        }
+
+        public int slot(Object node){
+            return slots.get(node);
+        }
+
+        public boolean isDouble(int slot){
+            return slotTypes.get(slot) instanceof Type_double;
+        }
+    }
+
+    public static class Env {
+        public FunInfo fun;
+        public LinkedList<HashMap<String,Integer>> addresses = new LinkedList<>();
+
+        public Env(FunInfo fun){
+            this.fun = fun;
+        }
+
+        public int lookupVar(String id){
+            for (HashMap<String,Integer> context : addresses){
+                if (context.containsKey(id)){
+                    return context.get(id);
+                }
+            }
+            //this will not happen, because the type checker has already checked that every variable is declared.
+            throw new RuntimeException("Variable with id "+id+" has not been declared");
+        }
+
+        //give the variable a new slot in the top-most context. Slots are never reused, so a variable in an inner block
+        //can never overwrite a variable with the same name in an outer block.
+        public int extend(String id, Type t){
+            if (addresses.isEmpty()){
+                newBlock();
+            }
+            int slot = fun.frameSize;
+            fun.frameSize += 1;
+            fun.slotTypes.add(t);
+            addresses.get(0).put(id,slot);
+            return slot;
+        }
+
+        public void newBlock(){
+            addresses.addFirst(new HashMap<>());
+        }
+
+        public void exitBlock(){
+            addresses.pop();
+        }
+    }
+
+    public HashMap<String,FunInfo> functions = new HashMap<>();
+
+    public HashMap<String,FunInfo> resolve(Program p){
+        PDefs pDefs = (PDefs) p;
+        for (Def def : pDefs.listdef_){
+            DFun dFun = (DFun) def;
+            functions.put(dFun.id_,resolve(dFun));
+        }
+        return functions;
+    }
+
+    public FunInfo resolve(DFun dFun){
+        FunInfo fun = new FunInfo(dFun);
+        Env env = new Env(fun);
+        env.newBlock();
+        //the parameters always get the first slots, in the order they are declared.
+        for (Arg arg : dFun.listarg_){
+            ADecl aDecl = (ADecl) arg;
+            env.extend(aDecl.id_,aDecl.type_);
+        }
+        for (Stm stm : dFun.liststm_){
+            fun.body.add(stm.accept(new ResolveStm(),env));
+        }
+        env.exitBlock();
+        return fun;
+    }
+
+    //records the slots of a statement and returns its resolved copy
+    private static class ResolveStm implements Stm.Visitor<Stm,Env> {
+
+        @Override
+        public Stm visit(SExp p, Env arg) {
+            return new SExp(p.exp_.accept(new ResolveExp(),arg));
+        }
+
+        @Override
+        public Stm visit(SDecls p, Env arg) {
+            int[] slots = new int[p.listid_.size()];
+            int i = 0;
+            for (String id : p.listid_){
+                slots[i] = arg.extend(id,p.type_);
+                i++;
+            }
+            arg.fun.declSlots.put(p,slots);
+            return new SlotDecls(p.type_,p.listid_,slots);
+        }
+
+        @Override
+        public Stm visit(SInit p, Env arg) {
+            //the variable is in scope in its own initializer, just like in the type checker.
+            int slot = arg.extend(p.id_,p.type_);
+            arg.fun.slots.put(p,slot);
+            return new SlotInit(p.type_,p.id_,p.exp_.accept(new ResolveExp(),arg),slot);
+        }
+
+        @Override
+        public Stm visit(SReturn p, Env arg) {
+            return new SReturn(p.exp_.accept(new ResolveExp(),arg));
+        }
+
+        @Override
+        public Stm visit(SWhile p, Env arg) {
+            Exp exp = p.exp_.accept(new ResolveExp(),arg);
+            arg.newBlock();
+            Stm stm = p.stm_.accept(this,arg);
+            arg.exitBlock();
+            return new SWhile(exp,stm);
+        }
+
+        @Override
+        public Stm visit(SBlock p, Env arg) {
+            ListStm stms = new ListStm();
+            arg.newBlock();
+            for (Stm stm : p.liststm_){
+                stms.add(stm.accept(this,arg));
+            }
+            arg.exitBlock();
+            return new SBlock(stms);
+        }
+
+        @Override
+        public Stm visit(SIfElse p, Env arg) {
+            Exp exp = p.exp_.accept(new ResolveExp(),arg);
+            arg.newBlock();
+            Stm stm1 = p.stm_1.accept(this,arg);
+            arg.exitBlock();
+            arg.newBlock();
+            Stm stm2 = p.stm_2.accept(this,arg);
+            arg.exitBlock();
+            return new SIfElse(exp,stm1,stm2);
+        }
+    }
+
+    //records the slots of an expression and returns its resolved copy
+    private static class ResolveExp implements Exp.Visitor<Exp,Env> {
+
+        @Override
+        public Exp visit(EBool p, Env arg) {
+            return p;
+        }
+
+        @Override
+        public Exp visit(EInt p, Env arg) {
+            return p;
+        }
+
+        @Override
+        public Exp visit(EDouble p, Env arg) {
+            return p;
+        }
+
+        @Override
+        public Exp visit(EId p, Env arg) {
+            int slot = arg.lookupVar(p.id_);
+            arg.fun.slots.put(p,slot);
+            return new SlotId(p.id_,slot);
+        }
+
+        @Override
+        public Exp visit(EApp p, Env arg) {
+            ListExp exps = new ListExp();
+            for (Exp exp : p.listexp_){
+                exps.add(exp.accept(this,arg));
+            }
+            return new EApp(p.id_,exps);
+        }
+
+        @Override
+        public Exp visit(EPost p, Env arg) {
+            int slot = arg.lookupVar(p.id_);
+            arg.fun.slots.put(p,slot);
+            return new SlotPost(p.id_,p.incdecop_,slot);
+        }
+
+        @Override
+        public Exp visit(EPre p, Env arg) {
+            int slot = arg.lookupVar(p.id_);
+            arg.fun.slots.put(p,slot);
+            return new SlotPre(p.incdecop_,p.id_,slot);
+        }
+
+        @Override
+        public Exp visit(EMul p, Env arg) {
+            return new EMul(p.exp_1.accept(this,arg),p.mulop_,p.exp_2.accept(this,arg));
+        }
+
+        @Override
+        public Exp visit(EAdd p, Env arg) {
+            return new EAdd(p.exp_1.accept(this,arg),p.addop_,p.exp_2.accept(this,arg));
+        }
+
+        @Override
+        public Exp visit(ECmp p, Env arg) {
+            return new ECmp(p.exp_1.accept(this,arg),p.cmpop_,p.exp_2.accept(this,arg));
+        }
+
+        @Override
+        public Exp visit(EAnd p, Env arg) {
+            return new EAnd(p.exp_1.accept(this,arg),p.exp_2.accept(this,arg));
+        }
+
+        @Override
+        public Exp visit(EOr p, Env arg) {
+            return new EOr(p.exp_1.accept(this,arg),p.exp_2.accept(this,arg));
+        }
+
+        @Override
+        public Exp visit(EAss p, Env arg) {
+            Exp exp = p.exp_.accept(this,arg);
+            int slot = arg.lookupVar(p.id_);
+            arg.fun.slots.put(p,slot);
+            return new SlotAss(p.id_,exp,slot);
+        }
+
+        @Override
+        public Exp visit(ETyped p, Env arg) {
+            return new ETyped(p.exp_.accept(this,arg),p.type_);
+        }
+
+        @Override
+        public Exp visit(EConv p, Env arg) {
+            return new EConv(p.type_,p.exp_.accept(this,arg));
+        }
+    }
+}
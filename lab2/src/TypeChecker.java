@@ -1,7 +1,10 @@
 import cmm.Absyn.*;
 import cmm.VisitSkel;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 
 public class TypeChecker {
@@ -64,6 +67,8 @@ public class TypeChecker {
 
         public HashMap<String, FunType> signatures = new HashMap<>();
         public LinkedList<HashMap<String, Type>> contexts = new LinkedList<>();
+        //the inferred type of every expression in the program
+        public IdentityHashMap<Exp, Type> expTypes = new IdentityHashMap<>();
 
         public Type lookupVar(String id) {
             for (HashMap<String, Type> context : contexts) {
@@ -123,61 +128,165 @@ public class TypeChecker {
 
     }
 
-    public void typecheck(Program p) {
-        Env env = new Env();
+    //the inferred type of every expression, filled in by typecheck. The interpreter uses it to choose int-only,
+    //double-only or mixed arithmetic before it runs the program.
+    public IdentityHashMap<Exp, Type> expTypes;
+
+    //infer the type of an expression and remember it, and the types of its subexpressions, in the type table of the
+    //environment. The subexpressions are not inferred by recursion but in an order found with an explicit stack, so
+    //that a deep expression, like a generated sum of 100000 terms or a long chain of assignments, takes heap instead
+    //of Java stack. Every expression comes after its operands in the order, so InferExpType finds the types of the
+    //operands in the table.
+    public static Type infer(Exp e, Env env){
+        //the expressions with the operands of every expression after it, the right operands before the left ones.
+        //Backwards this is the order of a left to right recursion that infers the operands first.
+        ArrayList<Exp> order = new ArrayList<>();
+        ArrayDeque<Exp> stack = new ArrayDeque<>();
+        stack.push(e);
+        while (!stack.isEmpty()){
+            Exp next = stack.pop();
+            order.add(next);
+            pushOperands(next,stack);
+        }
+        InferExpType inferExpType = new InferExpType();
+        Type t = null;
+        for (int i = order.size() - 1; i >= 0; i--){
+            Exp next = order.get(i);
+            t = next.accept(inferExpType,env);
+            env.expTypes.put(next,t);
+        }
+        return t;
+    }
 
-        //type check the function headers/signatures
-        if (p instanceof PDefs){
-            PDefs pDefs = (PDefs) p;
-            for (Def def : pDefs.listdef_){
-                if (def instanceof DFun){
-                    DFun dfun = (DFun) def;
-                    FunType funType = new FunType(dfun.type_,dfun.listarg_);
-                    env.updateFun(dfun.id_,funType);
-                } else {
-                    //if definition is not a function definition, we need to throw an exception.
-                    throw new TypeException("Not a function definition");
-                }
-            }
-            if (!env.signatures.containsKey("main")){
-                throw new TypeException("No main function defined");
-            }
-            FunType main = env.lookupFun("main");
-            if (!main.args.isEmpty()){
-                throw new TypeException("Main function can not have any arguments");
-            }
-            if (!(main.type instanceof Type_int)){
-                throw new TypeException("The return type of the main function has to be int");
+    //push the operands of an expression on the stack, the last one on top
+    static void pushOperands(Exp e, ArrayDeque<Exp> stack){
+        if (e instanceof EApp){
+            for (Exp exp : ((EApp) e).listexp_){
+                stack.push(exp);
             }
+        } else if (e instanceof EMul){
+            stack.push(((EMul) e).exp_1);
+            stack.push(((EMul) e).exp_2);
+        } else if (e instanceof EAdd){
+            stack.push(((EAdd) e).exp_1);
+            stack.push(((EAdd) e).exp_2);
+        } else if (e instanceof ECmp){
+            stack.push(((ECmp) e).exp_1);
+            stack.push(((ECmp) e).exp_2);
+        } else if (e instanceof EAnd){
+            stack.push(((EAnd) e).exp_1);
+            stack.push(((EAnd) e).exp_2);
+        } else if (e instanceof EOr){
+            stack.push(((EOr) e).exp_1);
+            stack.push(((EOr) e).exp_2);
+        } else if (e instanceof EAss){
+            stack.push(((EAss) e).exp_);
+        } else if (e instanceof ETyped){
+            stack.push(((ETyped) e).exp_);
+        } else if (e instanceof EConv){
+            stack.push(((EConv) e).exp_);
+        }
+    }
+
+    //the type of an operand, which infer has put in the type table before it infers the expression
+    static Type operandType(Exp e, Env env){
+        return env.expTypes.get(e);
+    }
 
+    public void typecheck(Program p) {
+        if (p instanceof PDefs){
+            PDefs pDefs = (PDefs) p;
+            Env env = checkSignatures(pDefs);
             //go over each function and its body. Type check the function body.
             for (Def def : pDefs.listdef_){
-                //this environment stores the local context of the function, i.e. its argument list
-                Env fEnv = env;
-                DFun dfun = (DFun) def;
-                //create a new block scope for the function. in this scope the variables in the argument list of the function will exist
-                //they will not exist outside of this scope and will be removed eventually.
-                fEnv.newBlock();
-                fEnv.funType = dfun.type_;
-                for (Arg arg : dfun.listarg_){
-                    ADecl aDecl = (ADecl) arg;
-                    fEnv.updateVar(aDecl.id_, aDecl.type_);
-                }
-                for (Stm stm : dfun.liststm_){
-                    stm.accept(new CheckStm(),fEnv);
-                }
-                fEnv.exitBlock();
+                checkBody((DFun) def, env);
             }
         } else {
             throw new TypeException("Must be of type PDef");
         }
     }
 
+    //type check the function headers/signatures. The bodies are not looked at, so the definitions may also be
+    //signatures without their bodies, see LazyProgram.
+    public Env checkSignatures(PDefs pDefs) {
+        Env env = new Env();
+        expTypes = env.expTypes;
+        for (Def def : pDefs.listdef_){
+            if (def instanceof DFun){
+                DFun dfun = (DFun) def;
+                FunType funType = new FunType(dfun.type_,dfun.listarg_);
+                env.updateFun(dfun.id_,funType);
+            } else {
+                //if definition is not a function definition, we need to throw an exception.
+                throw new TypeException("Not a function definition");
+            }
+        }
+        if (!env.signatures.containsKey("main")){
+            throw new TypeException("No main function defined");
+        }
+        FunType main = env.lookupFun("main");
+        if (!main.args.isEmpty()){
+            throw new TypeException("Main function can not have any arguments");
+        }
+        if (!(main.type instanceof Type_int)){
+            throw new TypeException("The return type of the main function has to be int");
+        }
+        return env;
+    }
+
+    //type check the body of a function whose signature is in the environment
+    public void checkBody(DFun dfun, Env env) {
+        //this environment stores the local context of the function, i.e. its argument list
+        Env fEnv = env;
+        //create a new block scope for the function. in this scope the variables in the argument list of the function will exist
+        //they will not exist outside of this scope and will be removed eventually.
+        fEnv.newBlock();
+        fEnv.funType = dfun.type_;
+        for (Arg arg : dfun.listarg_){
+            ADecl aDecl = (ADecl) arg;
+            fEnv.updateVar(aDecl.id_, aDecl.type_);
+        }
+        new CheckStm().check(dfun.liststm_,fEnv);
+        fEnv.exitBlock();
+    }
+
+    //checks the statements of a body. The statements in a while, an if or a block are not checked by recursion, they
+    //are pushed on a stack of work between markers that open and close their blocks, so that deeply nested blocks take
+    //heap instead of Java stack.
     public static class CheckStm implements Stm.Visitor<Env,Env> {
 
+        //the markers on the work stack
+        private static final Object NEW_BLOCK = new Object();
+        private static final Object EXIT_BLOCK = new Object();
+
+        //the statements and markers still to do, the next one on top
+        private final ArrayDeque<Object> work = new ArrayDeque<>();
+
+        public void check(ListStm stms, Env env) {
+            pushStms(stms);
+            while (!work.isEmpty()){
+                Object next = work.pop();
+                if (next == NEW_BLOCK){
+                    env.newBlock();
+                } else if (next == EXIT_BLOCK){
+                    env.exitBlock();
+                } else {
+                    ((Stm) next).accept(this,env);
+                }
+            }
+        }
+
+        //push the statements, the first one on top
+        private void pushStms(ListStm stms) {
+            Stm[] array = stms.toArray(new Stm[0]);
+            for (int i = array.length - 1; i >= 0; i--){
+                work.push(array[i]);
+            }
+        }
+
         public Env visit(SExp p, Env arg) {
             //as long as it can infer a type for the expression, then the statement is valid.
-            p.exp_.accept(new InferExpType(),arg);
+            infer(p.exp_,arg);
             return arg;
         }
 
@@ -197,7 +306,7 @@ public class TypeChecker {
             //this is necessary. the only issue is that we need it as long as we do the infer exp.
             arg.updateVar(p.id_, p.type_);
             //check that the expression has a valid type
-            Type t = p.exp_.accept(new InferExpType(),arg);
+            Type t = infer(p.exp_,arg);
             //remove the variable from the contexts. This is necessary so that we can add it again.
             arg.removeVar(p.id_);
 
@@ -215,7 +324,7 @@ public class TypeChecker {
         @Override
         public Env visit(SReturn p, Env arg) {
             //check if the statement returns an expression with a valid type
-            Type rt = p.exp_.accept(new InferExpType(),arg);
+            Type rt = infer(p.exp_,arg);
             if (!rt.equals(arg.funType) && !(arg.funType instanceof Type_double && rt instanceof Type_int)){
                 throw new TypeException("The return type "+rt.toString()+" of the return statement does not match the return type of the function");
             }
@@ -224,11 +333,11 @@ public class TypeChecker {
 
         @Override
         public Env visit(SWhile p, Env arg) {
-            Type t = p.exp_.accept(new InferExpType(),arg);
+            Type t = infer(p.exp_,arg);
             if (typeCode(t).equals(TypeCode.CBool)){
                 arg.newBlock();
-                p.stm_.accept(this,arg);
-                arg.exitBlock();
+                work.push(EXIT_BLOCK);
+                work.push(p.stm_);
                 return arg;
             }
             throw new TypeException("Condition in while loop must be of type bool");
@@ -237,27 +346,24 @@ public class TypeChecker {
         @Override
         public Env visit(SBlock p, Env arg) {
             arg.newBlock();
-            for (Stm stm : p.liststm_){
-                //check the statements using the new environment, which has the block scope as its top-most context
-                //the other statements are checked using their regular environment.
-                stm.accept(new CheckStm(),arg);
-            }
-            arg.exitBlock();
+            //the statements are checked using the new environment, which has the block scope as its top-most context
+            //the other statements are checked using their regular environment.
+            work.push(EXIT_BLOCK);
+            pushStms(p.liststm_);
             return arg;
         }
 
         @Override
         public Env visit(SIfElse p, Env arg) {
-            Type t = p.exp_.accept(new InferExpType(),arg);
+            Type t = infer(p.exp_,arg);
             if (typeCode(t).equals(TypeCode.CBool)){
                 arg.newBlock();
-                //type check statement 1 in a new block
-                p.stm_1.accept(this,arg);
-                arg.exitBlock();
-                arg.newBlock();
-                //type check statement 2 in a new block.
-                p.stm_2.accept(this,arg);
-                arg.exitBlock();
+                //type check statement 2 in a new block, after statement 1 in a new block.
+                work.push(EXIT_BLOCK);
+                work.push(p.stm_2);
+                work.push(NEW_BLOCK);
+                work.push(EXIT_BLOCK);
+                work.push(p.stm_1);
                 return arg;
             } else {
                 throw new TypeException("Condition in if-else statement must be of type bool");
@@ -302,7 +408,7 @@ public class TypeChecker {
                 ADecl aDecl = (ADecl) listArg.get(i);
                 Exp exp = listExp.get(i);
                 Type argType = aDecl.type_;
-                Type expType = exp.accept(new InferExpType(),arg);
+                Type expType = operandType(exp,arg);
                 if (!argType.equals(expType) && !(argType.equals(new Type_double()) && expType.equals(new Type_int()))){
                     throw new TypeException("Function argument and expression must have the same type. Exception: Int can be cast to double.");
                 }
@@ -332,8 +438,8 @@ public class TypeChecker {
 
         @Override
         public Type visit(EMul p, Env arg) {
-            Type t1 = p.exp_1.accept(this,arg);
-            Type t2 = p.exp_2.accept(this,arg);
+            Type t1 = operandType(p.exp_1,arg);
+            Type t2 = operandType(p.exp_2,arg);
             if ((t1 instanceof Type_double || t1 instanceof Type_int) && (t2 instanceof Type_double || t2 instanceof Type_int)){
                 if (t1.equals(t2)) {
                     return t1;
@@ -345,8 +451,8 @@ public class TypeChecker {
         }
 
         public Type visit(EAdd p, Env env) {
-            Type t1 = p.exp_1.accept(this,env);
-            Type t2 = p.exp_2.accept(this,env);
+            Type t1 = operandType(p.exp_1,env);
+            Type t2 = operandType(p.exp_2,env);
             if ((t1 instanceof Type_double || t1 instanceof Type_int) && (t2 instanceof Type_double || t2 instanceof Type_int)){
                 if (t1.equals(t2)){
                     return t1;
@@ -359,8 +465,8 @@ public class TypeChecker {
 
         @Override
         public Type visit(ECmp p, Env arg) {
-            Type t1 = p.exp_1.accept(this,arg);
-            Type t2 = p.exp_2.accept(this,arg);
+            Type t1 = operandType(p.exp_1,arg);
+            Type t2 = operandType(p.exp_2,arg);
 
             if ((t1 instanceof Type_double || t1 instanceof Type_int) && (t2 instanceof Type_double || t2 instanceof Type_int)){
                 return new Type_bool();
@@ -377,8 +483,8 @@ public class TypeChecker {
 
         @Override
         public Type visit(EAnd p, Env arg) {
-            Type t1 = p.exp_1.accept(this,arg);
-            Type t2 = p.exp_2.accept(this,arg);
+            Type t1 = operandType(p.exp_1,arg);
+            Type t2 = operandType(p.exp_2,arg);
             if (typeCode(t1).equals(TypeCode.CBool) && typeCode(t2).equals(TypeCode.CBool)){
                 return new Type_bool();
             }
@@ -387,8 +493,8 @@ public class TypeChecker {
 
         @Override
         public Type visit(EOr p, Env arg) {
-            Type t1 = p.exp_1.accept(this,arg);
-            Type t2 = p.exp_2.accept(this,arg);
+            Type t1 = operandType(p.exp_1,arg);
+            Type t2 = operandType(p.exp_2,arg);
             if (typeCode(t1).equals(TypeCode.CBool) && typeCode(t2).equals(TypeCode.CBool)){
                 return new Type_bool();
             }
@@ -397,7 +503,7 @@ public class TypeChecker {
 
         @Override
         public Type visit(EAss p, Env arg) {
-            Type expType = p.exp_.accept(this,arg);
+            Type expType = operandType(p.exp_,arg);
             if (arg.lookupVar(p.id_).equals(expType) || arg.lookupVar(p.id_).equals(new Type_double()) && expType.equals(new Type_int())){
                 return arg.lookupVar(p.id_);
             } else {
@@ -420,89 +526,89 @@ public class TypeChecker {
 
         @Override
         public Exp visit(EBool p, Env arg) {
-            return new ETyped(p,p.accept(new InferExpType(),arg));
+            return new ETyped(p,infer(p,arg));
         }
 
         @Override
         public Exp visit(EInt p, Env arg) {
-            return new ETyped(p,p.accept(new InferExpType(),arg));
+            return new ETyped(p,infer(p,arg));
         }
 
         @Override
         public Exp visit(EDouble p, Env arg) {
-            return new ETyped(p,p.accept(new InferExpType(),arg));
+            return new ETyped(p,infer(p,arg));
         }
 
         @Override
         public Exp visit(EId p, Env arg) {
-            return new ETyped(p,p.accept(new InferExpType(),arg));
+            return new ETyped(p,infer(p,arg));
         }
 
         @Override
         public Exp visit(EApp p, Env arg) {
-            return new ETyped(p,p.accept(new InferExpType(),arg));
+            return new ETyped(p,infer(p,arg));
         }
 
         @Override
         public Exp visit(EPost p, Env arg) {
-            return new ETyped(p,p.accept(new InferExpType(),arg));
+            return new ETyped(p,infer(p,arg));
         }
 
         @Override
         public Exp visit(EPre p, Env arg) {
-            return new ETyped(p,p.accept(new InferExpType(),arg));
+            return new ETyped(p,infer(p,arg));
         }
 
         @Override
         public Exp visit(EMul p, Env arg) {
-            ETyped a = new ETyped(p.exp_1.accept(this,arg),p.exp_1.accept(new InferExpType(),arg));
-            ETyped b = new ETyped(p.exp_2.accept(this,arg),p.exp_2.accept(new InferExpType(),arg));
+            ETyped a = new ETyped(p.exp_1.accept(this,arg),infer(p.exp_1,arg));
+            ETyped b = new ETyped(p.exp_2.accept(this,arg),infer(p.exp_2,arg));
             if (typeCode(a.type_).compareTo(typeCode(b.type_))<0) {
-                return new ETyped(new EMul(new EConv(b.type_,a), p.mulop_, b), p.accept(new InferExpType(), arg));
+                return new ETyped(new EMul(new EConv(b.type_,a), p.mulop_, b), infer(p,arg));
             } else if (typeCode(a.type_).compareTo(typeCode(b.type_))>0){
-                return new ETyped(new EMul(a, p.mulop_, new EConv(a.type_,b)), p.accept(new InferExpType(), arg));
+                return new ETyped(new EMul(a, p.mulop_, new EConv(a.type_,b)), infer(p,arg));
             } else {
-                return new ETyped(new EMul(a, p.mulop_, b), p.accept(new InferExpType(), arg));
+                return new ETyped(new EMul(a, p.mulop_, b), infer(p,arg));
             }
         }
 
         @Override
         public Exp visit(EAdd p, Env arg) {
-            ETyped a = new ETyped(p.exp_1.accept(this,arg),p.exp_1.accept(new InferExpType(),arg));
-            ETyped b = new ETyped(p.exp_2.accept(this,arg),p.exp_2.accept(new InferExpType(),arg));
+            ETyped a = new ETyped(p.exp_1.accept(this,arg),infer(p.exp_1,arg));
+            ETyped b = new ETyped(p.exp_2.accept(this,arg),infer(p.exp_2,arg));
             if (typeCode(a.type_).compareTo(typeCode(b.type_))<0) {
-                return new ETyped(new EAdd(new EConv(b.type_,a), p.addop_, b), p.accept(new InferExpType(), arg));
+                return new ETyped(new EAdd(new EConv(b.type_,a), p.addop_, b), infer(p,arg));
             } else if (typeCode(a.type_).compareTo(typeCode(b.type_))>0){
-                return new ETyped(new EAdd(a, p.addop_, new EConv(a.type_,b)), p.accept(new InferExpType(), arg));
+                return new ETyped(new EAdd(a, p.addop_, new EConv(a.type_,b)), infer(p,arg));
             } else {
-                return new ETyped(new EAdd(a, p.addop_, b), p.accept(new InferExpType(), arg));
+                return new ETyped(new EAdd(a, p.addop_, b), infer(p,arg));
             }
         }
 
         @Override
         public Exp visit(ECmp p, Env arg) {
-            ETyped a = new ETyped(p.exp_1.accept(this,arg),p.exp_1.accept(new InferExpType(),arg));
-            ETyped b = new ETyped(p.exp_2.accept(this,arg),p.exp_2.accept(new InferExpType(),arg));
-            return new ETyped(new ECmp(a,p.cmpop_,b),p.accept(new InferExpType(),arg));
+            ETyped a = new ETyped(p.exp_1.accept(this,arg),infer(p.exp_1,arg));
+            ETyped b = new ETyped(p.exp_2.accept(this,arg),infer(p.exp_2,arg));
+            return new ETyped(new ECmp(a,p.cmpop_,b),infer(p,arg));
         }
 
         @Override
         public Exp visit(EAnd p, Env arg) {
-            ETyped a = new ETyped(p.exp_1.accept(this,arg),p.exp_1.accept(new InferExpType(),arg));
-            ETyped b = new ETyped(p.exp_2.accept(this,arg),p.exp_2.accept(new InferExpType(),arg));
-            return new ETyped(new EAnd(a,b),p.accept(new InferExpType(),arg));
+            ETyped a = new ETyped(p.exp_1.accept(this,arg),infer(p.exp_1,arg));
+            ETyped b = new ETyped(p.exp_2.accept(this,arg),infer(p.exp_2,arg));
+            return new ETyped(new EAnd(a,b),infer(p,arg));
         }
 
         @Override
         public Exp visit(EOr p, Env arg) {
-            ETyped a = new ETyped(p.exp_1.accept(this,arg),p.exp_1.accept(new InferExpType(),arg));
-            ETyped b = new ETyped(p.exp_2.accept(this,arg),p.exp_2.accept(new InferExpType(),arg));
-            return new ETyped(new EOr(a,b),p.accept(new InferExpType(),arg));
+            ETyped a = new ETyped(p.exp_1.accept(this,arg),infer(p.exp_1,arg));
+            ETyped b = new ETyped(p.exp_2.accept(this,arg),infer(p.exp_2,arg));
+            return new ETyped(new EOr(a,b),infer(p,arg));
         }
 
         @Override
         public Exp visit(EAss p, Env arg) {
-            return new ETyped(p,p.accept(new InferExpType(),arg));
+            return new ETyped(p,infer(p,arg));
         }
 
         @Override
@@ -0,0 +1,668 @@
+import cmm.Absyn.*;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+//An interpreter that uses the types found by the TypeChecker to evaluate expressions on unboxed values.
+//Every expression leaves its value in one of two registers: lv for int and bool (a bool is 0 or 1) and dv for double.
+//Variables are kept in the primitive slots of a Frame, so evaluating an expression never allocates a Val.
+//Before a program runs, every function is translated once into a tree of Nodes. The type of every expression, its
+//operator and the slots of its variables are looked up then and become the op of the node, so the evaluation loop
+//only switches on an int, and int operands of double operations are wrapped in an I2D node.
+public class UnboxedInterpreter {
+
+    //the ops of the expression nodes
+    static final int LONG = 0;
+    static final int DOUBLE = 1;
+    static final int ILOAD = 2;
+    static final int DLOAD = 3;
+    static final int ISTORE = 4;
+    static final int DSTORE = 5;
+    //++ and --, the node holds the slot and a delta of 1 or -1
+    static final int IPOST = 6;
+    static final int DPOST = 7;
+    static final int IPRE = 8;
+    static final int DPRE = 9;
+    static final int I2D = 10;
+    static final int D2I = 11;
+    static final int IADD = 12;
+    static final int ISUB = 13;
+    static final int IMUL = 14;
+    static final int IDIV = 15;
+    static final int DADD = 16;
+    static final int DSUB = 17;
+    static final int DMUL = 18;
+    static final int DDIV = 19;
+    static final int ILT = 20;
+    static final int IGT = 21;
+    static final int ILE = 22;
+    static final int IGE = 23;
+    static final int IEQ = 24;
+    static final int INE = 25;
+    static final int DLT = 26;
+    static final int DGT = 27;
+    static final int DLE = 28;
+    static final int DGE = 29;
+    static final int DEQ = 30;
+    static final int DNE = 31;
+    static final int AND = 32;
+    static final int OR = 33;
+    static final int CALL = 34;
+    static final int PRINT_INT = 35;
+    static final int PRINT_DOUBLE = 36;
+    static final int READ_INT = 37;
+    static final int READ_DOUBLE = 38;
+
+    //the ops of the statement nodes
+    static final int EXP = 39;
+    static final int DECLS = 40;
+    static final int INIT = 41;
+    static final int RETURN = 42;
+    static final int WHILE = 43;
+    static final int BLOCK = 44;
+    static final int IF = 45;
+
+    //a translated expression or statement. Which fields are used depends on the op.
+    static final class Node {
+        final int op;
+        //the variable of a load, store, ++, -- or initialization
+        int slot;
+        //the variables of a declaration
+        int[] slots;
+        //an int or bool constant, the delta of ++ and --
+        long lvalue;
+        //a double constant
+        double dvalue;
+        //the operands, the condition and branches of if and while, the value of a return or initialization
+        Node a;
+        Node b;
+        Node c;
+        //the arguments of a call, the statements of a block
+        Node[] nodes;
+        Function callee;
+
+        Node(int op){
+            this.op = op;
+        }
+
+        Node(int op, Node a){
+            this.op = op;
+            this.a = a;
+        }
+
+        Node(int op, Node a, Node b){
+            this.op = op;
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    //a translated function
+    static final class Function {
+        final int frameSize;
+        //for every parameter, whether it is kept in a double slot
+        final boolean[] doubleParameters;
+        Node[] body;
+
+        Function(Resolver.FunInfo layout){
+            frameSize = layout.frameSize;
+            doubleParameters = new boolean[layout.dFun.listarg_.size()];
+            for (int i = 0; i < doubleParameters.length; i++){
+                doubleParameters[i] = layout.isDouble(i);
+            }
+        }
+    }
+
+    //the type of every expression, as a TypeCode. Only used while translating.
+    IdentityHashMap<Exp, TypeChecker.TypeCode> codes = new IdentityHashMap<>();
+    HashMap<String, Function> functions = new HashMap<>();
+
+    //the registers that hold the value of the last evaluated expression
+    long lv;
+    double dv;
+
+    public UnboxedInterpreter(IdentityHashMap<Exp, Type> expTypes){
+        for (Map.Entry<Exp, Type> entry : expTypes.entrySet()){
+            codes.put(entry.getKey(), TypeChecker.typeCode(entry.getValue()));
+        }
+    }
+
+    public void interpret(Program p) {
+        HashMap<String, Resolver.FunInfo> layouts = new Resolver().resolve(p);
+        //all functions exist before any body is translated, so that calls can refer to them
+        for (Map.Entry<String, Resolver.FunInfo> entry : layouts.entrySet()){
+            functions.put(entry.getKey(), new Function(entry.getValue()));
+        }
+        for (Map.Entry<String, Resolver.FunInfo> entry : layouts.entrySet()){
+            Translator translator = new Translator(entry.getValue());
+            functions.get(entry.getKey()).body = translator.statements(entry.getValue().dFun.liststm_);
+        }
+        Function main = functions.get("main");
+        run(main.body, new Frame(main.frameSize));
+    }
+
+    //run statements until a return statement has been executed, the return value is then in the registers
+    boolean run(Node[] stms, Frame f){
+        for (Node stm : stms){
+            if (exec(stm, f)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean exec(Node n, Frame f){
+        switch (n.op){
+            case EXP:
+                eval(n.a, f);
+                return false;
+            case DECLS:
+                for (int slot : n.slots){
+                    f.declare(slot);
+                }
+                return false;
+            case INIT:
+                //declare first, so that int x = x; reads an uninitialized variable.
+                f.declare(n.slot);
+                eval(n.a, f);
+                return false;
+            case RETURN:
+                eval(n.a, f);
+                return true;
+            case WHILE:
+                while (true){
+                    eval(n.a, f);
+                    if (lv == 0){
+                        return false;
+                    }
+                    if (exec(n.b, f)){
+                        return true;
+                    }
+                }
+            case BLOCK:
+                return run(n.nodes, f);
+            case IF:
+                eval(n.a, f);
+                return exec(lv != 0 ? n.b : n.c, f);
+            default:
+                throw new IllegalStateException("Unknown statement op " + n.op);
+        }
+    }
+
+    //a call of a function of the program. It has a method of its own, so that a stack overflow in deep recursion can
+    //be told from one in deep nesting by the stack trace.
+    void call(Node n, Frame f){
+        Function callee = n.callee;
+        Frame frame = new Frame(callee.frameSize);
+        //the arguments are evaluated in the frame of the caller and stored directly in the parameter slots of the callee
+        Node[] arguments = n.nodes;
+        for (int i = 0; i < arguments.length; i++){
+            eval(arguments[i], f);
+            if (callee.doubleParameters[i]){
+                frame.setDouble(i, dv);
+            } else {
+                frame.setLong(i, lv);
+            }
+        }
+        run(callee.body, frame);
+    }
+
+    void eval(Node n, Frame f){
+        switch (n.op){
+            case LONG:
+                lv = n.lvalue;
+                return;
+            case DOUBLE:
+                dv = n.dvalue;
+                return;
+            case ILOAD:
+                lv = f.getLong(n.slot);
+                return;
+            case DLOAD:
+                dv = f.getDouble(n.slot);
+                return;
+            case ISTORE:
+                eval(n.a, f);
+                f.setLong(n.slot, lv);
+                return;
+            case DSTORE:
+                eval(n.a, f);
+                f.setDouble(n.slot, dv);
+                return;
+            case IPOST:
+                lv = f.getLong(n.slot);
+                f.setLong(n.slot, (int) (lv + n.lvalue));
+                return;
+            case DPOST:
+                dv = f.getDouble(n.slot);
+                f.setDouble(n.slot, dv + n.lvalue);
+                return;
+            case IPRE:
+                lv = (int) (f.getLong(n.slot) + n.lvalue);
+                f.setLong(n.slot, lv);
+                return;
+            case DPRE:
+                dv = f.getDouble(n.slot) + n.lvalue;
+                f.setDouble(n.slot, dv);
+                return;
+            case I2D:
+                eval(n.a, f);
+                dv = lv;
+                return;
+            case D2I:
+                eval(n.a, f);
+                lv = (int) dv;
+                return;
+            case AND:
+                eval(n.a, f);
+                if (lv != 0){
+                    eval(n.b, f);
+                }
+                return;
+            case OR:
+                eval(n.a, f);
+                if (lv == 0){
+                    eval(n.b, f);
+                }
+                return;
+            case CALL:
+                call(n, f);
+                return;
+            case PRINT_INT:
+                eval(n.a, f);
+                Builtins.printInt((int) lv);
+                return;
+            case PRINT_DOUBLE:
+                eval(n.a, f);
+                Builtins.printDouble(dv);
+                return;
+            case READ_INT:
+                lv = Builtins.readInt();
+                return;
+            case READ_DOUBLE:
+                dv = Builtins.readDouble();
+                return;
+            case IADD: {
+                //int arithmetic wraps around at 32 bits, just like Integer in the tree-walking interpreter
+                eval(n.a, f);
+                int a = (int) lv;
+                eval(n.b, f);
+                lv = a + (int) lv;
+                return;
+            }
+            case ISUB: {
+                eval(n.a, f);
+                int a = (int) lv;
+                eval(n.b, f);
+                lv = a - (int) lv;
+                return;
+            }
+            case IMUL: {
+                eval(n.a, f);
+                int a = (int) lv;
+                eval(n.b, f);
+                lv = a * (int) lv;
+                return;
+            }
+            case IDIV: {
+                eval(n.a, f);
+                int a = (int) lv;
+                eval(n.b, f);
+                lv = a / (int) lv;
+                return;
+            }
+            case DADD: {
+                eval(n.a, f);
+                double a = dv;
+                eval(n.b, f);
+                dv = a + dv;
+                return;
+            }
+            case DSUB: {
+                eval(n.a, f);
+                double a = dv;
+                eval(n.b, f);
+                dv = a - dv;
+                return;
+            }
+            case DMUL: {
+                eval(n.a, f);
+                double a = dv;
+                eval(n.b, f);
+                dv = a * dv;
+                return;
+            }
+            case DDIV: {
+                eval(n.a, f);
+                double a = dv;
+                eval(n.b, f);
+                dv = a / dv;
+                return;
+            }
+            case ILT: {
+                eval(n.a, f);
+                long a = lv;
+                eval(n.b, f);
+                lv = a < lv ? 1 : 0;
+                return;
+            }
+            case IGT: {
+                eval(n.a, f);
+                long a = lv;
+                eval(n.b, f);
+                lv = a > lv ? 1 : 0;
+                return;
+            }
+            case ILE: {
+                eval(n.a, f);
+                long a = lv;
+                eval(n.b, f);
+                lv = a <= lv ? 1 : 0;
+                return;
+            }
+            case IGE: {
+                eval(n.a, f);
+                long a = lv;
+                eval(n.b, f);
+                lv = a >= lv ? 1 : 0;
+                return;
+            }
+            case IEQ: {
+                eval(n.a, f);
+                long a = lv;
+                eval(n.b, f);
+                lv = a == lv ? 1 : 0;
+                return;
+            }
+            case INE: {
+                eval(n.a, f);
+                long a = lv;
+                eval(n.b, f);
+                lv = a != lv ? 1 : 0;
+                return;
+            }
+            case DLT: {
+                eval(n.a, f);
+                double a = dv;
+                eval(n.b, f);
+                //Double.compare gives the same result as the compareTo and equals used by the tree-walking interpreter
+                lv = Double.compare(a, dv) < 0 ? 1 : 0;
+                return;
+            }
+            case DGT: {
+                eval(n.a, f);
+                double a = dv;
+                eval(n.b, f);
+                lv = Double.compare(a, dv) > 0 ? 1 : 0;
+                return;
+            }
+            case DLE: {
+                eval(n.a, f);
+                double a = dv;
+                eval(n.b, f);
+                lv = Double.compare(a, dv) <= 0 ? 1 : 0;
+                return;
+            }
+            case DGE: {
+                eval(n.a, f);
+                double a = dv;
+                eval(n.b, f);
+                lv = Double.compare(a, dv) >= 0 ? 1 : 0;
+                return;
+            }
+            case DEQ: {
+                eval(n.a, f);
+                double a = dv;
+                eval(n.b, f);
+                lv = Double.compare(a, dv) == 0 ? 1 : 0;
+                return;
+            }
+            case DNE: {
+                eval(n.a, f);
+                double a = dv;
+                eval(n.b, f);
+                lv = Double.compare(a, dv) != 0 ? 1 : 0;
+                return;
+            }
+            default:
+                throw new IllegalStateException("Unknown expression op " + n.op);
+        }
+    }
+
+    //translates the body of one function, with the slots of its layout
+    private class Translator implements Stm.Visitor<Node, Object>, Exp.Visitor<Node, Object> {
+
+        final Resolver.FunInfo fun;
+
+        Translator(Resolver.FunInfo fun){
+            this.fun = fun;
+        }
+
+        Node[] statements(ListStm stms){
+            Node[] nodes = new Node[stms.size()];
+            int i = 0;
+            for (Stm stm : stms){
+                nodes[i++] = stm.accept(this, null);
+            }
+            return nodes;
+        }
+
+        boolean isDouble(Exp e){
+            return codes.get(e) == TypeChecker.TypeCode.CDouble;
+        }
+
+        Node exp(Exp e){
+            return e.accept(this, null);
+        }
+
+        //an expression of type int or double whose value is wanted as a double
+        Node toDouble(Exp e){
+            Node node = exp(e);
+            return isDouble(e) ? node : new Node(I2D, node);
+        }
+
+        //an expression whose value is wanted as an int or double, as the slot is
+        Node toSlot(int slot, Exp e){
+            return fun.isDouble(slot) ? toDouble(e) : exp(e);
+        }
+
+        Node store(int slot, Exp e){
+            Node node = new Node(fun.isDouble(slot) ? DSTORE : ISTORE, toSlot(slot, e));
+            node.slot = slot;
+            return node;
+        }
+
+        Node increment(int intOp, int doubleOp, IncDecOp op, Object p){
+            int slot = fun.slot(p);
+            Node node = new Node(fun.isDouble(slot) ? doubleOp : intOp);
+            node.slot = slot;
+            node.lvalue = op instanceof OInc ? 1 : -1;
+            return node;
+        }
+
+        Node convert(Exp p, Exp inner){
+            Node node = exp(inner);
+            if (isDouble(p) && !isDouble(inner)){
+                return new Node(I2D, node);
+            } else if (!isDouble(p) && isDouble(inner)){
+                return new Node(D2I, node);
+            }
+            return node;
+        }
+
+        //the offset of a comparison from ILT and DLT
+        int comparison(CmpOp op){
+            if (op instanceof OLt){
+                return 0;
+            } else if (op instanceof OGt){
+                return 1;
+            } else if (op instanceof OLtEq){
+                return 2;
+            } else if (op instanceof OGtEq){
+                return 3;
+            } else if (op instanceof OEq){
+                return 4;
+            } else {
+                return 5;
+            }
+        }
+
+        @Override
+        public Node visit(SExp p, Object arg) {
+            return new Node(EXP, exp(p.exp_));
+        }
+
+        @Override
+        public Node visit(SDecls p, Object arg) {
+            Node node = new Node(DECLS);
+            node.slots = fun.declSlots.get(p);
+            return node;
+        }
+
+        @Override
+        public Node visit(SInit p, Object arg) {
+            int slot = fun.slot(p);
+            Node node = new Node(INIT, store(slot, p.exp_));
+            node.slot = slot;
+            return node;
+        }
+
+        @Override
+        public Node visit(SReturn p, Object arg) {
+            boolean returnsDouble = fun.dFun.type_ instanceof Type_double;
+            return new Node(RETURN, returnsDouble ? toDouble(p.exp_) : exp(p.exp_));
+        }
+
+        @Override
+        public Node visit(SWhile p, Object arg) {
+            return new Node(WHILE, exp(p.exp_), p.stm_.accept(this, null));
+        }
+
+        @Override
+        public Node visit(SBlock p, Object arg) {
+            Node node = new Node(BLOCK);
+            node.nodes = statements(p.liststm_);
+            return node;
+        }
+
+        @Override
+        public Node visit(SIfElse p, Object arg) {
+            Node node = new Node(IF, exp(p.exp_), p.stm_1.accept(this, null));
+            node.c = p.stm_2.accept(this, null);
+            return node;
+        }
+
+        @Override
+        public Node visit(EBool p, Object arg) {
+            Node node = new Node(LONG);
+            node.lvalue = p.boollit_ instanceof LTrue ? 1 : 0;
+            return node;
+        }
+
+        @Override
+        public Node visit(EInt p, Object arg) {
+            Node node = new Node(LONG);
+            node.lvalue = p.integer_;
+            return node;
+        }
+
+        @Override
+        public Node visit(EDouble p, Object arg) {
+            Node node = new Node(DOUBLE);
+            node.dvalue = p.double_;
+            return node;
+        }
+
+        @Override
+        public Node visit(EId p, Object arg) {
+            int slot = fun.slot(p);
+            Node node = new Node(fun.isDouble(slot) ? DLOAD : ILOAD);
+            node.slot = slot;
+            return node;
+        }
+
+        @Override
+        public Node visit(EApp p, Object arg) {
+            if (p.id_.equals("printInt")){
+                return new Node(PRINT_INT, exp(p.listexp_.get(0)));
+            } else if (p.id_.equals("printDouble")){
+                return new Node(PRINT_DOUBLE, toDouble(p.listexp_.get(0)));
+            } else if (p.id_.equals("readInt")){
+                return new Node(READ_INT);
+            } else if (p.id_.equals("readDouble")){
+                return new Node(READ_DOUBLE);
+            }
+            Node node = new Node(CALL);
+            node.callee = functions.get(p.id_);
+            node.nodes = new Node[p.listexp_.size()];
+            int i = 0;
+            for (Exp exp : p.listexp_){
+                node.nodes[i] = node.callee.doubleParameters[i] ? toDouble(exp) : exp(exp);
+                i++;
+            }
+            return node;
+        }
+
+        @Override
+        public Node visit(EPost p, Object arg) {
+            return increment(IPOST, DPOST, p.incdecop_, p);
+        }
+
+        @Override
+        public Node visit(EPre p, Object arg) {
+            return increment(IPRE, DPRE, p.incdecop_, p);
+        }
+
+        @Override
+        public Node visit(EMul p, Object arg) {
+            boolean times = p.mulop_ instanceof OTimes;
+            if (isDouble(p)){
+                return new Node(times ? DMUL : DDIV, toDouble(p.exp_1), toDouble(p.exp_2));
+            }
+            return new Node(times ? IMUL : IDIV, exp(p.exp_1), exp(p.exp_2));
+        }
+
+        @Override
+        public Node visit(EAdd p, Object arg) {
+            boolean plus = p.addop_ instanceof OPlus;
+            if (isDouble(p)){
+                return new Node(plus ? DADD : DSUB, toDouble(p.exp_1), toDouble(p.exp_2));
+            }
+            return new Node(plus ? IADD : ISUB, exp(p.exp_1), exp(p.exp_2));
+        }
+
+        @Override
+        public Node visit(ECmp p, Object arg) {
+            if (isDouble(p.exp_1) || isDouble(p.exp_2)){
+                return new Node(DLT + comparison(p.cmpop_), toDouble(p.exp_1), toDouble(p.exp_2));
+            }
+            return new Node(ILT + comparison(p.cmpop_), exp(p.exp_1), exp(p.exp_2));
+        }
+
+        @Override
+        public Node visit(EAnd p, Object arg) {
+            return new Node(AND, exp(p.exp_1), exp(p.exp_2));
+        }
+
+        @Override
+        public Node visit(EOr p, Object arg) {
+            return new Node(OR, exp(p.exp_1), exp(p.exp_2));
+        }
+
+        @Override
+        public Node visit(EAss p, Object arg) {
+            return store(fun.slot(p), p.exp_);
+        }
+
+        @Override
+        public Node visit(ETyped p, Object arg) {
+            return convert(p, p.exp_);
+        }
+
+        @Override
+        public Node visit(EConv p, Object arg) {
+            return convert(p, p.exp_);
+        }
+    }
+}
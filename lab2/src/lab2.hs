@@ -39,7 +39,7 @@ classpathSeparator = ':'
 s <:> t = s ++ [classpathSeparator] ++ t
 
 -- | Run the class file with class path extended by the directory
---   of the class file.
+--   of the class file and the jasmin.jar in it, which lab2 --jit needs.
 
 main :: IO ()
 main = do
@@ -47,7 +47,7 @@ main = do
   dir       <- dropFileName <$> getExecutablePath
   className <- getClassName
   classPath <- fromMaybe "" <$> lookupEnv "CLASSPATH"
-  let cp      = dir <:> classPath
+  let cp      = dir <:> (dir </> "jasmin.jar") <:> classPath
       cmdArgs = ["-Xss80m","-cp",cp,className] ++ args
       -- cmdLine = showCommandForUser javaProg cmdArgs
   callProcess javaProg cmdArgs
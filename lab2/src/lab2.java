@@ -2,40 +2,205 @@ import java_cup.runtime.*;
 import cmm.*;
 import cmm.Absyn.*;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 public class lab2 {
     public static void main(String args[]) {
-        if (args.length != 1) {
-            System.err.println("Usage: lab2 <SourceFile>");
+        //flags select how the program is executed, the remaining argument is the source file
+        //the tree-walking interpreter is the reference mode, the other engines must give the same output
+        String mode = "tree";
+        //--optimize runs the Optimizer before the program is executed, --dump-opt also prints the time of every pass
+        //and the optimized program to stderr
+        boolean optimize = false;
+        boolean dump = false;
+        //limits of the call stack of --vm, which is kept on the heap and so is not limited by the Java stack
+        int maxFrames = RegisterVM.DEFAULT_MAX_FRAMES;
+        long maxBytes = RegisterVM.DEFAULT_MAX_BYTES;
+        boolean limited = false;
+        //--lazy only scans the signatures before main starts, every body is parsed and checked by its first call
+        boolean lazy = false;
+        String srcFile = null;
+        for (String arg : args) {
+            if (arg.equals("--unboxed") || arg.equals("--closures") || arg.equals("--vm")
+                    || arg.equals("--jit") || arg.equals("--memo") || arg.equals("--profile")) {
+                //only one engine can run the program
+                if (!mode.equals("tree") && !mode.equals(arg.substring(2))) {
+                    srcFile = null;
+                    break;
+                }
+                mode = arg.substring(2);
+            } else if (arg.equals("--optimize") || arg.equals("--dump-opt")) {
+                optimize = true;
+                dump = dump || arg.equals("--dump-opt");
+            } else if (arg.equals("--lazy")) {
+                lazy = true;
+            } else if (arg.startsWith("--max-frames=") || arg.startsWith("--max-stack=")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    if (arg.startsWith("--max-frames=")) {
+                        maxFrames = Integer.parseInt(value);
+                    } else {
+                        maxBytes = parseBytes(value);
+                    }
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    srcFile = null;
+                    break;
+                }
+                //a limit of zero or less would stop even main
+                if (maxFrames <= 0 || maxBytes <= 0) {
+                    srcFile = null;
+                    break;
+                }
+                limited = true;
+            } else if (srcFile == null && !arg.startsWith("--")) {
+                srcFile = arg;
+            } else {
+                srcFile = null;
+                break;
+            }
+        }
+        if (srcFile == null || (limited && !mode.equals("vm")) || (lazy && (optimize || !mode.equals("tree")))) {
+            System.err.println("Usage: lab2 [--optimize | --dump-opt] [--unboxed | --closures | --vm | --jit | --memo | --profile] <SourceFile>");
+            System.err.println("       lab2 --vm [--max-frames=<frames>] [--max-stack=<bytes>[k|m|g]] <SourceFile>");
+            System.err.println("       lab2 --lazy <SourceFile>");
             System.exit(1);
         }
 
         Yylex l = null;
         try {
-            l = new Yylex(new FileReader(args[0]));
-            parser p = new parser(l);
-            cmm.Absyn.Program parse_tree = p.pProgram();
-            new TypeChecker().typecheck(parse_tree);
-            new Interpreter().interpret(parse_tree);
+            //every phase is recorded as a JFR event, see Metrics
+            Metrics.PhaseEvent phase = Metrics.beginPhase("parse", srcFile);
+            //a program the signature scanner does not understand is parsed as a whole, which reports the error
+            LazyProgram lazyProgram = lazy ? LazyProgram.scan(new String(Files.readAllBytes(Paths.get(srcFile)))) : null;
+            cmm.Absyn.Program parse_tree;
+            if (lazyProgram != null) {
+                parse_tree = lazyProgram.signatures;
+            } else {
+                l = new Yylex(new FileReader(srcFile));
+                parser p = new parser(l);
+                parse_tree = p.pProgram();
+            }
+            Metrics.endPhase(phase);
+            phase = Metrics.beginPhase("typecheck", srcFile);
+            TypeChecker typeChecker = new TypeChecker();
+            if (lazyProgram != null) {
+                lazyProgram.checkSignatures(typeChecker);
+            } else {
+                typeChecker.typecheck(parse_tree);
+            }
+            Metrics.endPhase(phase);
+            if (optimize) {
+                phase = Metrics.beginPhase("optimize", srcFile);
+                Optimizer optimizer = Optimizer.standard();
+                parse_tree = optimizer.optimize(parse_tree, typeChecker.expTypes);
+                typeChecker.expTypes = optimizer.expTypes;
+                Metrics.endPhase(phase);
+                if (dump) {
+                    System.err.print(optimizer.report());
+                    System.err.println(PrettyPrinter.print(parse_tree));
+                }
+            }
+            //the output of the program is buffered, it is flushed before an error is reported
+            phase = Metrics.beginPhase("execute", srcFile);
+            try {
+                if (mode.equals("unboxed")) {
+                    new UnboxedInterpreter(typeChecker.expTypes).interpret(parse_tree);
+                } else if (mode.equals("closures")) {
+                    new ClosureCompiler(typeChecker.expTypes).interpret(parse_tree);
+                } else if (mode.equals("vm")) {
+                    RegisterVM vm = new BytecodeCompiler(typeChecker.expTypes).compile(parse_tree);
+                    vm.maxFrames = maxFrames;
+                    vm.maxBytes = maxBytes;
+                    vm.run();
+                } else if (mode.equals("jit")) {
+                    new Interpreter(new Jit(parse_tree, typeChecker.expTypes)).interpret(parse_tree);
+                } else if (mode.equals("memo")) {
+                    Memo memo = new Memo(Memo.DEFAULT_CAPACITY);
+                    new Interpreter(memo).interpret(parse_tree);
+                    System.err.println(memo);
+                } else if (mode.equals("profile")) {
+                    //the report is written even if the program fails, the profile up to the error is still useful
+                    Profiler profiler = new Profiler();
+                    try {
+                        new Interpreter(profiler).interpret(parse_tree);
+                    } finally {
+                        profiler.writeReport(srcFile + ".profile", 20);
+                        profiler.writeCollapsed(srcFile + ".folded");
+                        System.err.println("profile: " + srcFile + ".profile, " + srcFile + ".folded");
+                    }
+                } else if (lazyProgram != null) {
+                    new Interpreter(lazyProgram).interpret(parse_tree);
+                } else {
+                    new Interpreter().interpret(parse_tree);
+                }
+            } finally {
+                Builtins.flush();
+                Metrics.endPhase(phase);
+            }
 
         } catch (TypeException e) {
             System.out.println("TYPE ERROR");
             System.err.println(e.toString());
             System.exit(1);
+        } catch (LazyProgram.SyntaxError e) {
+            //a body of a lazy program, parsed by its first call
+            System.out.println("SYNTAX ERROR");
+            System.out.println("At line " + e.line + ", near \"" + e.near + "\" :");
+            System.out.println("     " + e.getMessage());
+            System.exit(1);
         } catch (RuntimeException e) {
             System.out.println("INTERPRETER ERROR");
             System.err.println(e.toString());
             System.exit(-1);
+        } catch (StackOverflowError e) {
+            //the type checker is safe for any nesting, but the engines evaluate nested statements and expressions by
+            //recursion, and all but --vm run C-- calls as Java calls. --vm has its own call stack with a limit that can be
+            //raised, so it only helps with deep recursion.
+            System.out.println("INTERPRETER ERROR");
+            if (!mode.equals("vm") && inCalls(e)) {
+                System.err.println("Call stack overflow, the recursion is too deep for the Java stack (try --vm)");
+            } else {
+                System.err.println("Call stack overflow, the statements or expressions are nested too deeply for the Java stack");
+            }
+            System.exit(-1);
         } catch (IOException e) {
             System.err.println(e.toString());
             System.exit(1);
         } catch (Throwable e) {
             System.out.println("SYNTAX ERROR");
-            System.out.println("At line " + String.valueOf(l.line_num())
-                       + ", near \"" + l.buff() + "\" :");
+            if (l != null) {
+                System.out.println("At line " + String.valueOf(l.line_num())
+                           + ", near \"" + l.buff() + "\" :");
+            }
             System.out.println("     " + e.getMessage());
             e.printStackTrace();
             System.exit(1);
         }
     }
+
+    //a number of bytes, optionally with a k, m or g suffix
+    static long parseBytes(String value) {
+        long unit = 1;
+        char last = Character.toLowerCase(value.charAt(value.length() - 1));
+        if (last == 'k' || last == 'm' || last == 'g') {
+            unit = last == 'k' ? 1L << 10 : last == 'm' ? 1L << 20 : 1L << 30;
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+
+    //whether the Java stack overflowed in a chain of C-- calls and not in deeply nested statements or expressions. The
+    //innermost frames of the trace tell: the engines that run C-- calls as Java calls do it through these methods. The
+    //code of the jit is left out of the trace, but it is always entered through Interpreter$ExpValue.call.
+    static boolean inCalls(StackOverflowError e) {
+        for (StackTraceElement frame : e.getStackTrace()) {
+            String method = frame.getClassName() + "." + frame.getMethodName();
+            if (method.equals("Interpreter$ExpValue.call") || method.equals("UnboxedInterpreter.call")
+                    || method.equals("ClosureCompiler$Function.call")) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
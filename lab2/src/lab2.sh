@@ -4,8 +4,9 @@
 
 # Adds the current dir to the class path so that lab2.class
 # is found even when called from another directory.
+# jasmin.jar in the same directory is needed by lab2 --jit.
 
 # Rename this to  lab2  to use with the testsuite.
 
 dir=`dirname $0`
-exec java -cp "$dir:$CLASSPATH" lab2 "$@"
+exec java -cp "$dir:$dir/jasmin.jar:$CLASSPATH" lab2 "$@"
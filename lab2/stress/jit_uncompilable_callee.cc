@@ -0,0 +1,27 @@
+// Stress test for --jit: a and b call each other, and a also calls c, which may read an uninitialized variable.
+// b gets hot while a is still being checked, but it must stay interpreted, because it reaches c through a.
+
+int c(int n) {
+  int x;
+  if (n >= 0) x = n; else {}
+  return x;
+}
+
+int b(int n) {
+  return a(n - 1);
+}
+
+int a(int n) {
+  if (n > 0) return b(n); else return c(n);
+}
+
+int main() {
+  int i = 0;
+  int r = 0;
+  while (i < 3000) {
+    r = a(5);
+    i++;
+  }
+  printInt(r);
+  return 0;
+}
@@ -0,0 +1,17 @@
+#!/bin/sh
+
+# Run the stress tests in this directory with the lab2 interpreter in ../src.
+# Extra arguments, such as --closures, are passed on to lab2.
+# The JVM is started with its default stack size on purpose.
+
+dir=`dirname $0`
+status=0
+for f in "$dir"/*.cc; do
+  if java -cp "$dir/../src:$dir/../src/jasmin.jar:$CLASSPATH" lab2 "$@" "$f" < /dev/null | cmp -s - "$f.output"; then
+    echo "OK     $f"
+  else
+    echo "FAILED $f"
+    status=1
+  fi
+done
+exit $status
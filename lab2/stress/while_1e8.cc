@@ -0,0 +1,18 @@
+// Stress test: a while loop with 10^8 iterations.
+// The interpreter must run it in constant Java stack, without StackOverflowError.
+
+int main() {
+  int i = 0;
+  int steps = 0;
+  int checkpoints = 0;
+  while (i < 100000000) {
+    int next = i + 1;
+    steps = steps + next - i;
+    if (next / 10000000 * 10000000 == next) checkpoints++; else {}
+    i = next;
+  }
+  printInt(i);
+  printInt(steps);
+  printInt(checkpoints);
+  return 0;
+}
@@ -0,0 +1,527 @@
+import cmm.Absyn.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+// A cache of type checked programs on disk, so that a program that has not changed since it was last compiled does not
+// have to be parsed and type checked again.
+//
+// The file of a program is named by the SHA-256 hash of its source. It holds the tree that the TypeChecker returned,
+// with its ETyped annotations, in a compact binary form: every node is a tag byte followed by its children, numbers are
+// variable-length, and every identifier is written once and then referred to by its number. The file is read through a
+// memory mapping. A file that can not be read, e.g. one written by an older version, is treated as a miss.
+
+public class AstCache {
+
+  static final int MAGIC = 0x434d4d41; // "CMMA"
+  static final int VERSION = 1;
+
+  // the tags of the nodes
+  static final byte DFUN = 1, ADECL = 2;
+  static final byte SEXP = 10, SDECLS = 11, SINIT = 12, SRETURN = 13, SWHILE = 14, SBLOCK = 15, SIFELSE = 16;
+  static final byte ETRUE = 20, EFALSE = 21, EINT = 22, EDOUBLE = 23, EID = 24, EAPP = 25, EPOSTINC = 26,
+      EPOSTDEC = 27, EPREINC = 28, EPREDEC = 29, ETIMES = 30, EDIV = 31, EPLUS = 32, EMINUS = 33, ELT = 34, EGT = 35,
+      ELTEQ = 36, EGTEQ = 37, EEQ = 38, ENEQ = 39, EAND = 40, EOR = 41, EASS = 42, ETYPED = 43;
+  static final byte BOOL = 50, INT = 51, DOUBLE = 52, VOID = 53;
+
+  private final Path dir;
+
+  // what happened to the programs that were looked up
+  public int hits = 0;
+  public int misses = 0;
+  public long loadNanos = 0;
+  public long storeNanos = 0;
+
+  public AstCache(Path dir) {
+    this.dir = dir;
+  }
+
+  // the file of a source, named by its hash
+  public Path file(byte[] source) {
+    return dir.resolve(hash(source) + ".ast");
+  }
+
+  // the SHA-256 hash of the bytes, in hexadecimal
+  static String hash(byte[] bytes) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+      StringBuilder name = new StringBuilder();
+      for (byte b : hash) {
+        name.append(String.format("%02x", b));
+      }
+      return name.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // the type checked program of the source, or null if it is not in the cache
+  public Program load(byte[] source) {
+    long start = System.nanoTime();
+    Path file = file(source);
+    if (!Files.isRegularFile(file)) {
+      misses++;
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      Program program = new Decoder(buffer).program();
+      hits++;
+      loadNanos += System.nanoTime() - start;
+      return program;
+    } catch (IOException | RuntimeException e) {
+      // a broken file is replaced when the program is stored again
+      misses++;
+      return null;
+    }
+  }
+
+  // store the type checked program of the source. The file is written under another name first and then renamed, so
+  // that a program that is compiled at the same time never reads half a file.
+  public void store(byte[] source, Program program) throws IOException {
+    long start = System.nanoTime();
+    Encoder encoder = new Encoder();
+    encoder.program(program);
+    Files.createDirectories(dir);
+    Path file = file(source);
+    Path temporary = Files.createTempFile(dir, "ast", ".tmp");
+    Files.write(temporary, encoder.bytes());
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    storeNanos += System.nanoTime() - start;
+  }
+
+  public String report() {
+    return String.format("cache: %d hits, %d misses, loaded in %.3f ms, stored in %.3f ms",
+        hits, misses, loadNanos / 1e6, storeNanos / 1e6);
+  }
+
+  // Writing
+  ///////////////////////////////////////////////////////////////////////////
+
+  static class Encoder implements Def.Visitor<Object,Object>, Stm.Visitor<Object,Object>, Exp.Visitor<Object,Object> {
+
+    private ByteBuffer out = ByteBuffer.allocate(4096);
+    private final HashMap<String,Integer> ids = new HashMap<>();
+    // the functions that are called by the definitions written so far, see IncrementalCache
+    final TreeSet<String> calls = new TreeSet<>();
+
+    byte[] bytes() {
+      byte[] bytes = new byte[out.position()];
+      out.flip();
+      out.get(bytes);
+      return bytes;
+    }
+
+    private void ensure(int n) {
+      if (out.remaining() < n) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * out.capacity(), out.position() + n));
+        out.flip();
+        bigger.put(out);
+        out = bigger;
+      }
+    }
+
+    void tag(byte tag) {
+      ensure(1);
+      out.put(tag);
+    }
+
+    // 7 bits per byte, the high bit tells that more bytes follow
+    void number(int n) {
+      ensure(5);
+      while ((n & ~0x7f) != 0) {
+        out.put((byte) ((n & 0x7f) | 0x80));
+        n >>>= 7;
+      }
+      out.put((byte) n);
+    }
+
+    // an identifier is written once, after its number, and after that only by its number
+    void id(String id) {
+      Integer known = ids.get(id);
+      if (known != null) {
+        number(known);
+        return;
+      }
+      number(ids.size());
+      ids.put(id, ids.size());
+      byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+      number(bytes.length);
+      ensure(bytes.length);
+      out.put(bytes);
+    }
+
+    void type(Type t) {
+      tag(t instanceof Type_bool ? BOOL : t instanceof Type_int ? INT : t instanceof Type_double ? DOUBLE : VOID);
+    }
+
+    void program(Program p) {
+      ensure(8);
+      out.putInt(MAGIC);
+      out.putInt(VERSION);
+      ListDef defs = ((PDefs) p).listdef_;
+      number(defs.size());
+      for (Def d : defs) {
+        def(d);
+      }
+    }
+
+    void def(Def d) {
+      d.accept(this, null);
+    }
+
+    void stms(ListStm stms) {
+      number(stms.size());
+      for (Stm s : stms) {
+        s.accept(this, null);
+      }
+    }
+
+    public Object visit(DFun p, Object arg) {
+      tag(DFUN);
+      type(p.type_);
+      id(p.id_);
+      number(p.listarg_.size());
+      for (Arg a : p.listarg_) {
+        ADecl aDecl = (ADecl) a;
+        tag(ADECL);
+        type(aDecl.type_);
+        id(aDecl.id_);
+      }
+      stms(p.liststm_);
+      return null;
+    }
+
+    public Object visit(SExp p, Object arg) {
+      tag(SEXP);
+      return p.exp_.accept(this, null);
+    }
+
+    public Object visit(SDecls p, Object arg) {
+      tag(SDECLS);
+      type(p.type_);
+      number(p.listid_.size());
+      for (String id : p.listid_) {
+        id(id);
+      }
+      return null;
+    }
+
+    public Object visit(SInit p, Object arg) {
+      tag(SINIT);
+      type(p.type_);
+      id(p.id_);
+      return p.exp_.accept(this, null);
+    }
+
+    public Object visit(SReturn p, Object arg) {
+      tag(SRETURN);
+      return p.exp_.accept(this, null);
+    }
+
+    public Object visit(SWhile p, Object arg) {
+      tag(SWHILE);
+      p.exp_.accept(this, null);
+      return p.stm_.accept(this, null);
+    }
+
+    public Object visit(SBlock p, Object arg) {
+      tag(SBLOCK);
+      stms(p.liststm_);
+      return null;
+    }
+
+    public Object visit(SIfElse p, Object arg) {
+      tag(SIFELSE);
+      p.exp_.accept(this, null);
+      p.stm_1.accept(this, null);
+      return p.stm_2.accept(this, null);
+    }
+
+    public Object visit(EBool p, Object arg) {
+      tag(p.boollit_ instanceof LTrue ? ETRUE : EFALSE);
+      return null;
+    }
+
+    public Object visit(EInt p, Object arg) {
+      tag(EINT);
+      // zigzag, so that small negative numbers are short too
+      number((p.integer_ << 1) ^ (p.integer_ >> 31));
+      return null;
+    }
+
+    public Object visit(EDouble p, Object arg) {
+      tag(EDOUBLE);
+      ensure(8);
+      out.putDouble(p.double_);
+      return null;
+    }
+
+    public Object visit(EId p, Object arg) {
+      tag(EID);
+      id(p.id_);
+      return null;
+    }
+
+    public Object visit(EApp p, Object arg) {
+      tag(EAPP);
+      id(p.id_);
+      calls.add(p.id_);
+      number(p.listexp_.size());
+      for (Exp e : p.listexp_) {
+        e.accept(this, null);
+      }
+      return null;
+    }
+
+    public Object visit(EPost p, Object arg) {
+      tag(p.incdecop_ instanceof OInc ? EPOSTINC : EPOSTDEC);
+      id(p.id_);
+      return null;
+    }
+
+    public Object visit(EPre p, Object arg) {
+      tag(p.incdecop_ instanceof OInc ? EPREINC : EPREDEC);
+      id(p.id_);
+      return null;
+    }
+
+    private Object binary(byte tag, Exp e1, Exp e2) {
+      tag(tag);
+      e1.accept(this, null);
+      return e2.accept(this, null);
+    }
+
+    public Object visit(EMul p, Object arg) {
+      return binary(p.mulop_ instanceof OTimes ? ETIMES : EDIV, p.exp_1, p.exp_2);
+    }
+
+    public Object visit(EAdd p, Object arg) {
+      return binary(p.addop_ instanceof OPlus ? EPLUS : EMINUS, p.exp_1, p.exp_2);
+    }
+
+    public Object visit(ECmp p, Object arg) {
+      CmpOp op = p.cmpop_;
+      byte tag = op instanceof OLt ? ELT : op instanceof OGt ? EGT : op instanceof OLtEq ? ELTEQ
+          : op instanceof OGtEq ? EGTEQ : op instanceof OEq ? EEQ : ENEQ;
+      return binary(tag, p.exp_1, p.exp_2);
+    }
+
+    public Object visit(EAnd p, Object arg) {
+      return binary(EAND, p.exp_1, p.exp_2);
+    }
+
+    public Object visit(EOr p, Object arg) {
+      return binary(EOR, p.exp_1, p.exp_2);
+    }
+
+    public Object visit(EAss p, Object arg) {
+      tag(EASS);
+      id(p.id_);
+      return p.exp_.accept(this, null);
+    }
+
+    public Object visit(ETyped p, Object arg) {
+      tag(ETYPED);
+      type(p.type_);
+      return p.exp_.accept(this, null);
+    }
+  }
+
+  // Reading
+  ///////////////////////////////////////////////////////////////////////////
+
+  static class Decoder {
+
+    private final ByteBuffer in;
+    private final ArrayList<String> ids = new ArrayList<>();
+    // the types have no fields, so the decoded trees can share them
+    private static final Type[] TYPES = { new Type_bool(), new Type_int(), new Type_double(), new Type_void() };
+
+    Decoder(ByteBuffer in) {
+      this.in = in;
+    }
+
+    int number() {
+      int n = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = in.get();
+        n |= (b & 0x7f) << shift;
+        if (b >= 0) {
+          return n;
+        }
+      }
+    }
+
+    String id() {
+      int n = number();
+      if (n < ids.size()) {
+        return ids.get(n);
+      }
+      byte[] bytes = new byte[number()];
+      in.get(bytes);
+      String id = new String(bytes, StandardCharsets.UTF_8);
+      ids.add(id);
+      return id;
+    }
+
+    Type type() {
+      byte tag = in.get();
+      if (tag < BOOL || tag > VOID) {
+        throw new IllegalStateException("Not a type: " + tag);
+      }
+      return TYPES[tag - BOOL];
+    }
+
+    Program program() {
+      if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+        throw new IllegalStateException("Not a cached program of this version");
+      }
+      ListDef defs = new ListDef();
+      for (int n = number(); n > 0; n--) {
+        defs.add(def());
+      }
+      if (in.hasRemaining()) {
+        throw new IllegalStateException("Trailing bytes");
+      }
+      return new PDefs(defs);
+    }
+
+    DFun def() {
+      expect(DFUN);
+      Type type = type();
+      String id = id();
+      ListArg args = new ListArg();
+      for (int m = number(); m > 0; m--) {
+        expect(ADECL);
+        Type argType = type();
+        args.add(new ADecl(argType, id()));
+      }
+      return new DFun(type, id, args, stms());
+    }
+
+    void expect(byte tag) {
+      byte b = in.get();
+      if (b != tag) {
+        throw new IllegalStateException("Expected tag " + tag + ", not " + b);
+      }
+    }
+
+    ListStm stms() {
+      ListStm stms = new ListStm();
+      for (int n = number(); n > 0; n--) {
+        stms.add(stm());
+      }
+      return stms;
+    }
+
+    Stm stm() {
+      byte tag = in.get();
+      switch (tag) {
+        case SEXP:
+          return new SExp(exp());
+        case SDECLS: {
+          Type type = type();
+          ListId ids = new ListId();
+          for (int n = number(); n > 0; n--) {
+            ids.add(id());
+          }
+          return new SDecls(type, ids);
+        }
+        case SINIT: {
+          Type type = type();
+          String id = id();
+          return new SInit(type, id, exp());
+        }
+        case SRETURN:
+          return new SReturn(exp());
+        case SWHILE: {
+          Exp condition = exp();
+          return new SWhile(condition, stm());
+        }
+        case SBLOCK:
+          return new SBlock(stms());
+        case SIFELSE: {
+          Exp condition = exp();
+          Stm then = stm();
+          return new SIfElse(condition, then, stm());
+        }
+        default:
+          throw new IllegalStateException("Not a statement: " + tag);
+      }
+    }
+
+    Exp exp() {
+      byte tag = in.get();
+      switch (tag) {
+        case ETRUE:
+          return new EBool(new LTrue());
+        case EFALSE:
+          return new EBool(new LFalse());
+        case EINT: {
+          int n = number();
+          return new EInt((n >>> 1) ^ -(n & 1));
+        }
+        case EDOUBLE:
+          return new EDouble(in.getDouble());
+        case EID:
+          return new EId(id());
+        case EAPP: {
+          String id = id();
+          ListExp args = new ListExp();
+          for (int n = number(); n > 0; n--) {
+            args.add(exp());
+          }
+          return new EApp(id, args);
+        }
+        case EPOSTINC:
+          return new EPost(id(), new OInc());
+        case EPOSTDEC:
+          return new EPost(id(), new ODec());
+        case EPREINC:
+          return new EPre(new OInc(), id());
+        case EPREDEC:
+          return new EPre(new ODec(), id());
+        case EASS: {
+          String id = id();
+          return new EAss(id, exp());
+        }
+        case ETYPED: {
+          Type type = type();
+          return new ETyped(exp(), type);
+        }
+        default: {
+          Exp e1 = exp();
+          Exp e2 = exp();
+          switch (tag) {
+            case ETIMES: return new EMul(e1, new OTimes(), e2);
+            case EDIV:   return new EMul(e1, new ODiv(), e2);
+            case EPLUS:  return new EAdd(e1, new OPlus(), e2);
+            case EMINUS: return new EAdd(e1, new OMinus(), e2);
+            case ELT:    return new ECmp(e1, new OLt(), e2);
+            case EGT:    return new ECmp(e1, new OGt(), e2);
+            case ELTEQ:  return new ECmp(e1, new OLtEq(), e2);
+            case EGTEQ:  return new ECmp(e1, new OGtEq(), e2);
+            case EEQ:    return new ECmp(e1, new OEq(), e2);
+            case ENEQ:   return new ECmp(e1, new ONEq(), e2);
+            case EAND:   return new EAnd(e1, e2);
+            case EOR:    return new EOr(e1, e2);
+            default:     throw new IllegalStateException("Not an expression: " + tag);
+          }
+        }
+      }
+    }
+  }
+}
@@ -39,13 +39,24 @@ public class Compiler
 
   }
 
+  //a variable and its memory address
+  public static class Variable{
+    public final int address;
+    public final Type type;
+
+    public Variable(int address, Type type){
+      this.address = address;
+      this.type = type;
+    }
+  }
+
   //The compiler environment
   public static class Env{
 
     public Type returnType;
     public HashMap<String,FunType> funTypes = new HashMap<>();
-    public LinkedList<HashMap<String,Integer>> addresses = new LinkedList<>();
-    public LinkedList<HashMap<String,Type>> varTypes = new LinkedList<>();
+    //the address and type of every variable of the blocks that are open, see Scopes
+    public Scopes<Variable> variables = new Scopes<>();
     int counterVAddresses = 0;
     int counterJumpLabels = 0;
 
@@ -66,21 +77,13 @@ public class Compiler
     }
 
     public Integer lookupVar(String id){
-      for (HashMap<String,Integer> hm : addresses){
-        if (hm.containsKey(id)){
-          return hm.get(id);
-        }
-      }
-      return null;
+      Variable v = variables.lookup(id);
+      return v == null ? null : v.address;
     }
 
     public Type lookupVarType(String id){
-      for (HashMap<String,Type> hm : varTypes){
-        if (hm.containsKey(id)){
-          return hm.get(id);
-        }
-      }
-      return null;
+      Variable v = variables.lookup(id);
+      return v == null ? null : v.type;
     }
 
     public FunType lookupFun(String id){
@@ -93,16 +96,12 @@ public class Compiler
     }
 
     public void extend(String id, Type t){
-      if (addresses.isEmpty()){
-        addresses.add(new HashMap<>());
-      }
-      if (varTypes.isEmpty()){
-        varTypes.add(new HashMap<>());
+      if (variables.isEmpty()){
+        variables.enter();
       }
-      //put the variable as well as its memory address in the hashmap. put it in the hashmap at the top-most context
+      //put the variable as well as its memory address in the top-most context
       //this allows multiple variables with the same name to be stored in different addresses.
-      addresses.get(0).put(id,counterVAddresses);
-      varTypes.get(0).put(id,t);
+      variables.declare(id,new Variable(counterVAddresses,t));
       if (t instanceof Type_int || t instanceof Type_bool){
         counterVAddresses += 1;
       } else {
@@ -117,12 +116,10 @@ public class Compiler
     }
 
     public void newBlock(){
-      addresses.addFirst(new HashMap<>());
-      varTypes.addFirst(new HashMap<>());
+      variables.enter();
     }
     public void exitBlock(){
-      addresses.pop();
-      varTypes.pop();
+      variables.exit();
     }
 
     public Type getReturnType() {
@@ -0,0 +1,186 @@
+import cmm.Absyn.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Type checks a program again after an edit, checking only the functions that may have changed.
+//
+// Every function gets a fingerprint: the hash of the function as written (its signature and body) and of the signatures
+// of the functions it calls. Nothing else can change the type of a body, so a function whose fingerprint is the same as
+// in the last run is not checked again, and its annotated body from the last run is used. The annotated functions of a
+// source file are kept in one file in the directory, named by the hash of the path of the source, in the format of
+// AstCache: the fingerprint and encoded annotated function of every function. The signatures are always checked.
+
+public class IncrementalCache {
+
+  static final int MAGIC = 0x434d4d49; // "CMMI"
+  static final int VERSION = 1;
+
+  private final Path dir;
+
+  // what happened to the functions of the last program
+  public int reused = 0;
+  public int rechecked = 0;
+  // why the checked functions could not be stored, or null
+  public IOException storeError = null;
+
+  public IncrementalCache(Path dir) {
+    this.dir = dir;
+  }
+
+  public Path file(Path source) {
+    String path = source.toAbsolutePath().normalize().toString();
+    return dir.resolve(AstCache.hash(path.getBytes(StandardCharsets.UTF_8)) + ".inc");
+  }
+
+  // type check the program, whose source is in the file, like the TypeChecker does
+  public Program typecheck(Path source, Program p, TypeChecker typeChecker) {
+    if (!(p instanceof PDefs)) {
+      throw new TypeException("Must be of type PDef");
+    }
+    PDefs pDefs = (PDefs) p;
+    TypeChecker.Env env = typeChecker.checkSignatures(pDefs);
+    Path file = file(source);
+    Map<String,ByteBuffer> cached = load(file);
+    // the fingerprints and annotated functions of this program, in the order of the program
+    LinkedHashMap<String,byte[]> entries = new LinkedHashMap<>();
+    ListDef annotatedDefs = new ListDef();
+    boolean finished = false;
+    try {
+      for (Def def : pDefs.listdef_) {
+        String fingerprint = fingerprint((DFun) def, env);
+        ByteBuffer encoded = cached.get(fingerprint);
+        DFun annotated = encoded == null ? null : decode(encoded.duplicate());
+        byte[] bytes;
+        if (annotated != null) {
+          reused++;
+          bytes = new byte[encoded.remaining()];
+          encoded.duplicate().get(bytes);
+        } else {
+          rechecked++;
+          annotated = (DFun) typeChecker.checkFunction(def, env);
+          AstCache.Encoder encoder = new AstCache.Encoder();
+          encoder.def(annotated);
+          bytes = encoder.bytes();
+        }
+        entries.put(fingerprint, bytes);
+        annotatedDefs.add(annotated);
+      }
+      finished = true;
+    } finally {
+      // the functions that were checked before a type error are kept too, together with the functions of the last run,
+      // so that fixing the error does not check the functions after it again. A directory that can not be written
+      // only makes the next run check them again, so the program is still compiled.
+      if (!finished) {
+        for (Map.Entry<String,ByteBuffer> entry : cached.entrySet()) {
+          if (!entries.containsKey(entry.getKey())) {
+            byte[] bytes = new byte[entry.getValue().remaining()];
+            entry.getValue().duplicate().get(bytes);
+            entries.put(entry.getKey(), bytes);
+          }
+        }
+      }
+      if (rechecked > 0 || entries.size() != cached.size()) {
+        try {
+          store(file, entries);
+        } catch (IOException e) {
+          storeError = e;
+        }
+      }
+    }
+    return new PDefs(annotatedDefs);
+  }
+
+  public String report() {
+    return "incremental: " + reused + " functions reused, " + rechecked + " re-checked"
+      + (storeError == null ? "" : ", could not store them: " + storeError);
+  }
+
+  // the hash of the function and of the signatures of the functions it calls
+  static String fingerprint(DFun def, TypeChecker.Env env) {
+    AstCache.Encoder encoder = new AstCache.Encoder();
+    encoder.def(def);
+    for (String id : encoder.calls) {
+      encoder.id(id);
+      TypeChecker.FunType funType = env.signatures.get(id);
+      if (funType == null) {
+        // not defined, which is an error in the body
+        encoder.tag((byte) 0);
+      } else {
+        encoder.type(funType.type);
+        encoder.number(funType.args.size());
+        for (Arg a : funType.args) {
+          encoder.type(((ADecl) a).type_);
+        }
+      }
+    }
+    return AstCache.hash(encoder.bytes());
+  }
+
+  static DFun decode(ByteBuffer encoded) {
+    try {
+      return new AstCache.Decoder(encoded).def();
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  // the encoded functions of the file by their fingerprints, or none if the file can not be read
+  static Map<String,ByteBuffer> load(Path file) {
+    HashMap<String,ByteBuffer> entries = new HashMap<>();
+    if (!Files.isRegularFile(file)) {
+      return entries;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+        return entries;
+      }
+      for (int n = in.getInt(); n > 0; n--) {
+        byte[] key = new byte[in.get()];
+        in.get(key);
+        int length = in.getInt();
+        ByteBuffer encoded = in.slice();
+        encoded.limit(length);
+        in.position(in.position() + length);
+        entries.put(new String(key, StandardCharsets.ISO_8859_1), encoded);
+      }
+      return entries;
+    } catch (IOException | RuntimeException e) {
+      // a broken file is replaced by the next store
+      return new HashMap<>();
+    }
+  }
+
+  static void store(Path file, Map<String,byte[]> entries) throws IOException {
+    int size = 12;
+    for (Map.Entry<String,byte[]> entry : entries.entrySet()) {
+      size += 1 + entry.getKey().length() + 4 + entry.getValue().length;
+    }
+    ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+    out.putInt(MAGIC);
+    out.putInt(VERSION);
+    out.putInt(entries.size());
+    for (Map.Entry<String,byte[]> entry : entries.entrySet()) {
+      byte[] key = entry.getKey().getBytes(StandardCharsets.ISO_8859_1);
+      out.put((byte) key.length);
+      out.put(key);
+      out.putInt(entry.getValue().length);
+      out.put(entry.getValue());
+    }
+    Files.createDirectories(file.getParent());
+    Path temporary = Files.createTempFile(file.getParent(), "inc", ".tmp");
+    Files.write(temporary, out.array());
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -1,23 +1,204 @@
-import java.util.Scanner;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+// The built-in functions of compiled C-- programs.
+//
+// Output is collected in a large byte buffer and written straight to the file descriptor of the standard output, not
+// through System.out. The buffer is flushed when it is full, before the program waits for input, and from a shutdown
+// hook at the end of the program, also when it ends with an exception or System.exit. Compiled programs only call the
+// four built-in functions, so they also run with the Runtime.class of the testsuite. Numbers are formatted by hand
+// into the buffer, giving the same text as System.out.println; doubles that are not small whole numbers are formatted
+// by Double.toString.
+//
+// Input is read in blocks and split into tokens at white space without regular expressions. ints, and doubles with
+// at most 15 digits, are parsed by hand; other doubles by Double.parseDouble.
 
 public class Runtime {
 
-    private static Scanner scan = new Scanner(System.in);
+    private static final int SIZE = 1 << 16;
+    // the longest number printed, with its line separator
+    private static final int MAX_NUMBER = 32;
+    // the line separator that println writes
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+    // the powers of ten that are exact doubles
+    private static final double[] POWERS = new double[23];
+
+    private static final FileOutputStream out = new FileOutputStream(FileDescriptor.out);
+    private static final byte[] output = new byte[SIZE];
+    private static int outputLength = 0;
+
+    private static final InputStream in = System.in;
+    private static final byte[] input = new byte[SIZE];
+    private static int inputPosition = 0;
+    private static int inputLength = 0;
+    private static byte[] token = new byte[64];
+
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+        java.lang.Runtime.getRuntime().addShutdownHook(new Thread(Runtime::flush));
+    }
 
     public static void printInt (int n) {
-        System.out.println(n);
+        if (outputLength + MAX_NUMBER > SIZE) {
+            flush();
+        }
+        writeLong(n);
+        newline();
     }
 
     public static void printDouble (double x) {
-        System.out.println(x);
+        if (outputLength + MAX_NUMBER > SIZE) {
+            flush();
+        }
+        // whole numbers below 10^7 are printed by Double.toString as digits and ".0", but -0.0 keeps its sign
+        if (x == (long) x && Math.abs(x) < 1e7 && (x != 0 || Double.doubleToRawLongBits(x) == 0)) {
+            writeLong((long) x);
+            output[outputLength++] = '.';
+            output[outputLength++] = '0';
+        } else {
+            String text = Double.toString(x);
+            for (int i = 0; i < text.length(); i++) {
+                output[outputLength++] = (byte) text.charAt(i);
+            }
+        }
+        newline();
     }
 
     public static int readInt () {
-        return scan.nextInt();
+        int c = startToken();
+        boolean negative = c == '-';
+        if (c == '-' || c == '+') {
+            c = read();
+        }
+        if (c < '0' || c > '9') {
+            throw new InputMismatchException("Input is not an int");
+        }
+        long value = 0;
+        while (c >= '0' && c <= '9') {
+            value = 10 * value + (c - '0');
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw new InputMismatchException("Input is out of the range of an int");
+            }
+            c = read();
+        }
+        value = negative ? -value : value;
+        if (c > ' ' || value > Integer.MAX_VALUE) {
+            throw new InputMismatchException("Input is not an int");
+        }
+        return (int) value;
     }
 
     public static double readDouble () {
-        return scan.nextDouble();
+        int length = 0;
+        for (int c = startToken(); c > ' '; c = read()) {
+            if (length == token.length) {
+                token = Arrays.copyOf(token, 2 * length);
+            }
+            token[length++] = (byte) c;
+        }
+        // digits with at most one point: with at most 15 digits, the digits and the power of ten are exact doubles,
+        // so dividing them rounds the same way as Double.parseDouble
+        int i = token[0] == '-' || token[0] == '+' ? 1 : 0;
+        long digits = 0;
+        int count = 0;
+        int decimals = -1;
+        for (; i < length; i++) {
+            byte b = token[i];
+            if (b >= '0' && b <= '9') {
+                digits = 10 * digits + (b - '0');
+                count++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                break;
+            }
+        }
+        if (i == length && count > 0 && count <= 15) {
+            double value = decimals > 0 ? digits / POWERS[decimals] : digits;
+            return token[0] == '-' ? -value : value;
+        }
+        try {
+            return Double.parseDouble(new String(token, 0, length, StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException e) {
+            throw new InputMismatchException("Input is not a double");
+        }
+    }
+
+    // write the buffered output. Called by the shutdown hook.
+    public static synchronized void flush () {
+        try {
+            out.write(output, 0, outputLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        outputLength = 0;
+    }
+
+    // the digits are written from the end of the number
+    private static void writeLong (long n) {
+        if (n < 0) {
+            output[outputLength++] = '-';
+            n = -n;
+        }
+        int digits = 1;
+        for (long rest = n / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int position = outputLength + digits;
+        outputLength = position;
+        do {
+            output[--position] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+    }
+
+    private static void newline () {
+        for (byte b : NEWLINE) {
+            output[outputLength++] = b;
+        }
+    }
+
+    // the next byte of the input, or -1 at the end
+    private static int read () {
+        if (inputPosition == inputLength) {
+            flush();
+            try {
+                inputLength = in.read(input);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            inputPosition = 0;
+            if (inputLength <= 0) {
+                inputLength = 0;
+                return -1;
+            }
+        }
+        return input[inputPosition++] & 0xff;
+    }
+
+    // the first byte of the next token
+    private static int startToken () {
+        int c = read();
+        while (c >= 0 && c <= ' ') {
+            c = read();
+        }
+        if (c < 0) {
+            throw new NoSuchElementException("No more input");
+        }
+        return c;
     }
 
 }
@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// The variables of nested blocks, for the environments of the TypeChecker and the Compiler.
+//
+// There is one hash map from a name to its innermost binding, and every binding links to the binding of the same name
+// that it shadows. The names declared in the open blocks are kept in one log, with the position where every block
+// starts. Leaving a block unlinks the bindings it declared, so looking up a name costs one hash lookup however deep
+// the blocks are nested, and entering and leaving a block cost only what the block declares.
+
+public class Scopes<V> {
+
+  private static final class Binding<V> {
+    final V value;
+    // the binding of the same name in an outer block, or null
+    final Binding<V> shadowed;
+    // the nesting depth of the block that declared it
+    final int depth;
+
+    Binding(V value, Binding<V> shadowed, int depth) {
+      this.value = value;
+      this.shadowed = shadowed;
+      this.depth = depth;
+    }
+  }
+
+  private final HashMap<String, Binding<V>> bindings = new HashMap<>();
+  // the names declared in the open blocks, the innermost block last
+  private final ArrayList<String> declared = new ArrayList<>();
+  // where the names of every open block start in declared
+  private int[] starts = new int[16];
+  private int depth = 0;
+
+  public void enter() {
+    if (depth == starts.length) {
+      starts = Arrays.copyOf(starts, 2 * depth);
+    }
+    starts[depth++] = declared.size();
+  }
+
+  public void exit() {
+    int start = starts[--depth];
+    for (int i = declared.size() - 1; i >= start; i--) {
+      unlink(declared.remove(i));
+    }
+  }
+
+  // whether no block is open
+  public boolean isEmpty() {
+    return depth == 0;
+  }
+
+  // the value of the innermost binding of the name, or null
+  public V lookup(String id) {
+    Binding<V> binding = bindings.get(id);
+    return binding == null ? null : binding.value;
+  }
+
+  // whether the name is declared in the innermost block
+  public boolean isDeclaredInBlock(String id) {
+    Binding<V> binding = bindings.get(id);
+    return binding != null && binding.depth == depth;
+  }
+
+  // declare the name in the innermost block, shadowing its bindings in the outer blocks. A name that is already declared
+  // in the innermost block is shadowed too, until it is removed.
+  public void declare(String id, V value) {
+    bindings.put(id, new Binding<>(value, bindings.get(id), depth));
+    declared.add(id);
+  }
+
+  // remove the declaration of the name from the innermost block, if it is declared there
+  public void remove(String id) {
+    if (depth == 0 || !isDeclaredInBlock(id)) {
+      return;
+    }
+    unlink(id);
+    for (int i = declared.size() - 1; i >= starts[depth - 1]; i--) {
+      if (declared.get(i).equals(id)) {
+        declared.remove(i);
+        return;
+      }
+    }
+  }
+
+  private void unlink(String id) {
+    Binding<V> shadowed = bindings.get(id).shadowed;
+    if (shadowed == null) {
+      bindings.remove(id);
+    } else {
+      bindings.put(id, shadowed);
+    }
+  }
+}
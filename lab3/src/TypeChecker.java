@@ -1,8 +1,11 @@
 import cmm.Absyn.*;
 import cmm.VisitSkel;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class TypeChecker {
 
@@ -60,16 +63,21 @@ public class TypeChecker {
       this.updateFun("readDouble",new FunType(new Type_double(),new ListArg()));
     }
 
+    //an environment for checking a body, with blocks of its own over the signatures of the program, which it only reads
+    public Env(Env program){
+      this.signatures = program.signatures;
+    }
+
     public Type funType;
 
     public HashMap<String, FunType> signatures = new HashMap<>();
-    public LinkedList<HashMap<String, Type>> contexts = new LinkedList<>();
+    //the variables of the blocks that are open, see Scopes
+    public Scopes<Type> contexts = new Scopes<>();
 
     public Type lookupVar(String id) {
-      for (HashMap<String, Type> context : contexts) {
-        if (context.containsKey(id)) {
-          return context.get(id); // Variable found
-        }
+      Type t = contexts.lookup(id);
+      if (t != null) {
+        return t; // Variable found
       }
       throw new TypeException("Variable with id "+id+" has not been declared");
     }
@@ -84,7 +92,7 @@ public class TypeChecker {
     }
 
     public void removeVar(String id){
-      contexts.get(0).remove(id);
+      contexts.remove(id);
     }
 
     //add a variable declaration to the environment/context
@@ -93,11 +101,11 @@ public class TypeChecker {
       if (contexts.isEmpty()){
         newBlock();
       }
-      if (!contexts.get(0).containsKey(id)) {
+      if (!contexts.isDeclaredInBlock(id)) {
         if (ty instanceof Type_void){
           throw new TypeException("Type of argument/variable can not be void");
         }
-        contexts.get(0).put(id, ty);
+        contexts.declare(id, ty);
       } else {
         throw new TypeException("Variable with id \""+id+"\" already exists.");
       }
@@ -113,74 +121,141 @@ public class TypeChecker {
     }
 
     public void newBlock(){
-      this.contexts.addFirst(new HashMap<>());
+      this.contexts.enter();
     }
 
     public void exitBlock(){
-      this.contexts.pop();
+      this.contexts.exit();
     }
 
 
   }
 
   public Program typecheck(Program p) {
-    Env env = new Env();
     ListDef annotatedDefs = new ListDef();
-
-    //type check the function headers/signatures
     if (p instanceof PDefs){
       PDefs pDefs = (PDefs) p;
+      Env env = checkSignatures(pDefs);
+      //go over each function and its body. Type check the function body.
       for (Def def : pDefs.listdef_){
-        if (def instanceof DFun){
-          DFun dfun = (DFun) def;
-          FunType funType = new FunType(dfun.type_,dfun.listarg_);
-          env.updateFun(dfun.id_,funType);
-        } else {
-          //if definition is not a function definition, we need to throw an exception.
-          throw new TypeException("Not a function definition");
-        }
+        annotatedDefs.add(checkFunction(def,env));
       }
-      if (!env.signatures.containsKey("main")){
-        throw new TypeException("No main function defined");
-      }
-      FunType main = env.lookupFun("main");
-      if (!main.args.isEmpty()){
-        throw new TypeException("Main function can not have any arguments");
+    } else {
+      throw new TypeException("Must be of type PDef");
+    }
+    return new PDefs(annotatedDefs);
+  }
+
+  //type check the bodies in parallel on the pool, after the signatures. A body only reads the signatures, so every
+  //body is checked in its own environment. If bodies have errors, the error of the first of them in the program is
+  //thrown, as typecheck(p) would.
+  public Program typecheck(Program p, ForkJoinPool pool) {
+    if (!(p instanceof PDefs)){
+      throw new TypeException("Must be of type PDef");
+    }
+    PDefs pDefs = (PDefs) p;
+    Env env = checkSignatures(pDefs);
+    Def[] defs = pDefs.listdef_.toArray(new Def[0]);
+    Def[] annotated = new Def[defs.length];
+    RuntimeException[] errors = new RuntimeException[defs.length];
+    pool.invoke(new CheckFunctions(defs, annotated, errors, env, 0, defs.length));
+    ListDef annotatedDefs = new ListDef();
+    for (int i = 0; i < defs.length; i++){
+      if (errors[i] != null){
+        throw errors[i];
       }
-      if (!(main.type instanceof Type_int)){
-        throw new TypeException("The return type of the main function has to be int");
+      annotatedDefs.add(annotated[i]);
+    }
+    return new PDefs(annotatedDefs);
+  }
+
+  //checks the functions from start to end, splitting them between tasks until there are few enough for one task
+  private class CheckFunctions extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    //the number of functions that are checked by one task
+    static final int BATCH = 16;
+
+    final Def[] defs;
+    final Def[] annotated;
+    final RuntimeException[] errors;
+    final Env program;
+    final int start;
+    final int end;
+
+    CheckFunctions(Def[] defs, Def[] annotated, RuntimeException[] errors, Env program, int start, int end){
+      this.defs = defs;
+      this.annotated = annotated;
+      this.errors = errors;
+      this.program = program;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute(){
+      if (end - start <= BATCH){
+        for (int i = start; i < end; i++){
+          try {
+            annotated[i] = checkFunction(defs[i], new Env(program));
+          } catch (RuntimeException e){
+            errors[i] = e;
+          }
+        }
+      } else {
+        int middle = (start + end) >>> 1;
+        invokeAll(new CheckFunctions(defs, annotated, errors, program, start, middle),
+                  new CheckFunctions(defs, annotated, errors, program, middle, end));
       }
+    }
+  }
 
-      //go over each function and its body. Type check the function body.
-      for (Def def : pDefs.listdef_){
-        //this environment stores the local context of the function, i.e. its argument list
-        Env fEnv = env;
+  //type check the function headers/signatures, and return the environment with them
+  public Env checkSignatures(PDefs pDefs){
+    Env env = new Env();
+    for (Def def : pDefs.listdef_){
+      if (def instanceof DFun){
         DFun dfun = (DFun) def;
-        //create a new block scope for the function. in this scope the variables in the argument list of the function will exist
-        //they will not exist outside of this scope and will be removed eventually.
-        fEnv.newBlock();
-        fEnv.funType = dfun.type_;
-        for (Arg arg : dfun.listarg_){
-          ADecl aDecl = (ADecl) arg;
-          fEnv.updateVar(aDecl.id_, aDecl.type_);
-        }
-        DFun annotatedDFun = (DFun) checkDef(def,env);
-        annotatedDefs.add(annotatedDFun);
-        fEnv.exitBlock();
+        FunType funType = new FunType(dfun.type_,dfun.listarg_);
+        env.updateFun(dfun.id_,funType);
+      } else {
+        //if definition is not a function definition, we need to throw an exception.
+        throw new TypeException("Not a function definition");
       }
-    } else {
-      throw new TypeException("Must be of type PDef");
     }
-    return new PDefs(annotatedDefs);
+    if (!env.signatures.containsKey("main")){
+      throw new TypeException("No main function defined");
+    }
+    FunType main = env.lookupFun("main");
+    if (!main.args.isEmpty()){
+      throw new TypeException("Main function can not have any arguments");
+    }
+    if (!(main.type instanceof Type_int)){
+      throw new TypeException("The return type of the main function has to be int");
+    }
+    return env;
+  }
+
+  //type check a function and return it with its body annotated
+  public Def checkFunction(Def def, Env env){
+    //this environment stores the local context of the function, i.e. its argument list
+    Env fEnv = env;
+    DFun dfun = (DFun) def;
+    //create a new block scope for the function. in this scope the variables in the argument list of the function will exist
+    //they will not exist outside of this scope and will be removed eventually.
+    fEnv.newBlock();
+    fEnv.funType = dfun.type_;
+    for (Arg arg : dfun.listarg_){
+      ADecl aDecl = (ADecl) arg;
+      fEnv.updateVar(aDecl.id_, aDecl.type_);
+    }
+    DFun annotatedDFun = (DFun) checkDef(def,env);
+    fEnv.exitBlock();
+    return annotatedDFun;
   }
 
   public Def checkDef(Def def, Env arg){
     DFun dFun = (DFun) def;
-    ListStm annotatedListStm = new ListStm();
-    for (Stm stm : dFun.liststm_){
-      Stm annotatedStm = stm.accept(new CheckAnnotatedStm(),arg);
-      annotatedListStm.add(annotatedStm);
-    }
+    ListStm annotatedListStm = new CheckAnnotatedStm().check(dFun.liststm_,arg);
     return new DFun(dFun.type_,dFun.id_,dFun.listarg_,annotatedListStm);
   }
 
@@ -189,7 +264,7 @@ public class TypeChecker {
 
     public Env visit(SExp p, Env arg) {
       //as long as it can infer a type for the expression, then the statement is valid.
-      p.exp_.accept(new InferAnnotatedExp(),arg);
+      annotate(p.exp_,arg);
       return arg;
     }
 
@@ -279,11 +354,92 @@ public class TypeChecker {
 
 
 
+  //every expression is annotated in a single pass: its subexpressions are annotated first, and its own type is
+  //found from their annotations. So every node is visited once and gets exactly one ETyped.
+  //
+  //The statements in a while, an if or a block are not annotated by recursion. They are pushed on a stack of work,
+  //between markers that open and close their blocks, and after them a marker that puts the annotated statement together
+  //from the stack of annotated statements. So deeply nested blocks take heap instead of Java stack. The visit of a
+  //while, an if or a block only pushes this work, and returns null.
   public static class CheckAnnotatedStm implements Stm.Visitor<Stm,Env> {
 
+    //the markers on the work stack
+    private static final Object NEW_BLOCK = new Object();
+    private static final Object EXIT_BLOCK = new Object();
+
+    //the marker of a while, an if or a block whose statements have been annotated
+    private static final class Rebuild {
+      final Stm stm;
+      final ETyped condition;
+
+      Rebuild(Stm stm, ETyped condition){
+        this.stm = stm;
+        this.condition = condition;
+      }
+    }
+
+    //the statements and markers still to do, the next one on top
+    private final ArrayDeque<Object> work = new ArrayDeque<>();
+    //the annotated statements, the last one on top
+    private final ArrayDeque<Stm> annotated = new ArrayDeque<>();
+
+    //annotate the statements of a body
+    public ListStm check(ListStm stms, Env arg){
+      pushStms(stms);
+      while (!work.isEmpty()){
+        Object next = work.pop();
+        if (next == NEW_BLOCK){
+          arg.newBlock();
+        } else if (next == EXIT_BLOCK){
+          arg.exitBlock();
+        } else if (next instanceof Rebuild){
+          annotated.push(rebuild((Rebuild) next));
+        } else {
+          Stm annotatedStm = ((Stm) next).accept(this,arg);
+          if (annotatedStm != null){
+            annotated.push(annotatedStm);
+          }
+        }
+      }
+      return popStms(stms.size());
+    }
+
+    //push the statements, the first one on top
+    private void pushStms(ListStm stms){
+      Stm[] array = stms.toArray(new Stm[0]);
+      for (int i = array.length - 1; i >= 0; i--){
+        work.push(array[i]);
+      }
+    }
+
+    //pop the last n annotated statements, in their order
+    private ListStm popStms(int n){
+      Stm[] array = new Stm[n];
+      for (int i = n - 1; i >= 0; i--){
+        array[i] = annotated.pop();
+      }
+      ListStm stms = new ListStm();
+      for (Stm stm : array){
+        stms.add(stm);
+      }
+      return stms;
+    }
+
+    private Stm rebuild(Rebuild r){
+      if (r.stm instanceof SWhile){
+        return new SWhile(r.condition,annotated.pop());
+      } else if (r.stm instanceof SIfElse){
+        Stm annotatedStm2 = annotated.pop();
+        Stm annotatedStm1 = annotated.pop();
+        return new SIfElse(r.condition,annotatedStm1,annotatedStm2);
+      } else {
+        return new SBlock(popStms(((SBlock) r.stm).liststm_.size()));
+      }
+    }
+
     public Stm visit(SExp p, Env arg) {
       //as long as it can infer a type for the expression, then the statement is valid.
-      SExp sExp = new SExp(p.exp_.accept(new InferAnnotatedExp(),arg));
+      SExp sExp = new SExp(annotate(p.exp_,arg));
       return sExp;
     }
 
@@ -301,8 +457,9 @@ public class TypeChecker {
     public Stm visit(SInit p, Env arg) {
       //this is necessary. the only issue is that we need it as long as we do the infer exp.
       arg.updateVar(p.id_, p.type_);
-      //check that the expression has a valid type
-      Type t = p.exp_.accept(new InferExpType(),arg);
+      //check that the expression has a valid type, and annotate it
+      ETyped eTyped = annotate(p.exp_,arg);
+      Type t = eTyped.type_;
       //remove the variable from the contexts. This is necessary so that we can add it again.
       arg.removeVar(p.id_);
 
@@ -314,8 +471,6 @@ public class TypeChecker {
         //is this necessary. not mentioned in the book?
         throw new TypeException("The type of the expression does not match the type of the variable");
       }
-      //the previous code just typechecks it. this code returns a new type annotated statement.
-      ETyped eTyped = (ETyped) p.exp_.accept(new InferAnnotatedExp(),arg);
       //return a new SInit, but with the only difference that it is type annotated
       return new SInit(p.type_,p.id_,eTyped);
     }
@@ -323,55 +478,51 @@ public class TypeChecker {
     @Override
     public Stm visit(SReturn p, Env arg) {
       //check if the statement returns an expression with a valid type
-      Type rt = p.exp_.accept(new InferExpType(),arg);
+      ETyped eTyped = annotate(p.exp_,arg);
+      Type rt = eTyped.type_;
       if (!rt.equals(arg.funType) && !(arg.funType instanceof Type_double && rt instanceof Type_int)){
         throw new TypeException("The return type "+rt.toString()+" of the return statement does not match the return type of the function");
       }
-      ETyped eTyped = (ETyped) p.exp_.accept(new InferAnnotatedExp(),arg);
       return new SReturn(eTyped);
     }
 
     @Override
     public Stm visit(SWhile p, Env arg) {
-      Type t = p.exp_.accept(new InferExpType(),arg);
-      if (typeCode(t).equals(TypeCode.CBool)){
+      ETyped annotatedCondition = annotate(p.exp_,arg);
+      if (typeCode(annotatedCondition.type_).equals(TypeCode.CBool)){
         arg.newBlock();
-        Stm annotatedStm = p.stm_.accept(this,arg);
-        arg.exitBlock();
-        Exp annotatedCondition = p.exp_.accept(new InferAnnotatedExp(),arg);
-        return new SWhile(annotatedCondition,annotatedStm);
+        work.push(new Rebuild(p,annotatedCondition));
+        work.push(EXIT_BLOCK);
+        work.push(p.stm_);
+        return null;
       }
       throw new TypeException("Condition in while loop must be of type bool");
     }
 
     @Override
     public Stm visit(SBlock p, Env arg) {
-      ListStm stms = new ListStm();
       arg.newBlock();
-      for (Stm stm : p.liststm_){
-        //check the statements using the new environment, which has the block scope as its top-most context
-        //the other statements are checked using their regular environment.
-        Stm annotatedBlockStm = stm.accept(this,arg);
-        stms.add(annotatedBlockStm);
-      }
-      arg.exitBlock();
-      return new SBlock(stms);
+      //check the statements using the new environment, which has the block scope as its top-most context
+      //the other statements are checked using their regular environment.
+      work.push(new Rebuild(p,null));
+      work.push(EXIT_BLOCK);
+      pushStms(p.liststm_);
+      return null;
     }
 
     @Override
     public Stm visit(SIfElse p, Env arg) {
-      Type t = p.exp_.accept(new InferExpType(),arg);
-      if (typeCode(t).equals(TypeCode.CBool)){
-        arg.newBlock();
-        //type check statement 1 in a new block
-        Stm annotatedStm1 = p.stm_1.accept(this,arg);
-        arg.exitBlock();
+      ETyped annotatedExp = annotate(p.exp_,arg);
+      if (typeCode(annotatedExp.type_).equals(TypeCode.CBool)){
         arg.newBlock();
-        //type check statement 2 in a new block.
-        Stm annotatedStm2 = p.stm_2.accept(this,arg);
-        arg.exitBlock();
-        Exp annotatedExp = p.exp_.accept(new InferAnnotatedExp(),arg);
-        return new SIfElse(annotatedExp,annotatedStm1,annotatedStm2);
+        //type check statement 1 in a new block, then statement 2 in a new block.
+        work.push(new Rebuild(p,annotatedExp));
+        work.push(EXIT_BLOCK);
+        work.push(p.stm_2);
+        work.push(NEW_BLOCK);
+        work.push(EXIT_BLOCK);
+        work.push(p.stm_1);
+        return null;
       } else {
         throw new TypeException("Condition in if-else statement must be of type bool");
       }
@@ -380,6 +531,84 @@ public class TypeChecker {
 
 
 
+  //the typing rules of the expressions, given the types of their subexpressions. They are shared by InferExpType and
+  //InferAnnotatedExp.
+
+  public static boolean isNumeric(Type t){
+    return t instanceof Type_double || t instanceof Type_int;
+  }
+
+  //the type of an arithmetic operation, an int operand is converted to double if the other one is a double
+  public static Type arithmeticType(Type t1, Type t2, String op){
+    if (isNumeric(t1) && isNumeric(t2)){
+      if (t1.equals(t2)) {
+        return t1;
+      } else {
+        return new Type_double();
+      }
+    }
+    throw new TypeException("Operands to "+op+" must be of type int or double");
+  }
+
+  public static Type comparisonType(CmpOp op, Type t1, Type t2){
+    if (isNumeric(t1) && isNumeric(t2)){
+      return new Type_bool();
+    }
+    if (op instanceof OEq || op instanceof ONEq){
+      if (t1 instanceof Type_bool && t2 instanceof Type_bool){
+        return new Type_bool();
+      } else {
+        throw new TypeException("Operands to == and != must be of type int, double or bool");
+      }
+    }
+    throw new TypeException("Operands to comparison must be int or double");
+  }
+
+  public static Type logicalType(Type t1, Type t2, String op){
+    if (typeCode(t1).equals(TypeCode.CBool) && typeCode(t2).equals(TypeCode.CBool)){
+      return new Type_bool();
+    }
+    throw new TypeException("Both operands to "+op+" must be of type bool");
+  }
+
+  //the type of x++, x--, ++x and --x
+  public static Type incDecType(String id, Env arg){
+    Type t = arg.lookupVar(id);
+    if (typeCode(t).equals(TypeCode.CInt) || typeCode(t).equals(TypeCode.CDouble)) {
+      return t;
+    } else {
+      throw new TypeException("Operand must be of type int or double");
+    }
+  }
+
+  public static Type assignmentType(String id, Type expType, Env arg){
+    Type varType = arg.lookupVar(id);
+    if (varType.equals(expType) || varType instanceof Type_double && expType instanceof Type_int){
+      return varType;
+    } else {
+      throw new TypeException("Expression must have the same type as the variable "+id);
+    }
+  }
+
+  //the parameters of the called function, after checking the number of arguments
+  public static ListArg parameters(EApp p, Env arg){
+    ListArg listArg = arg.lookupFun(p.id_).args;
+    if (listArg.size() != p.listexp_.size()){
+      //Type checker checks that function call has same number of arguments as function parameters.
+      throw new TypeException("The function call must have the same number of arguments as the function definition");
+    }
+    return listArg;
+  }
+
+  public static void checkArgument(Arg parameter, Type expType){
+    Type argType = ((ADecl) parameter).type_;
+    if (!argType.equals(expType) && !(argType instanceof Type_double && expType instanceof Type_int)){
+      throw new TypeException("Function argument and expression must have the same type. Exception: Int can be cast to double.");
+    }
+  }
+
+
+
   //checking different statements
   public static class InferExpType implements Exp.Visitor<Type,Env> {
     @Override
@@ -404,118 +633,51 @@ public class TypeChecker {
     //function call
     @Override
     public Type visit(EApp p, Env arg) {
-      ListArg listArg = arg.lookupFun(p.id_).args;
-      ListExp listExp = p.listexp_;
-      if (listArg.size() != listExp.size()){
-        //Type checker checks that function call has same number of arguments as function parameters.
-        throw new TypeException("The function call must have the same number of arguments as the function definition");
-      }
-      int len = listExp.size();
+      ListArg listArg = parameters(p, arg);
+      int len = p.listexp_.size();
       for (int i=0;i<len;i++){
-        ADecl aDecl = (ADecl) listArg.get(i);
-        Exp exp = listExp.get(i);
-        Type argType = aDecl.type_;
-        Type expType = exp.accept(new InferExpType(),arg);
-        if (!argType.equals(expType) && !(argType.equals(new Type_double()) && expType.equals(new Type_int()))){
-          throw new TypeException("Function argument and expression must have the same type. Exception: Int can be cast to double.");
-        }
+        checkArgument(listArg.get(i), p.listexp_.get(i).accept(this,arg));
       }
       return arg.lookupFun(p.id_).type;
     }
 
     @Override
     public Type visit(EPost p, Env arg) {
-      Type t = arg.lookupVar(p.id_);
-      if (typeCode(t).equals(TypeCode.CInt) || typeCode(t).equals(TypeCode.CDouble)) {
-        return t;
-      } else {
-        throw new TypeException("Operand must be of type int or double");
-      }
+      return incDecType(p.id_, arg);
     }
 
     @Override
     public Type visit(EPre p, Env arg) {
-      Type t = arg.lookupVar(p.id_);
-      if (typeCode(t).equals(TypeCode.CInt) || typeCode(t).equals(TypeCode.CDouble)) {
-        return t;
-      } else {
-        throw new TypeException("Operand must be of type int or double");
-      }
+      return incDecType(p.id_, arg);
     }
 
     @Override
     public Type visit(EMul p, Env arg) {
-      Type t1 = p.exp_1.accept(this,arg);
-      Type t2 = p.exp_2.accept(this,arg);
-      if ((t1 instanceof Type_double || t1 instanceof Type_int) && (t2 instanceof Type_double || t2 instanceof Type_int)){
-        if (t1.equals(t2)) {
-          return t1;
-        } else {
-          return new Type_double();
-        }
-      }
-      throw new TypeException("Operands to * must be of type int or double");
+      return arithmeticType(p.exp_1.accept(this,arg), p.exp_2.accept(this,arg), "*");
     }
 
     public Type visit(EAdd p, Env env) {
-      Type t1 = p.exp_1.accept(this,env);
-      Type t2 = p.exp_2.accept(this,env);
-      if ((t1 instanceof Type_double || t1 instanceof Type_int) && (t2 instanceof Type_double || t2 instanceof Type_int)){
-        if (t1.equals(t2)){
-          return t1;
-        } else {
-          return new Type_double();
-        }
-      }
-      throw new TypeException("Operands to + must be of type int or double");
+      return arithmeticType(p.exp_1.accept(this,env), p.exp_2.accept(this,env), "+");
     }
 
     @Override
     public Type visit(ECmp p, Env arg) {
-      Type t1 = p.exp_1.accept(this,arg);
-      Type t2 = p.exp_2.accept(this,arg);
-
-      if ((t1 instanceof Type_double || t1 instanceof Type_int) && (t2 instanceof Type_double || t2 instanceof Type_int)){
-        return new Type_bool();
-      }
-      if (p.cmpop_ instanceof OEq || p.cmpop_ instanceof ONEq){
-        if (t1 instanceof Type_bool && t2 instanceof Type_bool){
-          return new Type_bool();
-        } else {
-          throw new TypeException("Operands to == and != must be of type int, double or bool");
-        }
-      }
-      throw new TypeException("Operands to comparison must be int or double");
+      return comparisonType(p.cmpop_, p.exp_1.accept(this,arg), p.exp_2.accept(this,arg));
     }
 
     @Override
     public Type visit(EAnd p, Env arg) {
-      Type t1 = p.exp_1.accept(this,arg);
-      Type t2 = p.exp_2.accept(this,arg);
-      if (typeCode(t1).equals(TypeCode.CBool) && typeCode(t2).equals(TypeCode.CBool)){
-        return new Type_bool();
-      }
-      throw new TypeException("Both operands to && must be of type bool");
+      return logicalType(p.exp_1.accept(this,arg), p.exp_2.accept(this,arg), "&&");
     }
 
     @Override
     public Type visit(EOr p, Env arg) {
-      Type t1 = p.exp_1.accept(this,arg);
-      Type t2 = p.exp_2.accept(this,arg);
-      if (typeCode(t1).equals(TypeCode.CBool) && typeCode(t2).equals(TypeCode.CBool)){
-        return new Type_bool();
-      }
-      throw new TypeException("Both operands to || must be of type bool");
+      return logicalType(p.exp_1.accept(this,arg), p.exp_2.accept(this,arg), "||");
     }
 
     @Override
     public Type visit(EAss p, Env arg) {
-      Type expType = p.exp_.accept(this,arg);
-      if (arg.lookupVar(p.id_).equals(expType) || arg.lookupVar(p.id_).equals(new Type_double()) && expType.equals(new Type_int())){
-        return arg.lookupVar(p.id_);
-      } else {
-        throw new TypeException("Expression must have the same type as the variable "+p.id_);
-      }
+      return assignmentType(p.id_, p.exp_.accept(this,arg), arg);
     }
 
     @Override
@@ -525,94 +687,156 @@ public class TypeChecker {
 
   }
 
+  //annotate an expression and all its subexpressions with their types
+  public static ETyped annotate(Exp e, Env arg){
+    return new InferAnnotatedExp().annotate(e,arg);
+  }
+
+  //push the operands of an expression that are not annotated yet on the stack, the last one on top
+  static void pushOperands(Exp e, ArrayDeque<Exp> stack){
+    if (e instanceof EApp){
+      for (Exp exp : ((EApp) e).listexp_){
+        stack.push(exp);
+      }
+    } else if (e instanceof EMul){
+      stack.push(((EMul) e).exp_1);
+      stack.push(((EMul) e).exp_2);
+    } else if (e instanceof EAdd){
+      stack.push(((EAdd) e).exp_1);
+      stack.push(((EAdd) e).exp_2);
+    } else if (e instanceof ECmp){
+      stack.push(((ECmp) e).exp_1);
+      stack.push(((ECmp) e).exp_2);
+    } else if (e instanceof EAnd){
+      stack.push(((EAnd) e).exp_1);
+      stack.push(((EAnd) e).exp_2);
+    } else if (e instanceof EOr){
+      stack.push(((EOr) e).exp_1);
+      stack.push(((EOr) e).exp_2);
+    } else if (e instanceof EAss){
+      stack.push(((EAss) e).exp_);
+    }
+  }
+
+  //annotates an expression and all its subexpressions with their types. Each subexpression is annotated once, and the
+  //type of an expression is found from the annotations of its operands, so the time is linear in the size of the tree.
+  //
+  //The operands are not annotated by recursion. annotate finds an order of the subexpressions, with every expression
+  //after its operands, with an explicit stack, and the visits annotate them in that order, taking the annotated
+  //operands from the stack of results. So a deep expression, like a generated sum of 100000 terms or a long chain of
+  //assignments, takes heap instead of Java stack.
   public static class InferAnnotatedExp implements Exp.Visitor<ETyped,Env>{
 
+    //the annotated expressions, the last one on top
+    private final ArrayDeque<ETyped> operands = new ArrayDeque<>();
+
+    public ETyped annotate(Exp e, Env arg){
+      //the expressions with the operands of every expression after it, the right operands before the left ones.
+      //Backwards this is the order of a left to right recursion that annotates the operands first.
+      ArrayList<Exp> order = new ArrayList<>();
+      ArrayDeque<Exp> stack = new ArrayDeque<>();
+      stack.push(e);
+      while (!stack.isEmpty()){
+        Exp next = stack.pop();
+        order.add(next);
+        pushOperands(next,stack);
+      }
+      for (int i = order.size() - 1; i >= 0; i--){
+        operands.push(order.get(i).accept(this,arg));
+      }
+      return operands.pop();
+    }
+
     @Override
     public ETyped visit(EBool p, Env arg) {
-      return new ETyped(p,p.accept(new InferExpType(),arg));
+      return new ETyped(p,new Type_bool());
     }
 
     @Override
     public ETyped visit(EInt p, Env arg) {
-      return new ETyped(p,p.accept(new InferExpType(),arg));
+      return new ETyped(p,new Type_int());
     }
 
     @Override
     public ETyped visit(EDouble p, Env arg) {
-      return new ETyped(p,p.accept(new InferExpType(),arg));
+      return new ETyped(p,new Type_double());
     }
 
     @Override
     public ETyped visit(EId p, Env arg) {
-      return new ETyped(p,p.accept(new InferExpType(),arg));
+      return new ETyped(p,arg.lookupVar(p.id_));
     }
 
     @Override
     public ETyped visit(EApp p, Env arg) {
+      ListArg listArg = parameters(p, arg);
+      ETyped[] annotatedExps = new ETyped[p.listexp_.size()];
+      for (int i = annotatedExps.length - 1; i >= 0; i--){
+        annotatedExps[i] = operands.pop();
+      }
       ListExp annotatedListExp = new ListExp();
-      for (Exp exp : p.listexp_){
-        Exp annotatedExp = exp.accept(this,arg);
-        annotatedListExp.add(annotatedExp);
+      for (int i = 0; i < annotatedExps.length; i++){
+        checkArgument(listArg.get(i), annotatedExps[i].type_);
+        annotatedListExp.add(annotatedExps[i]);
       }
       //all the expressions/arguments of the function call will now be annotated
       EApp annotatedP = new EApp(p.id_,annotatedListExp);
       //return the type annotated expression call with the annotated arguments.
-      return new ETyped(annotatedP,p.accept(new InferExpType(),arg));
+      return new ETyped(annotatedP,arg.lookupFun(p.id_).type);
     }
 
     @Override
     public ETyped visit(EPost p, Env arg) {
-      return new ETyped(p,p.accept(new InferExpType(),arg));
+      return new ETyped(p,incDecType(p.id_, arg));
     }
 
     @Override
     public ETyped visit(EPre p, Env arg) {
-      return new ETyped(p,p.accept(new InferExpType(),arg));
+      return new ETyped(p,incDecType(p.id_, arg));
     }
 
     @Override
     public ETyped visit(EMul p, Env arg) {
-      ETyped a = new ETyped(p.exp_1.accept(this,arg),p.exp_1.accept(new InferExpType(),arg));
-      ETyped b = new ETyped(p.exp_2.accept(this,arg),p.exp_2.accept(new InferExpType(),arg));
-        return new ETyped(new EMul(a, p.mulop_, b), p.accept(new InferExpType(), arg));
-
+      ETyped b = operands.pop();
+      ETyped a = operands.pop();
+      return new ETyped(new EMul(a, p.mulop_, b), arithmeticType(a.type_, b.type_, "*"));
     }
 
     @Override
     public ETyped visit(EAdd p, Env arg) {
-      ETyped a = new ETyped(p.exp_1.accept(this,arg),p.exp_1.accept(new InferExpType(),arg));
-      ETyped b = new ETyped(p.exp_2.accept(this,arg),p.exp_2.accept(new InferExpType(),arg));
-      return new ETyped(new EAdd(a, p.addop_, b), p.accept(new InferExpType(), arg));
+      ETyped b = operands.pop();
+      ETyped a = operands.pop();
+      return new ETyped(new EAdd(a, p.addop_, b), arithmeticType(a.type_, b.type_, "+"));
     }
 
     @Override
     public ETyped visit(ECmp p, Env arg) {
-      ETyped a = new ETyped(p.exp_1.accept(this,arg),p.exp_1.accept(new InferExpType(),arg));
-      ETyped b = new ETyped(p.exp_2.accept(this,arg),p.exp_2.accept(new InferExpType(),arg));
-      return new ETyped(new ECmp(a,p.cmpop_,b),p.accept(new InferExpType(),arg));
+      ETyped b = operands.pop();
+      ETyped a = operands.pop();
+      return new ETyped(new ECmp(a,p.cmpop_,b),comparisonType(p.cmpop_, a.type_, b.type_));
     }
 
     @Override
     public ETyped visit(EAnd p, Env arg) {
-      ETyped a = new ETyped(p.exp_1.accept(this,arg),p.exp_1.accept(new InferExpType(),arg));
-      ETyped b = new ETyped(p.exp_2.accept(this,arg),p.exp_2.accept(new InferExpType(),arg));
-      return new ETyped(new EAnd(a,b),p.accept(new InferExpType(),arg));
+      ETyped b = operands.pop();
+      ETyped a = operands.pop();
+      return new ETyped(new EAnd(a,b),logicalType(a.type_, b.type_, "&&"));
     }
 
     @Override
     public ETyped visit(EOr p, Env arg) {
-      ETyped a = new ETyped(p.exp_1.accept(this,arg),p.exp_1.accept(new InferExpType(),arg));
-      ETyped b = new ETyped(p.exp_2.accept(this,arg),p.exp_2.accept(new InferExpType(),arg));
-      return new ETyped(new EOr(a,b),p.accept(new InferExpType(),arg));
+      ETyped b = operands.pop();
+      ETyped a = operands.pop();
+      return new ETyped(new EOr(a,b),logicalType(a.type_, b.type_, "||"));
     }
 
     @Override
     public ETyped visit(EAss p, Env arg) {
-      ETyped expAnnotated = p.exp_.accept(this,arg);
+      ETyped expAnnotated = operands.pop();
       //annotate the expression of the assignment, i.e the right hand side of the equal sign. this is necessary as this is also an expression
       EAss pAnnotated = new EAss(p.id_,expAnnotated);
       //annotate the entire assignment expression
-      return new ETyped(pAnnotated,p.accept(new InferExpType(),arg));
+      return new ETyped(pAnnotated,assignmentType(p.id_, expAnnotated.type_, arg));
     }
 
     @Override
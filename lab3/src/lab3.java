@@ -11,9 +11,36 @@ public class lab3 {
 
   public static void main(String args[]) {
 
-    // Ensure that we are called with a single argument.
+    // Ensure that we are called with a single argument, optionally after flags.
+    // --cache keeps the type checked programs in a directory, by default cmm-cache in the temporary directory.
+    // --parallel type checks the function bodies in parallel.
+    // --incremental type checks only the functions that changed since the last run, keeping the checked functions in a
+    // directory, by default cmm-incremental in the temporary directory. It checks the bodies one after the other.
+    AstCache cache = null;
+    boolean parallel = false;
+    IncrementalCache incremental = null;
+    int flags = 0;
+    for (; flags < args.length && args[flags].startsWith("--"); flags++) {
+      String flag = args[flags];
+      if (flag.equals("--cache") || flag.startsWith("--cache=")) {
+        String cacheDir = flag.equals("--cache")
+          ? new File(System.getProperty("java.io.tmpdir"), "cmm-cache").getPath()
+          : flag.substring("--cache=".length());
+        cache = new AstCache(new File(cacheDir).toPath());
+      } else if (flag.equals("--parallel")) {
+        parallel = true;
+      } else if (flag.equals("--incremental") || flag.startsWith("--incremental=")) {
+        String incrementalDir = flag.equals("--incremental")
+          ? new File(System.getProperty("java.io.tmpdir"), "cmm-incremental").getPath()
+          : flag.substring("--incremental=".length());
+        incremental = new IncrementalCache(new File(incrementalDir).toPath());
+      } else {
+        break;
+      }
+    }
+    args = Arrays.copyOfRange(args, flags, args.length);
     if (args.length != 1) {
-      System.err.println("Usage: lab3 <SourceFile>");
+      System.err.println("Usage: lab3 [--cache[=<Directory>]] [--parallel] [--incremental[=<Directory>]] <SourceFile>");
       System.exit(1);
     }
 
@@ -26,13 +53,47 @@ public class lab3 {
     Yylex  l = null;
     try {
 
-      // Parse
-      l = new Yylex(new FileReader(srcFile)); // throws FileNotFoundException
-      parser p = new parser(l);
-      cmm.Absyn.Program parseTree = p.pProgram();
-
-      // Type check
-      cmm.Absyn.Program typedTree = new TypeChecker().typecheck(parseTree);
+      // Look up the type checked program, unless it has changed since it was cached.
+      byte[] source = null;
+      cmm.Absyn.Program typedTree = null;
+      if (cache != null) {
+        source = java.nio.file.Files.readAllBytes(new File(srcFile).toPath());
+        typedTree = cache.load(source);
+      }
+
+      if (typedTree == null) {
+        // Parse
+        l = new Yylex(source == null
+          ? new FileReader(srcFile) // throws FileNotFoundException
+          : new InputStreamReader(new ByteArrayInputStream(source)));
+        parser p = new parser(l);
+        cmm.Absyn.Program parseTree = p.pProgram();
+
+        // Type check
+        if (incremental != null) {
+          try {
+            typedTree = incremental.typecheck(new File(srcFile).toPath(), parseTree, new TypeChecker());
+          } finally {
+            System.err.println(incremental.report());
+          }
+        } else {
+          typedTree = parallel
+            ? new TypeChecker().typecheck(parseTree, java.util.concurrent.ForkJoinPool.commonPool())
+            : new TypeChecker().typecheck(parseTree);
+        }
+
+        if (cache != null) {
+          // A cache that can not be written only misses the next time, the program is still compiled.
+          try {
+            cache.store(source, typedTree);
+          } catch (IOException e) {
+            System.err.println("cache: could not store the program: " + e);
+          }
+        }
+      }
+      if (cache != null) {
+        System.err.println(cache.report());
+      }
 
       // Compile
       String jtext = new Compiler().compile(className, typedTree);
@@ -54,6 +115,11 @@ public class lab3 {
       System.err.println(e.toString());
       System.exit(-1);
     }
+    catch (StackOverflowError e) {
+      // The type checker takes any nesting, but the compiler and the cache still recurse on the tree.
+      System.err.println("Stack overflow, the program is nested too deeply for the Java stack");
+      System.exit(-1);
+    }
     catch (IOException e) {
       System.err.println(e.toString());
       System.exit(1);